@@ -0,0 +1,92 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AuctionEngine bid throughput (bids per second) with 1, 4, 16 and 64 threads, one subclass per thread count.
+ * The bids go to random open auctions with random bidders and amounts, read from a trace made before the run.
+ * The close-out latency under the same thread counts is measured by AuctionEngine.main().
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class AuctionBenchmark {
+    private static final int TRACE_SIZE = 1 << 20;
+
+    @Param({"1000000"})
+    public int auctions;
+
+    @Param({"4"})
+    public int topK;
+
+    private Object engine;
+    private long[] auctionIds;
+    private long[] bidders;
+    private long[] amounts;
+
+    /**
+     * position of a thread in the trace, threads start at random positions
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = ThreadLocalRandom.current().nextInt(TRACE_SIZE);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Random random = new Random(42);
+        auctionIds = new long[TRACE_SIZE];
+        bidders = new long[TRACE_SIZE];
+        amounts = new long[TRACE_SIZE];
+        for (int i = 0; i < TRACE_SIZE; i++) {
+            auctionIds[i] = random.nextInt(auctions);
+            bidders[i] = random.nextInt(1000000);
+            amounts[i] = 1 + random.nextInt(100000);
+        }
+        engine = ProjectClasses.newAuctionEngine(topK, 0, auctions, Runtime.getRuntime().availableProcessors() * 4);
+        for (int i = 0; i < TRACE_SIZE; i++) {
+            ProjectClasses.bid(engine, auctionIds[i], bidders[i], amounts[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean bid(Cursor cursor) throws Throwable {
+        int i = cursor.next++ & (TRACE_SIZE - 1);
+        return ProjectClasses.bid(engine, auctionIds[i], bidders[i], amounts[i]);
+    }
+
+    @Threads(1)
+    public static class Threads1 extends AuctionBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends AuctionBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends AuctionBenchmark {
+    }
+
+    @Threads(64)
+    public static class Threads64 extends AuctionBenchmark {
+    }
+}
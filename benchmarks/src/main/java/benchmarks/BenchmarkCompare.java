@@ -0,0 +1,103 @@
+package benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compare two JMH JSON result files, e.g. of two commits: the score of each benchmark and its allocated
+ * bytes per operation. A benchmark is a regression when its score is worse by more than the threshold
+ * (10% by default) and by more than the error margins of both runs, the exit status is 1 when there is one.
+ *
+ * sample usage:
+ *     java -cp target/benchmarks.jar benchmarks.BenchmarkCompare results/3fa3022.json results/d2368b7.json 5
+ */
+public final class BenchmarkCompare {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    private BenchmarkCompare() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkCompare base.json new.json [threshold percent]");
+            System.exit(2);
+        }
+        Map<String, JSONObject> base = load(Path.of(args[0]));
+        Map<String, JSONObject> current = load(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %8s %14s %14s%n", "benchmark", "base", "new", "change", "base B/op", "new B/op");
+        for (Map.Entry<String, JSONObject> e : current.entrySet()) {
+            JSONObject before = base.get(e.getKey());
+            JSONObject after = e.getValue();
+            JSONObject metric = after.getJSONObject("primaryMetric");
+            if (before == null) {
+                System.out.printf("%-90s %14s %14.1f %8s %14s %14s  new%n", e.getKey(), "-", metric.getDouble("score"),
+                        "", "", allocation(after));
+                continue;
+            }
+            JSONObject baseMetric = before.getJSONObject("primaryMetric");
+            double baseScore = baseMetric.getDouble("score");
+            double score = metric.getDouble("score");
+            // throughput is better higher, the time modes lower
+            boolean higherIsBetter = "thrpt".equals(after.getString("mode"));
+            double change = baseScore == 0 ? 0 : (score - baseScore) / baseScore;
+            double worse = higherIsBetter ? -change : change;
+            double margin = error(baseMetric) + error(metric);
+            boolean regression = worse > threshold && Math.abs(score - baseScore) > margin;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf("%-90s %14.1f %14.1f %+7.1f%% %14s %14s%s%n", e.getKey(), baseScore, score, change * 100,
+                    allocation(before), allocation(after), regression ? "  REGRESSION" : "");
+        }
+        for (String key : base.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf("%-90s  removed%n", key);
+            }
+        }
+        System.out.println(regressions + " regressions over " + Math.round(threshold * 100) + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * results by benchmark name, thread count and parameters
+     */
+    private static Map<String, JSONObject> load(Path path) throws Exception {
+        JSONArray results = new JSONArray(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        Map<String, JSONObject> byKey = new LinkedHashMap<String, JSONObject>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            StringBuilder key = new StringBuilder(result.getString("benchmark").replace("benchmarks.", ""));
+            key.append(" t=").append(result.optInt("threads", 1));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : new TreeMap<String, Object>(params.toMap()).entrySet()) {
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            byKey.put(key.toString(), result);
+        }
+        return byKey;
+    }
+
+    private static double error(JSONObject metric) {
+        double error = metric.optDouble("scoreError", 0);
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    private static String allocation(JSONObject result) {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+        if (secondary == null || !secondary.has(ALLOCATION)) {
+            return "-";
+        }
+        return String.format("%.0f", secondary.getJSONObject(ALLOCATION).getDouble("score"));
+    }
+}
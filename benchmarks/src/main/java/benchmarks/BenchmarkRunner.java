@@ -0,0 +1,65 @@
+package benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Main class of benchmarks.jar: the JMH command line, with the GC profiler (allocation rate and bytes
+ * per operation) and a JSON result file results/[git revision].json unless the command line sets them.
+ * Compare two result files with BenchmarkCompare.
+ *
+ * sample usage:
+ *     java -jar target/benchmarks.jar                          all benchmarks
+ *     java -jar target/benchmarks.jar LRUCaching -p distribution=zipf
+ *     java -jar target/benchmarks.jar -l                       list the benchmarks
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams() || cmd.shouldListProfilers()
+                || cmd.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            File results = new File("results");
+            results.mkdirs();
+            options.result(new File(results, revision() + ".json").getPath());
+        }
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * the abbreviated commit, with -dirty for uncommitted changes, or "local" out of a git tree
+     */
+    private static String revision() {
+        try {
+            Process git = new ProcessBuilder("git", "describe", "--always", "--dirty").redirectErrorStream(true).start();
+            String revision = new String(git.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (git.waitFor() == 0 && !revision.isEmpty()) {
+                return revision;
+            }
+        } catch (Exception e) {
+            // not in a git tree, or no git
+        }
+        return "local";
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second of the pooled mTLS client of HttpMTLSClient.getHttpClient() on 16 threads against
+ * an in-process MTLSEchoServer, for a small and a 16 KB response body. The connections are kept alive, the
+ * warmup pays for the handshakes, the measurement is the request path: pool lease, request, response, release.
+ *
+ * Each fork is a new JVM, so the java properties set before HttpMTLSClient is loaded apply.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class HttpClientBenchmark {
+    @Param({"64", "16384"})
+    public int bodyBytes;
+
+    private TlsStubServer server;
+    private CloseableHttpClient client;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        server = new TlsStubServer(bodyBytes);
+        server.configureHttpMTLSClient();
+        client = ProjectClasses.httpClient();
+        url = server.url();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        HttpGet get = new HttpGet(url);
+        try (CloseableHttpResponse response = client.execute(get)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TestingCopilot.extractJSONFields() and getName() on three documents:
+ *     small   a record with a name and a list of 3 assets, like TestingCopilot.main()
+ *     deep    records nested 32 levels deep
+ *     wide    1000 fields and a list of 100 assets
+ * parseAndExtract() includes parsing the text, as for a response body, streamingExtract() reads the same text
+ * with JsonFieldExtractor instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonExtractionBenchmark {
+    private static final String[] KEYS = {"id", "assetGUID", "assetName"};
+
+    @Param({"small", "deep", "wide"})
+    public String document;
+
+    private JSONObject json;
+    private String text;
+    private Object extractor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        switch (document) {
+            case "small":
+                json = record(1, 3);
+                break;
+            case "deep":
+                json = record(0, 1);
+                JSONObject parent = json;
+                for (int depth = 1; depth < 32; depth++) {
+                    JSONObject child = record(depth, 1);
+                    parent.put("child", child);
+                    parent = child;
+                }
+                break;
+            case "wide":
+                json = record(1, 100);
+                for (int i = 0; i < 1000; i++) {
+                    json.put("field" + i, "value of field " + i);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown document " + document);
+        }
+        text = json.toString();
+        extractor = ProjectClasses.newFieldExtractor(KEYS);
+    }
+
+    private static JSONObject record(int id, int assets) {
+        JSONObject record = new JSONObject();
+        record.put("id", id);
+        record.put("assetGUID", "guid-" + id);
+        record.put("account", new JSONObject().put("name", new JSONObject().put("first", "John").put("last", "Doe")));
+        JSONArray list = new JSONArray();
+        for (int i = 0; i < assets; i++) {
+            list.put(new JSONObject().put("assetGUID", "guid-" + id + "-" + i).put("assetName", "asset " + i));
+        }
+        record.put("list", list);
+        return record;
+    }
+
+    @Benchmark
+    public StringBuffer extractJSONFields() throws Throwable {
+        StringBuffer sb = new StringBuffer();
+        ProjectClasses.extractJSONFields(json, "\n", sb, KEYS);
+        return sb;
+    }
+
+    @Benchmark
+    public JSONObject getName() throws Throwable {
+        return ProjectClasses.getName(json);
+    }
+
+    @Benchmark
+    public StringBuffer parseAndExtract() throws Throwable {
+        StringBuffer sb = new StringBuffer();
+        ProjectClasses.extractJSONFields(new JSONObject(text), "\n", sb, KEYS);
+        return sb;
+    }
+
+    @Benchmark
+    public StringBuilder streamingExtract() throws Throwable {
+        StringBuilder sb = new StringBuilder();
+        ProjectClasses.extract(extractor, new StringReader(text), "\n", sb);
+        return sb;
+    }
+}
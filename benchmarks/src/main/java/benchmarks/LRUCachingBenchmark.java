@@ -0,0 +1,171 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LRUCaching get and put throughput with 1, 4, 16 and 64 threads, one subclass per thread count.
+ *
+ * The keys are twice the capacity, read in the order of a trace made before the run:
+ *     uniform   any key, about half of the reads miss
+ *     zipf      Zipf distributed with exponent 0.99 (as YCSB), a few hot keys take most reads
+ *     scan      all keys in a loop, the worst case of LRU: every read misses
+ * readThrough() puts a missing key, like a cache in front of a loader, put() only writes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class LRUCachingBenchmark {
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    @Param({"100000"})
+    public int capacity;
+
+    @Param({"uniform", "zipf", "scan"})
+    public String distribution;
+
+    private Object cache;
+    private String[] keys;
+    private int[] trace;
+
+    /**
+     * position of a thread in the trace, threads start at random positions
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = ThreadLocalRandom.current().nextInt(1 << 20);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        int keySpace = capacity * 2;
+        keys = new String[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = "key-" + i;
+        }
+        // a multiple of the keys, so the scan wraps around where its loop over the keys does
+        int traceSize = keySpace * 2;
+        trace = new int[traceSize];
+        Random random = new Random(42);
+        switch (distribution) {
+            case "uniform":
+                for (int i = 0; i < traceSize; i++) {
+                    trace[i] = random.nextInt(keySpace);
+                }
+                break;
+            case "zipf":
+                zipf(random, keySpace);
+                break;
+            case "scan":
+                for (int i = 0; i < traceSize; i++) {
+                    trace[i] = i % keySpace;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+        cache = ProjectClasses.newCache(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ProjectClasses.cachePut(cache, keys[trace[i]], keys[trace[i]]);
+        }
+    }
+
+    /**
+     * sample ranks from the Zipf cumulative distribution, then spread the ranks over the keys
+     */
+    private void zipf(Random random, int keySpace) {
+        double[] cdf = new double[keySpace];
+        double sum = 0;
+        for (int rank = 0; rank < keySpace; rank++) {
+            sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cdf[rank] = sum;
+        }
+        int[] keyOfRank = new int[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keyOfRank[i] = i;
+        }
+        for (int i = keySpace - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = keyOfRank[i];
+            keyOfRank[i] = keyOfRank[j];
+            keyOfRank[j] = swap;
+        }
+        for (int i = 0; i < trace.length; i++) {
+            double u = random.nextDouble() * sum;
+            int low = 0;
+            int high = keySpace - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cdf[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            trace[i] = keyOfRank[low];
+        }
+    }
+
+    /**
+     * the key of the cursor's position in the trace, then the next position
+     */
+    private int next(Cursor cursor) {
+        int i = cursor.next;
+        if (i >= trace.length) {
+            // the end of the trace, or the random start of the cursor
+            i %= trace.length;
+        }
+        cursor.next = i + 1;
+        return trace[i];
+    }
+
+    @Benchmark
+    public Object readThrough(Cursor cursor) throws Throwable {
+        String key = keys[next(cursor)];
+        Object value = ProjectClasses.cacheGet(cache, key);
+        if (value == null) {
+            ProjectClasses.cachePut(cache, key, key);
+        }
+        return value;
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) throws Throwable {
+        String key = keys[next(cursor)];
+        ProjectClasses.cachePut(cache, key, key);
+    }
+
+    @Threads(1)
+    public static class Threads1 extends LRUCachingBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends LRUCachingBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends LRUCachingBenchmark {
+    }
+
+    @Threads(64)
+    public static class Threads64 extends LRUCachingBenchmark {
+    }
+}
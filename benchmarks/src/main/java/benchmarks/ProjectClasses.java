@@ -0,0 +1,167 @@
+package benchmarks;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The project classes are in the default package, which a class in a package cannot name, and JMH does not
+ * take benchmarks in the default package. The benchmarks call them through these method handles: a handle
+ * in a static final field is a constant to the JIT, the call is inlined like a direct call.
+ */
+final class ProjectClasses {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    // LRUCaching<Object, Object>
+    private static final MethodHandle NEW_CACHE_BUILDER = findStatic("LRUCaching", "newBuilder", type("LRUCaching$Builder"));
+    private static final MethodHandle MAXIMUM_SIZE = findVirtual("LRUCaching$Builder", "maximumSize",
+            type("LRUCaching$Builder", long.class));
+    private static final MethodHandle BUILD = findVirtual("LRUCaching$Builder", "build", type("LRUCaching"));
+    private static final MethodHandle CACHE_GET = findVirtual("LRUCaching", "get", MethodType.methodType(Object.class, Object.class))
+            .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+    private static final MethodHandle CACHE_PUT = findVirtual("LRUCaching", "put",
+            MethodType.methodType(void.class, Object.class, Object.class))
+            .asType(MethodType.methodType(void.class, Object.class, Object.class, Object.class));
+
+    // TestingCopilot
+    private static final MethodHandle EXTRACT_JSON_FIELDS = findStatic("TestingCopilot", "extractJSONFields",
+            MethodType.methodType(void.class, JSONObject.class, String.class, StringBuffer.class, String[].class));
+    private static final MethodHandle GET_NAME = findStatic("TestingCopilot", "getName",
+            MethodType.methodType(JSONObject.class, JSONObject.class));
+
+    // JsonFieldExtractor
+    private static final MethodHandle NEW_FIELD_EXTRACTOR = findConstructor("JsonFieldExtractor",
+            MethodType.methodType(void.class, String[].class)).asType(MethodType.methodType(Object.class, String[].class));
+    private static final MethodHandle EXTRACT = findVirtual("JsonFieldExtractor", "extract",
+            MethodType.methodType(void.class, Reader.class, String.class, Appendable.class))
+            .asType(MethodType.methodType(void.class, Object.class, Reader.class, String.class, Appendable.class));
+
+    // AuctionEngine
+    private static final MethodHandle NEW_AUCTION_ENGINE = findConstructor("AuctionEngine",
+            MethodType.methodType(void.class, int.class, long.class, int.class, int.class))
+            .asType(MethodType.methodType(Object.class, int.class, long.class, int.class, int.class));
+    private static final MethodHandle BID = findVirtual("AuctionEngine", "bid",
+            MethodType.methodType(boolean.class, long.class, long.class, long.class))
+            .asType(MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class));
+
+    private ProjectClasses() {
+    }
+
+    private static Class<?> project(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(name + " is not on the classpath, install the project first", e);
+        }
+    }
+
+    private static MethodType type(String returnClass, Class<?>... parameters) {
+        return MethodType.methodType(project(returnClass), parameters);
+    }
+
+    private static MethodHandle findStatic(String owner, String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(project(owner), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner + "." + name + type, e);
+        }
+    }
+
+    private static MethodHandle findConstructor(String owner, MethodType type) {
+        try {
+            return LOOKUP.findConstructor(project(owner), type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner + type, e);
+        }
+    }
+
+    private static MethodHandle findVirtual(String owner, String name, MethodType type) {
+        try {
+            return LOOKUP.findVirtual(project(owner), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner + "." + name + type, e);
+        }
+    }
+
+    /**
+     * an LRUCaching with maximumSize entries
+     */
+    static Object newCache(long maximumSize) throws Throwable {
+        Object builder = NEW_CACHE_BUILDER.invoke();
+        return BUILD.invoke(MAXIMUM_SIZE.invoke(builder, maximumSize));
+    }
+
+    static Object cacheGet(Object cache, Object key) throws Throwable {
+        return (Object) CACHE_GET.invokeExact(cache, key);
+    }
+
+    static void cachePut(Object cache, Object key, Object value) throws Throwable {
+        CACHE_PUT.invokeExact(cache, key, value);
+    }
+
+    static void extractJSONFields(JSONObject json, String newline, StringBuffer sb, String... keys) throws Throwable {
+        EXTRACT_JSON_FIELDS.invokeExact(json, newline, sb, keys);
+    }
+
+    static JSONObject getName(JSONObject json) throws Throwable {
+        return (JSONObject) GET_NAME.invokeExact(json);
+    }
+
+    /**
+     * a JsonFieldExtractor of the keys
+     */
+    static Object newFieldExtractor(String... keys) throws Throwable {
+        return (Object) NEW_FIELD_EXTRACTOR.invokeExact(keys);
+    }
+
+    static void extract(Object extractor, Reader json, String newline, Appendable out) throws Throwable {
+        EXTRACT.invokeExact(extractor, json, newline, out);
+    }
+
+    /**
+     * an AuctionEngine, see its constructor
+     */
+    static Object newAuctionEngine(int topK, long reservePrice, int expectedAuctions, int concurrencyLevel) throws Throwable {
+        return (Object) NEW_AUCTION_ENGINE.invokeExact(topK, reservePrice, expectedAuctions, concurrencyLevel);
+    }
+
+    static boolean bid(Object engine, long auctionId, long bidder, long amount) throws Throwable {
+        return (boolean) BID.invokeExact(engine, auctionId, bidder, amount);
+    }
+
+    /**
+     * the client of HttpMTLSClient.getInstance().getHttpClient(), the java properties of HttpMTLSClient must be
+     * set before the first call, they are read when the class is loaded
+     */
+    static CloseableHttpClient httpClient() throws Throwable {
+        Class<?> client = project("HttpMTLSClient");
+        Object instance = LOOKUP.findStatic(client, "getInstance", MethodType.methodType(client)).invoke();
+        return (CloseableHttpClient) LOOKUP.findVirtual(client, "getHttpClient", MethodType.methodType(CloseableHttpClient.class))
+                .invoke(instance);
+    }
+
+    /**
+     * a started MTLSEchoServer on a free port, with keystores generated in the directory
+     */
+    static Object startEchoServer(File directory, String password) throws Throwable {
+        Class<?> server = project("MTLSEchoServer");
+        LOOKUP.findStatic(server, "generateKeyStores", MethodType.methodType(void.class, File.class, String.class))
+                .invoke(directory, password);
+        Object instance = LOOKUP.findConstructor(server, MethodType.methodType(void.class, int.class, File.class, String.class))
+                .invoke(0, directory, password);
+        return LOOKUP.findVirtual(server, "start", MethodType.methodType(server)).invoke(instance);
+    }
+
+    static String echoServerUrl(Object server) throws Throwable {
+        return (String) LOOKUP.findVirtual(server.getClass(), "getUrl", MethodType.methodType(String.class)).invoke(server);
+    }
+
+    static void stopEchoServer(Object server) throws Throwable {
+        LOOKUP.findVirtual(server.getClass(), "stop", MethodType.methodType(void.class)).invoke(server);
+    }
+}
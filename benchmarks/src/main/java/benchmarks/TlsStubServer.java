@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The project's MTLSEchoServer for the client benchmarks, with its keystores in a temporary directory, answering
+ * every GET with a fixed body.
+ *
+ * The keystores are made by MTLSEchoServer.generateKeyStores(), password "changeit":
+ *     client.p12         key of the client
+ *     trust.p12          the server certificate, truststore of the client
+ */
+final class TlsStubServer implements AutoCloseable {
+    static final String PASSWORD = "changeit";
+
+    private final Path directory;
+    private final Object server;
+    private final int bodyBytes;
+
+    TlsStubServer(int bodyBytes) throws Throwable {
+        this.bodyBytes = bodyBytes;
+        directory = Files.createTempDirectory("tls-stub");
+        server = ProjectClasses.startEchoServer(directory.toFile(), PASSWORD);
+    }
+
+    String url() throws Throwable {
+        return ProjectClasses.echoServerUrl(server) + "?bytes=" + bodyBytes;
+    }
+
+    Path keyStore(String name) {
+        return directory.resolve(name);
+    }
+
+    /**
+     * the java properties HttpMTLSClient reads its keystores from
+     */
+    void configureHttpMTLSClient() {
+        System.setProperty("CLIENT_KEYSTORE_PATH", keyStore("client.p12").toString());
+        System.setProperty("CLIENT_KEYSTORE_PASSWORD", PASSWORD);
+        System.setProperty("SERVER_TRUSTSTORE_PATH", keyStore("trust.p12").toString());
+        System.setProperty("SERVER_TRUSTSTORE_PASSWORD", PASSWORD);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ProjectClasses.stopEchoServer(server);
+        } catch (Throwable e) {
+            throw new IOException("stop of " + server + " failed", e);
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
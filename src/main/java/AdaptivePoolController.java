@@ -0,0 +1,336 @@
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Grow and shrink the per route limits of a PoolingHttpClientConnectionManager with the traffic.
+ *
+ * The controller is a connection manager itself, it delegates to the pool and measures per route:
+ *     lease wait    time a request waits for a pooled connection
+ *     hold time     time a request keeps its connection, i.e. server latency plus reading the response
+ *     in use        number of leased connections, and its peak since the last adjustment
+ * Every interval it reads the pending count of each route from the pool, then
+ *     grows maxPerRoute to the peak demand (in use + pending) when requests waited for a connection,
+ *         unless the hold time doubled against its baseline: more connections would only load a slow server more
+ *     shrinks maxPerRoute by half of the unused connections after quietIntervals intervals without waiting,
+ *         and closes connections idle for longer than idleTimeout
+ * maxPerRoute stays within [minPerRoute, maxPerRoute], maxTotal is the sum of the routes within [minTotal, maxTotal].
+ *
+ * sample usage:
+ *     AdaptivePoolController pool = new AdaptivePoolController(cm, 1, 32, 8, 128);
+ *     pool.start(250, TimeUnit.MILLISECONDS);
+ *     HttpClients.custom().setConnectionManager(pool)...
+ */
+public class AdaptivePoolController implements HttpClientConnectionManager {
+    private static final long WAIT_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final double SLOW_SERVER_FACTOR = 2.0;
+    private static final double BASELINE_WEIGHT = 0.1;   // EWMA weight of a new interval in the hold time baseline
+
+    private final PoolingHttpClientConnectionManager cm;
+    private final int minPerRoute;
+    private final int maxPerRoute;
+    private final int minTotal;
+    private final int maxTotal;
+    private int quietIntervals = 8;
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private ScheduledExecutorService scheduler = null;
+
+    private final Map<HttpRoute, RouteStats> routes = new ConcurrentHashMap<HttpRoute, RouteStats>();
+    // connection to its lease, the pool hands out a new proxy object on every lease
+    private final Map<HttpClientConnection, Lease> leases = new ConcurrentHashMap<HttpClientConnection, Lease>();
+    private final LongAdder grows = new LongAdder();
+    private final LongAdder shrinks = new LongAdder();
+
+    private static final class Lease {
+        final RouteStats stats;
+        final long start;
+
+        Lease(RouteStats stats, long start) {
+            this.stats = stats;
+            this.start = start;
+        }
+    }
+
+    private static final class RouteStats {
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicInteger peakInUse = new AtomicInteger();
+        final LongAdder leases = new LongAdder();
+        final LongAdder leaseWaitNanos = new LongAdder();
+        final LongAdder slowLeases = new LongAdder();
+        final LongAdder holds = new LongAdder();
+        final LongAdder holdNanos = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        // only touched by the controller
+        double baselineHoldNanos = 0;
+        int quiet = 0;
+        double lastLeaseWaitMs = 0;
+        double lastHoldMs = 0;
+
+        void leased(long waitNanos) {
+            leases.increment();
+            leaseWaitNanos.add(waitNanos);
+            int now = inUse.incrementAndGet();
+            peakInUse.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    /**
+     * @param cm            the pool, its current limits are kept until the first adjustment
+     * @param minPerRoute   lower bound of maxPerRoute, the pool size when traffic is quiet
+     * @param maxPerRoute   upper bound of maxPerRoute
+     * @param minTotal      lower bound of maxTotal
+     * @param maxTotal      upper bound of maxTotal
+     */
+    public AdaptivePoolController(PoolingHttpClientConnectionManager cm, int minPerRoute, int maxPerRoute,
+                                  int minTotal, int maxTotal) {
+        if (minPerRoute < 1 || maxPerRoute < minPerRoute || minTotal < 1 || maxTotal < minTotal) {
+            throw new IllegalArgumentException("bad pool bounds: perRoute [" + minPerRoute + ", " + maxPerRoute
+                    + "], total [" + minTotal + ", " + maxTotal + "]");
+        }
+        this.cm = cm;
+        this.minPerRoute = minPerRoute;
+        this.maxPerRoute = maxPerRoute;
+        this.minTotal = minTotal;
+        this.maxTotal = maxTotal;
+    }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return cm;
+    }
+
+    /**
+     * the most connections a route can get
+     */
+    public int getMaxPerRouteLimit() {
+        return maxPerRoute;
+    }
+
+    /**
+     * the most connections the pool can get
+     */
+    public int getMaxTotalLimit() {
+        return maxTotal;
+    }
+
+    /**
+     * number of intervals without lease waits before the pool of a route shrinks, 8 by default
+     */
+    public void setQuietIntervals(int quietIntervals) {
+        this.quietIntervals = quietIntervals;
+    }
+
+    /**
+     * connections idle for longer than this are closed, 30 seconds by default.
+     * keep it at least as long as the keep-alive, or warm connections are closed before they are reused.
+     */
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * adjust the pool every interval, on a daemon thread
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-controller");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                adjust();
+            } catch (RuntimeException e) {
+                HttpMTLSClient.log("Connection pool adjustment failed: " + e);
+            }
+        }, interval, interval, unit);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    private RouteStats statsOf(HttpRoute route) {
+        return routes.computeIfAbsent(route, r -> new RouteStats());
+    }
+
+    /**
+     * one control step, called by the scheduler
+     */
+    synchronized void adjust() {
+        int total = 0;
+        for (Map.Entry<HttpRoute, RouteStats> e : routes.entrySet()) {
+            HttpRoute route = e.getKey();
+            RouteStats s = e.getValue();
+            PoolStats pool = cm.getStats(route);
+            int current = cm.getMaxPerRoute(route);
+            int inUse = s.inUse.get();
+            int peak = Math.max(s.peakInUse.getAndSet(inUse), inUse);
+            long leases = s.leases.sumThenReset();
+            long waitNanos = s.leaseWaitNanos.sumThenReset();
+            long slowLeases = s.slowLeases.sumThenReset();
+            long timeouts = s.timeouts.sumThenReset();
+            long holds = s.holds.sumThenReset();
+            long holdNanos = s.holdNanos.sumThenReset();
+            double avgHold = holds == 0 ? 0 : (double) holdNanos / holds;
+            s.lastLeaseWaitMs = leases == 0 ? 0 : waitNanos / 1e6 / leases;
+            s.lastHoldMs = avgHold / 1e6;
+            boolean slowServer = s.baselineHoldNanos > 0 && avgHold > s.baselineHoldNanos * SLOW_SERVER_FACTOR;
+            if (avgHold > 0) {
+                s.baselineHoldNanos = s.baselineHoldNanos == 0 ? avgHold
+                        : Math.min(avgHold, s.baselineHoldNanos + BASELINE_WEIGHT * (avgHold - s.baselineHoldNanos));
+            }
+
+            int target = current;
+            boolean waited = pool.getPending() > 0 || slowLeases > 0 || timeouts > 0;
+            if (waited) {
+                s.quiet = 0;
+                if (!slowServer) {
+                    // demand is what is leased plus what is waiting, grow at least by one
+                    target = Math.max(current + 1, peak + pool.getPending());
+                }
+            } else if (++s.quiet >= quietIntervals) {
+                s.quiet = 0;
+                target = current - Math.max(0, (current - peak) / 2);
+            }
+            target = Math.max(minPerRoute, Math.min(maxPerRoute, target));
+            if (target != current) {
+                cm.setMaxPerRoute(route, target);
+                (target > current ? grows : shrinks).increment();
+                HttpMTLSClient.log("Connection pool " + route + " maxPerRoute " + current + " -> " + target
+                        + ", peak in use " + peak + ", pending " + pool.getPending()
+                        + ", avg lease wait " + String.format("%.2f", s.lastLeaseWaitMs) + " ms"
+                        + ", avg hold " + String.format("%.2f", s.lastHoldMs) + " ms" + (slowServer ? " (slow server)" : ""));
+            }
+            total += target;
+        }
+        int totalTarget = Math.max(minTotal, Math.min(maxTotal, total));
+        if (totalTarget != cm.getMaxTotal()) {
+            cm.setMaxTotal(totalTarget);
+        }
+        // the pool closes surplus connections only when a route leases again, idle ones go here
+        cm.closeExpiredConnections();
+        cm.closeIdleConnections(idleTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * limits and measurements of the last interval, per route
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("total", cm.getTotalStats().toString());
+        stats.put("grows", grows.sum());
+        stats.put("shrinks", shrinks.sum());
+        JSONObject perRoute = new JSONObject();
+        for (Map.Entry<HttpRoute, RouteStats> e : routes.entrySet()) {
+            RouteStats s = e.getValue();
+            PoolStats pool = cm.getStats(e.getKey());
+            perRoute.put(e.getKey().toString(), new JSONObject()
+                    .put("maxPerRoute", pool.getMax())
+                    .put("leased", pool.getLeased())
+                    .put("available", pool.getAvailable())
+                    .put("pending", pool.getPending())
+                    .put("avgLeaseWaitMs", s.lastLeaseWaitMs)
+                    .put("avgHoldMs", s.lastHoldMs)
+                    .put("baselineHoldMs", s.baselineHoldNanos / 1e6));
+        }
+        stats.put("routes", perRoute);
+        return stats;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = cm.requestConnection(route, state);
+        RouteStats stats = statsOf(route);
+        long requested = System.nanoTime();
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                HttpClientConnection conn;
+                try {
+                    conn = request.get(timeout, unit);
+                } catch (ConnectionPoolTimeoutException e) {
+                    stats.timeouts.increment();
+                    throw e;
+                }
+                long now = System.nanoTime();
+                long wait = now - requested;
+                stats.leased(wait);
+                if (wait > WAIT_THRESHOLD_NANOS) {
+                    stats.slowLeases.increment();
+                }
+                leases.put(conn, new Lease(stats, now));
+                return conn;
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        Lease lease = leases.remove(conn);
+        if (lease != null) {
+            lease.stats.inUse.decrementAndGet();
+            lease.stats.holds.increment();
+            lease.stats.holdNanos.add(System.nanoTime() - lease.start);
+        }
+        cm.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        cm.connect(conn, route, connectTimeout, context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        cm.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        cm.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        cm.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        cm.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        stop();
+        cm.shutdown();
+    }
+}
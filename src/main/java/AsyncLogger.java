@@ -0,0 +1,382 @@
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger: callers put a record into a lock-free ring buffer and return, one background thread
+ * formats the records and writes them.
+ *
+ * - the level is checked before anything else, a disabled call costs a field read
+ * - the caller keeps only the level, time, thread name, message and arguments, "{}" in the message is
+ *   replaced by the arguments on the writer thread, a message logged without arguments is written as is
+ * - the writer formats the date and time once per second and reuses it
+ * - the caller line number costs a stack walk, it is only taken with LOG_CALLER=true
+ * - when the buffer is full a record is dropped (DROP) or the caller waits for room (BLOCK),
+ *   dropped records are counted and reported in the output
+ *
+ * The ring buffer is a bounded multi-producer single-consumer queue: producers claim a slot with a CAS
+ * on the tail, and publish it by setting its sequence, the writer reads slots in order.
+ *
+ * java properties: LOG_LEVEL (INFO), LOG_BUFFER_SIZE (8192), LOG_FULL_POLICY (DROP), LOG_CALLER (false)
+ *
+ * sample usage:
+ *     private static final AsyncLogger LOG = AsyncLogger.getInstance();
+ *     LOG.debug("set keep-alive: {}", value);
+ */
+public final class AsyncLogger {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    public enum FullPolicy { DROP, BLOCK }
+
+    private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private static class DefaultLoggerHolder {
+        static final AsyncLogger DEFAULT_LOGGER = new AsyncLogger(System.out,
+                Level.valueOf(System.getProperty("LOG_LEVEL", "INFO").toUpperCase()),
+                Integer.getInteger("LOG_BUFFER_SIZE", 8192),
+                FullPolicy.valueOf(System.getProperty("LOG_FULL_POLICY", "DROP").toUpperCase()),
+                Boolean.getBoolean("LOG_CALLER"));
+    }
+
+    /**
+     * the logger on System.out, configured by the java properties
+     */
+    public static AsyncLogger getInstance() {
+        return DefaultLoggerHolder.DEFAULT_LOGGER;
+    }
+
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String thread;
+        int line;
+        String message;
+        int args;           // number of arguments, a message without any is not a format
+        Object arg1;
+        Object arg2;
+        Throwable error;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // written only by the writer thread
+    private volatile long head = 0;
+    private final FullPolicy fullPolicy;
+    private final boolean callerInfo;
+    private volatile Level level;
+    private volatile boolean closed = false;
+
+    private final PrintWriter out;
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread writer;
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedSecondText = "";
+
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private long reportedDropped = 0;
+
+    /**
+     * @param bufferSize   records in the ring buffer, rounded up to a power of 2
+     * @param callerInfo   add the line number of the caller, costs a stack walk per record
+     */
+    public AsyncLogger(OutputStream stream, Level level, int bufferSize, FullPolicy fullPolicy, boolean callerInfo) {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.mask = capacity - 1;
+        this.level = level;
+        this.fullPolicy = fullPolicy;
+        this.callerInfo = callerInfo;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 16 * 1024));
+        this.writer = new Thread(this::run, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "async-logger-shutdown"));
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0 && level != Level.OFF;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, message, 0, null, null, null);
+        }
+    }
+
+    public void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, format, 1, arg, null, null);
+        }
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, message, 0, null, null, null);
+        }
+    }
+
+    public void info(String format, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, 1, arg, null, null);
+        }
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, message, 0, null, null, null);
+        }
+    }
+
+    public void warn(String message, Throwable error) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, message, 0, null, null, error);
+        }
+    }
+
+    public void error(String message, Throwable error) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, message, 0, null, null, error);
+        }
+    }
+
+    public void log(Level level, String format, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            publish(level, format, 2, arg1, arg2, null);
+        }
+    }
+
+    private void publish(Level level, String message, int args, Object arg1, Object arg2, Throwable error) {
+        if (closed) {
+            return;
+        }
+        int callerLine = callerInfo ? callerLine() : 0;
+        long pos = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) pos & mask];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // full, the writer has not freed the slot of the previous round yet
+                if (fullPolicy == FullPolicy.DROP) {
+                    dropped.increment();
+                    return;
+                }
+                blocked.increment();
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(10000);
+                pos = tail.get();
+            } else {
+                pos = tail.get();
+            }
+        }
+        slot.level = level;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.line = callerLine;
+        slot.message = message;
+        slot.args = args;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.error = error;
+        slot.sequence = pos + 1;
+        logged.increment();
+    }
+
+    /**
+     * line number of the first frame outside the logger and HttpMTLSClient.log()
+     */
+    private static int callerLine() {
+        return StackWalker.getInstance().walk(frames -> frames
+                .filter(f -> !f.getClassName().equals(AsyncLogger.class.getName())
+                        && !(f.getMethodName().equals("log") && f.getClassName().equals(HttpMTLSClient.class.getName())))
+                .findFirst()
+                .map(StackWalker.StackFrame::getLineNumber)
+                .orElse(0));
+    }
+
+    private void run() {
+        while (true) {
+            boolean wrote = drain();
+            if (wrote) {
+                out.flush();
+            } else if (closed) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * write the published records, returns false when there were none
+     */
+    private boolean drain() {
+        boolean wrote = false;
+        long pos = head;
+        while (true) {
+            Slot slot = slots[(int) pos & mask];
+            if (slot.sequence != pos + 1) {
+                break;
+            }
+            try {
+                format(slot);
+                out.append(line).append('\n');
+                if (slot.error != null) {
+                    slot.error.printStackTrace(out);
+                }
+            } catch (RuntimeException e) {
+                // an argument whose toString() throws must not stop the writer, its slot is freed all the same
+                line.setLength(0);
+                appendTimestamp(line, slot.timeMillis).append(' ').append(slot.level.name())
+                        .append(" [").append(slot.thread).append("] log record not written: ").append(e);
+                out.append(line).append('\n');
+            }
+            slot.message = null;
+            slot.arg1 = null;
+            slot.arg2 = null;
+            slot.error = null;
+            slot.thread = null;
+            slot.sequence = pos + slots.length;
+            pos++;
+            head = pos;
+            wrote = true;
+        }
+        long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            line.setLength(0);
+            appendTimestamp(line, System.currentTimeMillis()).append(" WARN [async-logger] ")
+                    .append(droppedNow - reportedDropped).append(" log records dropped, the buffer was full");
+            out.append(line).append('\n');
+            reportedDropped = droppedNow;
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    /**
+     * "2024-01-31 12:00:00.123 INFO Line:123 [thread] message"
+     */
+    private void format(Slot slot) {
+        line.setLength(0);
+        appendTimestamp(line, slot.timeMillis).append(' ').append(slot.level.name());
+        if (slot.line > 0) {
+            line.append(" Line:").append(slot.line);
+        }
+        line.append(" [").append(slot.thread).append("] ");
+        String message = String.valueOf(slot.message);
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (argIndex < slot.args && (at = message.indexOf("{}", from)) >= 0) {
+            line.append(message, from, at).append(argIndex == 0 ? slot.arg1 : slot.arg2);
+            from = at + 2;
+            argIndex++;
+        }
+        line.append(message, from, message.length());
+    }
+
+    private StringBuilder appendTimestamp(StringBuilder text, long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedSecondText = SECONDS.format(Instant.ofEpochSecond(second));
+        }
+        int ms = Math.floorMod(millis, 1000);
+        text.append(cachedSecondText).append('.');
+        if (ms < 100) {
+            text.append('0');
+        }
+        if (ms < 10) {
+            text.append('0');
+        }
+        return text.append(ms);
+    }
+
+    /**
+     * wait until the records logged before the call are written
+     */
+    public void flush() {
+        long target = tail.get();
+        while (head < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000);
+        }
+    }
+
+    /**
+     * records logged and written, dropped when the buffer was full, and waits for room with BLOCK
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("level", level.name());
+        stats.put("logged", logged.sum());
+        stats.put("written", head);
+        stats.put("dropped", dropped.sum());
+        stats.put("blocked", blocked.sum());
+        stats.put("bufferSize", slots.length);
+        return stats;
+    }
+
+    /**
+     * write what is in the buffer and stop the writer, later records are ignored
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.flush();
+    }
+}
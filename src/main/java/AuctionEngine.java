@@ -0,0 +1,584 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Sealed-bid auctions, the many-bidder version of TestingCopilot.bidding(): bids (auction id, bidder, amount)
+ * come from any number of threads, an auction is closed with a first-price or second-price rule and its
+ * result is returned as data.
+ *
+ * An auction only keeps its top K bids, one per bidder: a bidder bidding again replaces their lower bid
+ * that is still in the top K. Ties are resolved by the bidder id, the lower id ranks first, so the result
+ * does not depend on the order in which the threads delivered the bids. Bids below the reserve price are
+ * rejected.
+ *
+ *     FIRST_PRICE    the winner pays their bid
+ *     SECOND_PRICE   the winner pays the second highest bid, or the reserve price for a single bidder
+ *
+ * As LongLRUCaching, there is no object per auction or per bid: each lock-striped segment keeps its
+ * auctions in parallel arrays (ids, bid counts, and K bidders and amounts per auction) with an
+ * open-addressing hash table of auction indexes. bid() does not allocate, a segment grows its arrays
+ * when it is full. An auction starts with its first bid, close() removes it, a later bid with the same id
+ * starts a new auction.
+ *
+ * sample usage:
+ *     AuctionEngine engine = new AuctionEngine(4);
+ *     engine.bid(auctionId, bidderId, amountInCents);
+ *     AuctionEngine.Result result = engine.close(auctionId, AuctionEngine.PriceRule.SECOND_PRICE);
+ */
+public class AuctionEngine {
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENTS = 1024;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int topK;
+    private final long reservePrice;
+
+    public enum PriceRule {
+        FIRST_PRICE,
+        SECOND_PRICE
+    }
+
+    /**
+     * the outcome of a closed auction, the top bids are ranked from the winner down
+     */
+    public static final class Result {
+        private long auctionId;
+        private PriceRule rule;
+        private long bids;
+        private long price;
+        private int ranked;
+        private final long[] bidders;
+        private final long[] amounts;
+
+        public Result(int topK) {
+            bidders = new long[topK];
+            amounts = new long[topK];
+        }
+
+        public long getAuctionId() {
+            return auctionId;
+        }
+
+        public PriceRule getRule() {
+            return rule;
+        }
+
+        /**
+         * bids received, including those replaced or out of the top K
+         */
+        public long getBids() {
+            return bids;
+        }
+
+        public long getWinner() {
+            return bidders[0];
+        }
+
+        public long getWinningBid() {
+            return amounts[0];
+        }
+
+        /**
+         * what the winner pays
+         */
+        public long getPrice() {
+            return price;
+        }
+
+        /**
+         * number of ranked bids, at most K
+         */
+        public int getRanked() {
+            return ranked;
+        }
+
+        public long getBidder(int rank) {
+            if (rank >= ranked) {
+                throw new IndexOutOfBoundsException("rank " + rank + " of " + ranked);
+            }
+            return bidders[rank];
+        }
+
+        public long getAmount(int rank) {
+            if (rank >= ranked) {
+                throw new IndexOutOfBoundsException("rank " + rank + " of " + ranked);
+            }
+            return amounts[rank];
+        }
+
+        public JSONObject toJSONObject() {
+            JSONObject json = new JSONObject();
+            json.put("auctionId", auctionId);
+            json.put("rule", rule);
+            json.put("bids", bids);
+            json.put("winner", getWinner());
+            json.put("winningBid", getWinningBid());
+            json.put("price", price);
+            JSONArray top = new JSONArray();
+            for (int i = 0; i < ranked; i++) {
+                top.put(new JSONObject().put("bidder", bidders[i]).put("amount", amounts[i]));
+            }
+            json.put("top", top);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return toJSONObject().toString();
+        }
+    }
+
+    /**
+     * @param topK              bids kept per auction, at least 2 for the second price
+     * @param reservePrice      lowest accepted bid, the second price of a single bidder
+     * @param expectedAuctions  auctions open at the same time, the segments grow beyond it
+     * @param concurrencyLevel  number of lock-striped segments, rounded up to a power of 2
+     */
+    public AuctionEngine(int topK, long reservePrice, int expectedAuctions, int concurrencyLevel) {
+        if (topK < 2) {
+            throw new IllegalArgumentException("topK must be at least 2: " + topK);
+        }
+        int wanted = Math.max(1, Math.min(concurrencyLevel, MAX_SEGMENTS));
+        int count = 1;
+        while (count < wanted) {
+            count <<= 1;
+        }
+        this.topK = topK;
+        this.reservePrice = reservePrice;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(topK, Math.max(MIN_SEGMENT_CAPACITY, expectedAuctions / count));
+        }
+        // the segment is picked with the high bits of the hash, the bucket with the low bits
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * no reserve price, java property AUCTION_SEGMENTS segments (4 per core by default)
+     */
+    public AuctionEngine(int topK) {
+        this(topK, 0, 1024, Integer.getInteger("AUCTION_SEGMENTS", Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    private Segment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * @return  true when the bid is in the top K of the auction, false when it is below the reserve price,
+     *          out of the top K, or not higher than the bid of the same bidder
+     */
+    public boolean bid(long auctionId, long bidder, long amount) {
+        int hash = LongLRUCaching.hash(auctionId);
+        Segment segment = segmentFor(hash);
+        if (amount < reservePrice) {
+            segment.belowReserve();
+            return false;
+        }
+        return segment.bid(auctionId, hash, bidder, amount);
+    }
+
+    /**
+     * close the auction and return its result, null when it has no bid
+     */
+    public Result close(long auctionId, PriceRule rule) {
+        Result result = new Result(topK);
+        return close(auctionId, rule, result) ? result : null;
+    }
+
+    /**
+     * close the auction into a reused result
+     *
+     * @return  false when the auction has no bid, the result is unchanged
+     */
+    public boolean close(long auctionId, PriceRule rule, Result into) {
+        if (into.bidders.length < topK) {
+            throw new IllegalArgumentException("result of " + into.bidders.length + " ranks for top " + topK);
+        }
+        int hash = LongLRUCaching.hash(auctionId);
+        if (!segmentFor(hash).close(auctionId, hash, into)) {
+            return false;
+        }
+        into.rule = rule;
+        if (rule == PriceRule.FIRST_PRICE) {
+            into.price = into.amounts[0];
+        } else {
+            into.price = into.ranked > 1 ? into.amounts[1] : reservePrice;
+        }
+        return true;
+    }
+
+    /**
+     * close every open auction, the results are passed one by one in a reused Result: copy what is kept
+     *
+     * @return  the number of auctions closed
+     */
+    public long closeAll(PriceRule rule, Consumer<Result> results) {
+        Result result = new Result(topK);
+        long closed = 0;
+        for (Segment segment : segments) {
+            for (long auctionId : segment.auctionIds()) {
+                if (close(auctionId, rule, result)) {
+                    results.accept(result);
+                    closed++;
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * open auctions
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * return a JSON object for bids, ranked and rejected bids, open and closed auctions.
+     */
+    public JSONObject getStats() {
+        long bids = 0;
+        long ranked = 0;
+        long belowReserve = 0;
+        long closed = 0;
+        int open = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bids += segment.bids;
+                ranked += segment.ranked;
+                belowReserve += segment.belowReserve;
+                closed += segment.closed;
+                open += segment.size;
+            }
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("bids", bids + belowReserve);
+        stats.put("ranked", ranked);
+        stats.put("belowReserve", belowReserve);
+        stats.put("openAuctions", open);
+        stats.put("closedAuctions", closed);
+        stats.put("topK", topK);
+        stats.put("reservePrice", reservePrice);
+        stats.put("segments", segments.length);
+        return stats;
+    }
+
+    /**
+     * one lock-striped part of the auctions.
+     * auction index 0 is unused, so that 0 is an empty bucket of table[]. free indexes are chained through next[].
+     * the top bids of auction e are at [e * topK, e * topK + filled[e]) of bidders[] and amounts[], best first.
+     */
+    private static final class Segment {
+        final int topK;
+        int capacity;
+        long[] ids;
+        long[] counts;
+        int[] filled;
+        int[] next;
+        long[] bidders;
+        long[] amounts;
+        int[] table;
+        int tableMask;
+        int size = 0;
+        int freeHead;
+        // stats, guarded by the segment lock as the rest
+        long bids = 0;
+        long ranked = 0;
+        long belowReserve = 0;
+        long closed = 0;
+
+        Segment(int topK, int capacity) {
+            this.topK = topK;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.capacity = capacity;
+            ids = new long[capacity + 1];
+            counts = new long[capacity + 1];
+            filled = new int[capacity + 1];
+            next = new int[capacity + 1];
+            bidders = new long[(capacity + 1) * topK];
+            amounts = new long[(capacity + 1) * topK];
+            // load factor of at most 0.5 keeps the probe sequences short
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            table = new int[tableSize];
+            tableMask = tableSize - 1;
+            for (int i = 1; i < capacity; i++) {
+                next[i] = i + 1;
+            }
+            next[capacity] = 0;
+            freeHead = 1;
+        }
+
+        /**
+         * double the capacity, the auctions keep their indexes
+         */
+        private void grow() {
+            long[] oldIds = ids;
+            long[] oldCounts = counts;
+            int[] oldFilled = filled;
+            long[] oldBidders = bidders;
+            long[] oldAmounts = amounts;
+            int oldCapacity = capacity;
+            allocate(capacity * 2);
+            System.arraycopy(oldIds, 0, ids, 0, oldIds.length);
+            System.arraycopy(oldCounts, 0, counts, 0, oldCounts.length);
+            System.arraycopy(oldFilled, 0, filled, 0, oldFilled.length);
+            System.arraycopy(oldBidders, 0, bidders, 0, oldBidders.length);
+            System.arraycopy(oldAmounts, 0, amounts, 0, oldAmounts.length);
+            // the old segment was full, all its indexes are used and the new ones are free
+            for (int e = 1; e <= oldCapacity; e++) {
+                int bucket = LongLRUCaching.hash(ids[e]) & tableMask;
+                while (table[bucket] != 0) {
+                    bucket = (bucket + 1) & tableMask;
+                }
+                table[bucket] = e;
+            }
+            freeHead = oldCapacity + 1;
+        }
+
+        /**
+         * bucket of the auction, or -1 when it is not open
+         */
+        int find(long auctionId, int hash) {
+            int bucket = hash & tableMask;
+            while (true) {
+                int e = table[bucket];
+                if (e == 0) {
+                    return -1;
+                }
+                if (ids[e] == auctionId) {
+                    return bucket;
+                }
+                bucket = (bucket + 1) & tableMask;
+            }
+        }
+
+        synchronized void belowReserve() {
+            belowReserve++;
+        }
+
+        synchronized boolean bid(long auctionId, int hash, long bidder, long amount) {
+            bids++;
+            int bucket = find(auctionId, hash);
+            int e;
+            if (bucket >= 0) {
+                e = table[bucket];
+            } else {
+                if (freeHead == 0) {
+                    grow();
+                }
+                e = freeHead;
+                freeHead = next[e];
+                ids[e] = auctionId;
+                counts[e] = 0;
+                filled[e] = 0;
+                bucket = hash & tableMask;
+                while (table[bucket] != 0) {
+                    bucket = (bucket + 1) & tableMask;
+                }
+                table[bucket] = e;
+                size++;
+            }
+            counts[e]++;
+            int base = e * topK;
+            int n = filled[e];
+            // one bid per bidder: a higher bid replaces their ranked bid, a lower one is ignored
+            for (int i = 0; i < n; i++) {
+                if (bidders[base + i] == bidder) {
+                    if (amount <= amounts[base + i]) {
+                        return false;
+                    }
+                    System.arraycopy(bidders, base + i + 1, bidders, base + i, n - i - 1);
+                    System.arraycopy(amounts, base + i + 1, amounts, base + i, n - i - 1);
+                    n--;
+                    break;
+                }
+            }
+            int rank = n;
+            while (rank > 0 && ranksBefore(amount, bidder, amounts[base + rank - 1], bidders[base + rank - 1])) {
+                rank--;
+            }
+            if (rank == topK) {
+                filled[e] = n;
+                return false;
+            }
+            int last = Math.min(n, topK - 1);
+            System.arraycopy(bidders, base + rank, bidders, base + rank + 1, last - rank);
+            System.arraycopy(amounts, base + rank, amounts, base + rank + 1, last - rank);
+            bidders[base + rank] = bidder;
+            amounts[base + rank] = amount;
+            filled[e] = last + 1;
+            ranked++;
+            return true;
+        }
+
+        /**
+         * the higher amount first, the lower bidder id on a tie
+         */
+        static boolean ranksBefore(long amount, long bidder, long otherAmount, long otherBidder) {
+            return amount > otherAmount || (amount == otherAmount && bidder < otherBidder);
+        }
+
+        synchronized boolean close(long auctionId, int hash, Result into) {
+            int bucket = find(auctionId, hash);
+            if (bucket < 0) {
+                return false;
+            }
+            int e = table[bucket];
+            int base = e * topK;
+            into.auctionId = auctionId;
+            into.bids = counts[e];
+            into.ranked = filled[e];
+            System.arraycopy(bidders, base, into.bidders, 0, filled[e]);
+            System.arraycopy(amounts, base, into.amounts, 0, filled[e]);
+            next[e] = freeHead;
+            freeHead = e;
+            size--;
+            closed++;
+            deleteBucket(bucket);
+            return true;
+        }
+
+        synchronized long[] auctionIds() {
+            long[] open = new long[size];
+            int n = 0;
+            for (int bucket = 0; bucket <= tableMask; bucket++) {
+                if (table[bucket] != 0) {
+                    open[n++] = ids[table[bucket]];
+                }
+            }
+            return open;
+        }
+
+        /**
+         * backward shift deletion, so linear probing needs no tombstones
+         */
+        void deleteBucket(int hole) {
+            table[hole] = 0;
+            int bucket = hole;
+            while (true) {
+                bucket = (bucket + 1) & tableMask;
+                int e = table[bucket];
+                if (e == 0) {
+                    return;
+                }
+                int home = LongLRUCaching.hash(ids[e]) & tableMask;
+                // move the entry into the hole, unless its home bucket lies cyclically in (hole, bucket]
+                boolean between = hole <= bucket ? (home > hole && home <= bucket) : (home > hole || home <= bucket);
+                if (!between) {
+                    table[hole] = e;
+                    table[bucket] = 0;
+                    hole = bucket;
+                }
+            }
+        }
+    }
+
+    /**
+     * MAIN to measure bids per second and the close-out latency with 1, 2, 4 ... threads up to the number of cores.
+     * each round: the threads bid on random auctions for the given seconds, then close all the auctions together,
+     * each thread its share of the auction ids.
+     *
+     * @param args argv[0] is the number of auctions (1000000), argv[1] the seconds of bidding per round (2)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int auctions = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2;
+        int cores = Runtime.getRuntime().availableProcessors();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        Result sample = new Result(4);
+        AuctionEngine demo = new AuctionEngine(4);
+        demo.bid(1, 10, 500);
+        demo.bid(1, 11, 700);
+        demo.bid(1, 12, 700);
+        demo.bid(1, 10, 650);
+        demo.close(1, PriceRule.SECOND_PRICE, sample);
+        System.out.println("sample second-price result: " + sample);
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            AuctionEngine engine = new AuctionEngine(4, 0, auctions, Integer.getInteger("AUCTION_SEGMENTS", cores * 4));
+            long[] bidCounts = new long[threads];
+            long[] allocated = new long[threads];
+            long deadline = System.nanoTime() + seconds * 1000000000L;
+            Thread[] bidders = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                bidders[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long before = threadBean.getCurrentThreadAllocatedBytes();
+                    long n = 0;
+                    while ((n & 1023) != 0 || System.nanoTime() < deadline) {
+                        engine.bid(random.nextInt(auctions), random.nextInt(1000000), random.nextInt(1, 100000));
+                        n++;
+                    }
+                    allocated[id] = threadBean.getCurrentThreadAllocatedBytes() - before;
+                    bidCounts[id] = n;
+                });
+                bidders[t].start();
+            }
+            for (Thread t : bidders) {
+                t.join();
+            }
+            long bidNanos = System.nanoTime() - start;
+            long totalBids = Arrays.stream(bidCounts).sum();
+
+            // close-out: each thread closes the auction ids congruent to its number, latency per close in nanos
+            long[][] histograms = new long[threads][CacheAnalytics.HISTOGRAM_BUCKETS];
+            CountDownLatch ready = new CountDownLatch(threads);
+            Thread[] closers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                int stride = threads;
+                closers[t] = new Thread(() -> {
+                    Result result = new Result(4);
+                    ready.countDown();
+                    for (long auctionId = id; auctionId < auctions; auctionId += stride) {
+                        long begin = System.nanoTime();
+                        engine.close(auctionId, PriceRule.SECOND_PRICE, result);
+                        histograms[id][CacheAnalytics.bucketOf(System.nanoTime() - begin)]++;
+                    }
+                });
+            }
+            start = System.nanoTime();
+            for (Thread t : closers) {
+                t.start();
+            }
+            for (Thread t : closers) {
+                t.join();
+            }
+            long closeNanos = System.nanoTime() - start;
+            long[] merged = new long[CacheAnalytics.HISTOGRAM_BUCKETS];
+            for (long[] histogram : histograms) {
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += histogram[i];
+                }
+            }
+            System.out.println(threads + " threads: " + (totalBids * 1000000000L / bidNanos) + " bids/sec, "
+                    + (Arrays.stream(allocated).sum() / Math.max(1, totalBids)) + " bytes/bid; close-out of "
+                    + auctions + " auctions in " + (closeNanos / 1000000) + " ms, per close p50 "
+                    + CacheAnalytics.percentile(merged, 0.5) + " ns, p99 " + CacheAnalytics.percentile(merged, 0.99)
+                    + " ns, p999 " + CacheAnalytics.percentile(merged, 0.999) + " ns; open left " + engine.size());
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run a list of requests with the blocking client, at most concurrencyLimit at a time.
+ *
+ * One dispatcher thread per batch takes a permit for the batch and one for the route (host) of the request
+ * before it hands the request to the executor, so there are never more requests in flight than the most
+ * connections the pool can give a route. A batch of 10k requests holds at most concurrencyLimit threads.
+ *
+ * With a fixed pool that limit is the pool's, no thread waits in the pool. With an AdaptivePoolController it is the
+ * controller's ceiling, the current per route limit is lower until the controller grows it: requests above it wait
+ * in the pool, which is how the controller sees the demand, and fail with "Timeout waiting for connection from pool"
+ * if the connection request timeout passes first.
+ *
+ * Results come back in completion order, iterate the batch to take them as they arrive.
+ * Every request gets exactly one result: a response, an error, or a CancellationException/TimeoutException
+ * for requests stopped by cancel(), by the deadline, or by the first failure when failFast is set.
+ *
+ * sample usage:
+ *     BulkRequestExecutor.Batch batch = HttpMTLSClient.getInstance().executeAll(requests, 50);
+ *     for (BulkRequestExecutor.Result result : batch) {
+ *         ...
+ *     }
+ */
+public class BulkRequestExecutor {
+    private final CloseableHttpClient client;
+    private final ExecutorService executor;
+    private final int maxPerRoute;
+    private final int maxTotal;
+
+    /**
+     * outcome of one request
+     */
+    public static final class Result {
+        private final int index;
+        private final HttpUriRequest request;
+        private final int statusCode;
+        private final byte[] body;
+        private final Exception error;
+        private final long elapsedNanos;
+
+        Result(int index, HttpUriRequest request, int statusCode, byte[] body, Exception error, long elapsedNanos) {
+            this.index = index;
+            this.request = request;
+            this.statusCode = statusCode;
+            this.body = body;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** position of the request in the list given to executeAll */
+        public int getIndex() {
+            return index;
+        }
+
+        public HttpUriRequest getRequest() {
+            return request;
+        }
+
+        /** HTTP status, 0 when there is no response */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** a response that is not a server error */
+        public boolean isSuccess() {
+            return error == null && statusCode < 500;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + index + "] " + request.getRequestLine() + " -> "
+                    + (error != null ? error.toString() : String.valueOf(statusCode)) + " in " + elapsedNanos / 1000000 + " ms";
+        }
+    }
+
+    /**
+     * @param client       the blocking client
+     * @param executor     runs the requests, see newDefaultExecutor()
+     * @param maxPerRoute  the most connections the pool can give one route, the adaptive ceiling when the pool
+     *                     is adaptive, caps the requests in flight per route
+     * @param maxTotal     the most connections the pool can have, caps the requests in flight
+     */
+    public BulkRequestExecutor(CloseableHttpClient client, ExecutorService executor, int maxPerRoute, int maxTotal) {
+        this.client = client;
+        this.executor = executor;
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * a virtual thread per task on JDK 21 and later, else a pool of platformThreads daemon threads.
+     * found by reflection, the code is compiled for JDK 17.
+     */
+    public static ExecutorService newDefaultExecutor(int platformThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(platformThreads, r -> {
+                Thread t = new Thread(r, "http-bulk-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * start the requests, and return at once
+     *
+     * @param concurrencyLimit  the most requests in flight, lowered to the pool limits
+     * @param timeout           deadline of the whole batch, requests still running then are aborted
+     * @param failFast          cancel the remaining requests after the first error or server error
+     */
+    public Batch executeAll(List<? extends HttpUriRequest> requests, int concurrencyLimit, long timeout, TimeUnit unit,
+                            boolean failFast) {
+        Batch batch = new Batch(requests, Math.max(1, Math.min(concurrencyLimit, maxTotal)),
+                System.nanoTime() + unit.toNanos(timeout), failFast);
+        Thread dispatcher = new Thread(batch::dispatch, "http-bulk-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        return batch;
+    }
+
+    /**
+     * the requests of one executeAll() call, iterate it to get the results as they complete
+     */
+    public final class Batch implements Iterable<Result> {
+        private final List<? extends HttpUriRequest> requests;
+        private final Semaphore permits;
+        private final int routeLimit;
+        private final Map<HttpHost, Semaphore> routePermits = new ConcurrentHashMap<HttpHost, Semaphore>();
+        private final long deadline;
+        private final boolean failFast;
+        private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+        private final Set<HttpUriRequest> inFlight = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final CountDownLatch done;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile Exception cancelCause = null;
+        private int taken = 0;
+
+        Batch(List<? extends HttpUriRequest> requests, int concurrencyLimit, long deadline, boolean failFast) {
+            this.requests = requests;
+            this.permits = new Semaphore(concurrencyLimit);
+            this.routeLimit = Math.min(concurrencyLimit, maxPerRoute);
+            this.deadline = deadline;
+            this.failFast = failFast;
+            this.done = new CountDownLatch(requests.size());
+        }
+
+        private void dispatch() {
+            int next = 0;
+            try {
+                for (; next < requests.size() && !cancelled.get(); next++) {
+                    HttpUriRequest request = requests.get(next);
+                    if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        cancel(new TimeoutException("batch deadline passed"));
+                        break;
+                    }
+                    Semaphore route = routePermitsOf(request);
+                    if (!route.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        permits.release();
+                        cancel(new TimeoutException("batch deadline passed"));
+                        break;
+                    }
+                    int index = next;
+                    try {
+                        executor.execute(() -> run(index, request, route));
+                    } catch (RejectedExecutionException e) {
+                        route.release();
+                        permits.release();
+                        complete(new Result(index, request, 0, null, e, 0));
+                        cancel(e);
+                        next++;
+                        break;
+                    }
+                }
+                // the requests never sent
+                for (; next < requests.size(); next++) {
+                    complete(new Result(next, requests.get(next), 0, null, cancelCause(), 0));
+                }
+                if (!done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    cancel(new TimeoutException("batch deadline passed"));
+                }
+            } catch (InterruptedException e) {
+                cancel(new CancellationException("dispatcher interrupted"));
+                for (; next < requests.size(); next++) {
+                    complete(new Result(next, requests.get(next), 0, null, cancelCause(), 0));
+                }
+            }
+        }
+
+        private Semaphore routePermitsOf(HttpUriRequest request) {
+            HttpHost host = URIUtils.extractHost(request.getURI());
+            return routePermits.computeIfAbsent(host, h -> new Semaphore(routeLimit));
+        }
+
+        private void run(int index, HttpUriRequest request, Semaphore route) {
+            long start = System.nanoTime();
+            Result result;
+            try {
+                inFlight.add(request);
+                try {
+                    // checked after the add, a cancel() in between would not have aborted this request
+                    if (cancelled.get()) {
+                        result = new Result(index, request, 0, null, cancelCause(), 0);
+                    } else {
+                        try (CloseableHttpResponse response = client.execute(request)) {
+                            byte[] body = response.getEntity() == null ? null : EntityUtils.toByteArray(response.getEntity());
+                            result = new Result(index, request, response.getStatusLine().getStatusCode(), body, null,
+                                    System.nanoTime() - start);
+                        } catch (Exception e) {
+                            // an aborted request fails with an IOException, report why it was aborted
+                            result = new Result(index, request, 0, null, cancelled.get() ? cancelCause() : e,
+                                    System.nanoTime() - start);
+                        }
+                    }
+                } finally {
+                    inFlight.remove(request);
+                }
+            } finally {
+                route.release();
+                permits.release();
+            }
+            if (!result.isSuccess() && !cancelled.get()) {
+                failures.incrementAndGet();
+                if (failFast) {
+                    cancel(new CancellationException("cancelled after failure of request " + index));
+                }
+            }
+            complete(result);
+        }
+
+        private void complete(Result result) {
+            results.add(result);
+            done.countDown();
+        }
+
+        private Exception cancelCause() {
+            Exception cause = cancelCause;
+            return cause != null ? cause : new CancellationException("batch cancelled");
+        }
+
+        /**
+         * stop sending requests and abort the requests in flight
+         */
+        public void cancel() {
+            cancel(new CancellationException("batch cancelled"));
+        }
+
+        private void cancel(Exception cause) {
+            if (cancelled.compareAndSet(false, true)) {
+                cancelCause = cause;
+                for (HttpUriRequest request : inFlight) {
+                    request.abort();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public int size() {
+            return requests.size();
+        }
+
+        /**
+         * requests that failed, not counting the ones cancelled
+         */
+        public int getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * wait until every request has its result, or the deadline
+         */
+        public boolean await() throws InterruptedException {
+            return done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) || done.getCount() == 0;
+        }
+
+        /**
+         * the next result in completion order, blocks until one is there
+         */
+        public synchronized Result take() throws InterruptedException {
+            if (taken == requests.size()) {
+                throw new NoSuchElementException("all " + taken + " results were taken");
+            }
+            Result result = results.take();
+            taken++;
+            return result;
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return new Iterator<Result>() {
+                @Override
+                public boolean hasNext() {
+                    synchronized (Batch.this) {
+                        return taken < requests.size();
+                    }
+                }
+
+                @Override
+                public Result next() {
+                    try {
+                        return take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("interrupted while waiting for a result");
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low overhead access analytics for LRUCaching, turned on with LRUCaching.Builder.recordAnalytics().
+ *
+ * Only sampled reads do any work, so the cost on get() is a random number and a hash check:
+ *  - one read in SAMPLE_RATE (temporal sampling) feeds the top-K hot keys (Space-Saving) and the hits ratio time windows
+ *  - keys whose hash falls in 1/KEY_SAMPLE_RATE of the hash space (spatial sampling, as in SHARDS) feed the
+ *    reuse distance histogram, which gives the LRU hits ratio a cache of another capacity would have
+ * One eviction in SAMPLE_RATE is sampled for the histogram of entry age at eviction,
+ * the eviction count itself is in LRUCaching.getStats().
+ *
+ * The samplers are split in stripes by key hash, each with its own lock, and merged by toJSON(): a key is always
+ * in the same stripe, so the top-K of the stripes together are the top-K of the cache, and a stripe's reuse
+ * distances are another spatial sample. The reuse distance counts keys, not weight, so a cache with a weigher
+ * has no what-if estimate.
+ */
+public class CacheAnalytics {
+    static final int SAMPLE_RATE = 128;
+    static final int KEY_SAMPLE_RATE = 64;
+    private static final int TOP_K = 128;
+    private static final int TOP_K_REPORTED = 10;
+    // hits ratio windows: 60 buckets of 5 seconds
+    private static final int WINDOW_BUCKETS = 60;
+    private static final long WINDOW_BUCKET_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // reuse distance clock of all the stripes, compacted when it wraps, a quarter of it for the sampled keys followed
+    private static final int CLOCK_SIZE = 1 << 16;
+    // log-linear histograms, 16 sub-buckets per power of 2
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int HISTOGRAM_BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long maximumWeight;
+    private final boolean weighted;
+    private final Stripe[] stripes;
+
+    // reads sampled with temporal sampling, times SAMPLE_RATE this estimates all reads
+    private final LongAdder temporalSamples = new LongAdder();
+
+    // sampled eviction ages
+    private final AtomicLongArray evictionAgeMs = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * the samplers of the keys of a stripe, guarded by the stripe
+     */
+    private static final class Stripe {
+        // top-K, Space-Saving counters in a min-heap on the count.
+        // topKeys maps a key to its heap index, indexes below 128 are cached Integers
+        final Map<Object, Integer> topKeys = new HashMap<Object, Integer>();
+        final Object[] heapKeys = new Object[TOP_K];
+        final long[] heapCounts = new long[TOP_K];
+        final long[] heapErrors = new long[TOP_K];
+
+        // sliding windows
+        final long[] windowEpochs = new long[WINDOW_BUCKETS];
+        final long[] windowHits = new long[WINDOW_BUCKETS];
+        final long[] windowMisses = new long[WINDOW_BUCKETS];
+
+        // reuse distance
+        // clock of the last read of each sampled key, in an int[1] so a read does not box an Integer
+        final Map<Object, int[]> lastAccess = new HashMap<Object, int[]>();
+        final int clockSize;
+        final int[] fenwick;
+        int clock = 0;
+        final long[] reuseDistances = new long[HISTOGRAM_BUCKETS];
+        long coldAccesses = 0;
+        long sampledAccesses = 0;
+
+        Stripe(int clockSize, boolean reuse) {
+            this.clockSize = clockSize;
+            this.fenwick = reuse ? new int[clockSize + 1] : null;
+        }
+
+        /**
+         * Space-Saving: a new key takes over the counter of the smallest key (the heap root),
+         * and inherits its count as error
+         */
+        void recordTopKey(Object key) {
+            Integer index = topKeys.get(key);
+            if (index != null) {
+                heapCounts[index]++;
+                siftDown(index);
+                return;
+            }
+            int size = topKeys.size();
+            if (size < TOP_K) {
+                heapKeys[size] = key;
+                heapCounts[size] = 1;
+                heapErrors[size] = 0;
+                topKeys.put(key, size);
+                siftUp(size);
+                return;
+            }
+            topKeys.remove(heapKeys[0]);
+            heapKeys[0] = key;
+            heapErrors[0] = heapCounts[0];
+            heapCounts[0]++;
+            topKeys.put(key, 0);
+            siftDown(0);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapCounts[parent] <= heapCounts[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            int size = topKeys.size();
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heapCounts[left] < heapCounts[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && heapCounts[right] < heapCounts[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Object k = heapKeys[i];
+            heapKeys[i] = heapKeys[j];
+            heapKeys[j] = k;
+            long c = heapCounts[i];
+            heapCounts[i] = heapCounts[j];
+            heapCounts[j] = c;
+            long e = heapErrors[i];
+            heapErrors[i] = heapErrors[j];
+            heapErrors[j] = e;
+            topKeys.put(heapKeys[i], i);
+            topKeys.put(heapKeys[j], j);
+        }
+
+        void recordWindow(boolean hit, long now) {
+            long epoch = Math.floorDiv(now, WINDOW_BUCKET_NANOS);
+            int i = (int) Math.floorMod(epoch, (long) WINDOW_BUCKETS);
+            if (windowEpochs[i] != epoch) {
+                windowEpochs[i] = epoch;
+                windowHits[i] = 0;
+                windowMisses[i] = 0;
+            }
+            if (hit) {
+                windowHits[i]++;
+            } else {
+                windowMisses[i]++;
+            }
+        }
+
+        /**
+         * reuse distance = number of distinct sampled keys of the stripe read since the last read of this key.
+         * the Fenwick tree has a 1 at the clock of each key's last read, so the distance is a range sum.
+         */
+        void recordReuse(Object key, int scale) {
+            if (clock == clockSize) {
+                compactClock();
+            }
+            clock++;
+            sampledAccesses++;
+            int[] previous = lastAccess.get(key);
+            if (previous != null) {
+                // every followed key has exactly one 1 in the tree, so the keys read after it are size - prefix sum
+                long distance = lastAccess.size() - sum(previous[0]);
+                // scale back from the sampled keys of the stripe to all keys
+                reuseDistances[bucketOf(distance * scale)]++;
+                add(previous[0], -1);
+                previous[0] = clock;
+            } else {
+                coldAccesses++;
+                lastAccess.put(key, new int[]{clock});
+            }
+            add(clock, 1);
+        }
+
+        /**
+         * renumber the last reads 1..n in order, dropping the oldest keys when too many are followed
+         */
+        private void compactClock() {
+            List<Map.Entry<Object, int[]>> entries = new ArrayList<Map.Entry<Object, int[]>>(lastAccess.entrySet());
+            entries.sort((a, b) -> Integer.compare(a.getValue()[0], b.getValue()[0]));
+            int drop = Math.max(0, entries.size() - clockSize / 4);
+            for (int i = 0; i < drop; i++) {
+                lastAccess.remove(entries.get(i).getKey());
+            }
+            Arrays.fill(fenwick, 0);
+            clock = 0;
+            for (int i = drop; i < entries.size(); i++) {
+                clock++;
+                entries.get(i).getValue()[0] = clock;
+                add(clock, 1);
+            }
+        }
+
+        private void add(int index, int delta) {
+            for (int i = index; i <= clockSize; i += i & (-i)) {
+                fenwick[i] += delta;
+            }
+        }
+
+        private int sum(int index) {
+            int sum = 0;
+            for (int i = index; i > 0; i -= i & (-i)) {
+                sum += fenwick[i];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * @param weighted  the cache has a weigher, maximumWeight is not a number of keys
+     */
+    CacheAnalytics(long maximumWeight, boolean weighted) {
+        this.maximumWeight = maximumWeight;
+        this.weighted = weighted;
+        // a power of 2 of at least the processors, up to 64
+        int count = Integer.highestOneBit(Math.max(1, Math.min(64, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(Math.max(1024, CLOCK_SIZE / count), !weighted);
+        }
+    }
+
+    /**
+     * called by LRUCaching.get(), returns at once for reads that are not sampled
+     */
+    void recordAccess(Object key, boolean hit, long now) {
+        int hash = spread(key.hashCode());
+        boolean temporal = ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+        boolean spatial = !weighted && (hash & (KEY_SAMPLE_RATE - 1)) == 0;
+        if (!temporal && !spatial) {
+            return;
+        }
+        if (temporal) {
+            temporalSamples.increment();
+        }
+        // high bits, the low ones pick the spatial sample
+        Stripe stripe = stripes[(hash >>> 16) & (stripes.length - 1)];
+        synchronized (stripe) {
+            if (temporal) {
+                stripe.recordTopKey(key);
+                stripe.recordWindow(hit, now);
+            }
+            if (spatial) {
+                stripe.recordReuse(key, KEY_SAMPLE_RATE * stripes.length);
+            }
+        }
+    }
+
+    /**
+     * called by LRUCaching when an entry is evicted for size, one eviction in SAMPLE_RATE is recorded
+     */
+    void recordEviction(long ageNanos) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+            evictionAgeMs.incrementAndGet(bucketOf(ageNanos / 1000000));
+        }
+    }
+
+    /**
+     * log-linear bucket of a non negative value
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * smallest value of a bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) | (sub << (exponent - SUB_BUCKET_BITS));
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x7feb352d;
+        h ^= (h >>> 15);
+        return h;
+    }
+
+    /**
+     * analytics as JSON, for LRUCaching.getStats()
+     */
+    JSONObject toJSON() {
+        DecimalFormat pct = new DecimalFormat("#.0000%");
+        JSONObject json = new JSONObject();
+        json.put("sampleRate", "1/" + SAMPLE_RATE);
+        json.put("keySampleRate", "1/" + KEY_SAMPLE_RATE);
+
+        // merge the stripes, each one under its own lock
+        List<Object[]> top = new ArrayList<Object[]>();
+        long epoch = Math.floorDiv(System.nanoTime(), WINDOW_BUCKET_NANOS);
+        int[] windowSeconds = {10, 60, 300};
+        long[] windowHits = new long[windowSeconds.length];
+        long[] windowMisses = new long[windowSeconds.length];
+        long[] reuseDistances = new long[HISTOGRAM_BUCKETS];
+        long sampledAccesses = 0;
+        long coldAccesses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int index : stripe.topKeys.values()) {
+                    top.add(new Object[]{stripe.heapKeys[index], stripe.heapCounts[index], stripe.heapErrors[index]});
+                }
+                for (int w = 0; w < windowSeconds.length; w++) {
+                    for (int i = 0; i < TimeUnit.SECONDS.toNanos(windowSeconds[w]) / WINDOW_BUCKET_NANOS; i++) {
+                        int b = (int) Math.floorMod(epoch - i, (long) WINDOW_BUCKETS);
+                        if (stripe.windowEpochs[b] == epoch - i) {
+                            windowHits[w] += stripe.windowHits[b];
+                            windowMisses[w] += stripe.windowMisses[b];
+                        }
+                    }
+                }
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    reuseDistances[i] += stripe.reuseDistances[i];
+                }
+                sampledAccesses += stripe.sampledAccesses;
+                coldAccesses += stripe.coldAccesses;
+            }
+        }
+
+        JSONArray hot = new JSONArray();
+        top.sort((a, b) -> Long.compare((Long) b[1], (Long) a[1]));
+        for (int i = 0; i < Math.min(TOP_K_REPORTED, top.size()); i++) {
+            Object[] counter = top.get(i);
+            hot.put(new JSONObject()
+                    .put("key", String.valueOf(counter[0]))
+                    .put("estimatedReads", (Long) counter[1] * SAMPLE_RATE)
+                    .put("maxError", (Long) counter[2] * SAMPLE_RATE));
+        }
+        json.put("hotKeys", hot);
+
+        JSONObject windows = new JSONObject();
+        for (int w = 0; w < windowSeconds.length; w++) {
+            long h = windowHits[w];
+            long m = windowMisses[w];
+            windows.put(windowSeconds[w] + "s", h + m == 0 ? "n/a" : pct.format((double) h / (h + m)));
+        }
+        json.put("hitsRatioWindows", windows);
+
+        JSONObject ages = new JSONObject();
+        long[] ageCounts = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            ageCounts[i] = evictionAgeMs.get(i);
+        }
+        for (double p : new double[]{0.5, 0.9, 0.99}) {
+            ages.put("p" + (int) (p * 100), percentile(ageCounts, p));
+        }
+        json.put("evictionAgeMs", ages);
+
+        if (weighted) {
+            return json;
+        }
+        JSONObject whatIf = new JSONObject();
+        // SHARDS-adj: a few hot keys make the spatial sample larger or smaller than 1/KEY_SAMPLE_RATE of the reads,
+        // the difference to the expected sample size is put on the shortest distance
+        long expected = temporalSamples.sum() * SAMPLE_RATE / KEY_SAMPLE_RATE;
+        long adjustment = expected - sampledAccesses;
+        for (double factor : new double[]{0.25, 0.5, 1, 2, 4, 8}) {
+            long capacity = (long) (maximumWeight * factor);
+            long reused = adjustment;
+            for (int i = 0; i < HISTOGRAM_BUCKETS && lowerBound(i) < capacity; i++) {
+                reused += reuseDistances[i];
+            }
+            double ratio = Math.max(0.0, Math.min(1.0, (double) reused / expected));
+            whatIf.put(String.valueOf(capacity), expected == 0 ? "n/a" : pct.format(ratio));
+        }
+        json.put("sampledReads", sampledAccesses);
+        json.put("coldReads", coldAccesses);
+        json.put("whatIfCapacityHitsRatio", whatIf);
+        return json;
+    }
+
+    /**
+     * lower bound of the bucket holding the p-th percentile
+     */
+    static long percentile(long[] counts, double p) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(counts.length - 1);
+    }
+}
@@ -0,0 +1,46 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * convert cache keys and values to bytes and back, for cache snapshots and for messages between nodes.
+ */
+public interface CacheCodec<T> {
+    byte[] encode(T value);
+
+    T decode(byte[] bytes);
+
+    /** UTF-8 strings */
+    CacheCodec<String> STRING = new CacheCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /** longs, as 8 bytes big endian */
+    CacheCodec<Long> LONG = new CacheCodec<Long>() {
+        @Override
+        public byte[] encode(Long value) {
+            long v = value;
+            byte[] bytes = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                bytes[i] = (byte) v;
+                v >>>= 8;
+            }
+            return bytes;
+        }
+
+        @Override
+        public Long decode(byte[] bytes) {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (bytes[i] & 0xff);
+            }
+            return v;
+        }
+    };
+}
@@ -0,0 +1,569 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * keep the LRUCaching of several nodes coherent: put() and remove() go through the bus,
+ * which applies them to the local cache and tells the other nodes to drop their copy of the key.
+ *
+ * Events are batched: the first event of a batch schedules a flush after maxBatchDelay,
+ * a batch that reaches maxBatchBytes is sent at once. A batch is one message of the transport.
+ *
+ * Batch layout, all numbers big endian:
+ *     header:  magic "LRUI", sender node id, batch sequence, time of the first event (epoch micros), event count
+ *     events:  type (PUT or REMOVE), micros after the first event, key length (2 bytes), key bytes
+ *
+ * The time of an event (epoch micros of the put() or remove() on the sender) is the version of the key.
+ * Each node remembers the newest version of its recently written and invalidated keys (CACHE_BUS_VERSIONS, 100000):
+ * an event older than the local put() of the same key is stale and ignored, it does not drop the newer value.
+ * A key whose version was forgotten is dropped by any event, that costs a miss but never keeps an old value.
+ * A put() older than an event already received for the key (clock skew) only publishes, it is not cached.
+ *
+ * Each sender numbers its batches. A receiver that sees a gap in the sequence (a datagram was lost)
+ * cannot know which keys it missed, so it clears its cache. A sender idle for SENDER_IDLE_MINUTES is forgotten,
+ * when it comes back with a sequence above 1 the receiver cannot tell what it missed and clears its cache too.
+ * Invalidation lag is the time from put()/remove() on the sender to the removal on the receiver,
+ * the clocks of the nodes are assumed to be in sync.
+ *
+ * The bus does not order a put() on one node against a load of the same key on another node:
+ * a node reading the backend while the invalidation is in flight can still cache the old value.
+ * Use expireAfterWrite to bound that window.
+ *
+ * sample usage:
+ *     CacheInvalidationBus.UdpTransport transport = new CacheInvalidationBus.UdpTransport(new InetSocketAddress(7700));
+ *     transport.addPeer(new InetSocketAddress("10.0.0.2", 7700));
+ *     CacheInvalidationBus<String, String> bus = new CacheInvalidationBus<>(cache, transport, CacheCodec.STRING);
+ *     bus.put("k", "v");      // other nodes drop "k"
+ */
+public class CacheInvalidationBus<K, V> {
+    private static final int MAGIC = 0x4c525549;   // "LRUI"
+    private static final int HEADER_SIZE = 32;
+    private static final int EVENT_HEADER_SIZE = 7;
+    private static final int MAX_KEY_BYTES = 0xffff;
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1400;   // one datagram within the usual MTU
+    public static final long DEFAULT_MAX_BATCH_DELAY_MICROS = 1000;
+    private static final int VERSIONS_SIZE = Integer.getInteger("CACHE_BUS_VERSIONS", 100000);
+    private static final long SENDER_IDLE_MICROS = TimeUnit.MINUTES.toMicros(Integer.getInteger("SENDER_IDLE_MINUTES", 10));
+
+    /**
+     * carries batches between the nodes. send() must not keep the buffer after it returns,
+     * the receiver gets a buffer that is only valid during the call.
+     */
+    public interface Transport {
+        void send(ByteBuffer batch) throws IOException;
+
+        void start(Consumer<ByteBuffer> receiver);
+
+        void close();
+    }
+
+    private final LRUCaching<K, V> cache;
+    private final Transport transport;
+    private final CacheCodec<K> keyCodec;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final int maxBatchBytes;
+    private final long maxBatchDelayMicros;
+    private final ScheduledExecutorService flusher;
+    // epoch micros from nanoTime, Instant.now() allocates and currentTimeMillis is too coarse
+    private final long originEpochMicros = System.currentTimeMillis() * 1000;
+    private final long originNanos = System.nanoTime();
+
+    // guarded by flushLock
+    private final Object flushLock = new Object();
+    private long batchSequence = 0;
+    // guarded by this
+    private ByteBuffer pending;
+    private long batchStartMicros;
+    private int batchEvents = 0;
+    private boolean flushScheduled = false;
+
+    // last batch sequence and time it was received, of each sender, guarded by the array
+    private final Map<Long, long[]> senders = new ConcurrentHashMap<Long, long[]>();
+    // newest known version (event micros) of the keys written or invalidated recently
+    private final LRUCaching<K, Long> versions = LRUCaching.<K, Long>newBuilder().maximumSize(VERSIONS_SIZE).build();
+
+    private final LongAdder publishedEvents = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder receivedBatches = new LongAdder();
+    private final LongAdder appliedEvents = new LongAdder();
+    private final LongAdder staleEvents = new LongAdder();
+    private final LongAdder stalePuts = new LongAdder();
+    private final LongAdder expiredSenders = new LongAdder();
+    private final LongAdder lostBatches = new LongAdder();
+    private final LongAdder fullInvalidations = new LongAdder();
+    private final LongAdder malformedBatches = new LongAdder();
+    private final AtomicLongArray lagMicros = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+    private volatile long maxLagMicros = 0;
+
+    public CacheInvalidationBus(LRUCaching<K, V> cache, Transport transport, CacheCodec<K> keyCodec) {
+        this(cache, transport, keyCodec, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_BATCH_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param maxBatchBytes   a batch is sent when it reaches this size, an event larger than that is sent alone
+     * @param maxBatchDelay   longest time an event waits for more events
+     */
+    public CacheInvalidationBus(LRUCaching<K, V> cache, Transport transport, CacheCodec<K> keyCodec,
+                                int maxBatchBytes, long maxBatchDelay, TimeUnit unit) {
+        if (maxBatchBytes < HEADER_SIZE + EVENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("maxBatchBytes is too small: " + maxBatchBytes);
+        }
+        this.cache = cache;
+        this.transport = transport;
+        this.keyCodec = keyCodec;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelayMicros = unit.toMicros(maxBatchDelay);
+        this.pending = ByteBuffer.allocate(maxBatchBytes);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-invalidation-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        long expiryPeriod = Math.max(1, SENDER_IDLE_MICROS / 10);
+        flusher.scheduleWithFixedDelay(this::expireSenders, expiryPeriod, expiryPeriod, TimeUnit.MICROSECONDS);
+        transport.start(this::receive);
+    }
+
+    public LRUCaching<K, V> getCache() {
+        return cache;
+    }
+
+    /**
+     * put into the local cache, the other nodes drop their copy of the key
+     */
+    public void put(K key, V value) {
+        byte[] keyBytes = encode(key);
+        long now = nowMicros();
+        Long known = versions.get(key);
+        if (known != null && known > now) {
+            stalePuts.increment();   // another node wrote the key later, by its clock
+            cache.remove(key);
+        } else {
+            versions.put(key, now);
+            cache.put(key, value);
+        }
+        publish(PUT, keyBytes, now);
+    }
+
+    /**
+     * remove from the local cache and from the caches of the other nodes
+     */
+    public void remove(K key) {
+        byte[] keyBytes = encode(key);
+        long now = nowMicros();
+        versions.put(key, now);
+        cache.remove(key);
+        publish(REMOVE, keyBytes, now);
+    }
+
+    private byte[] encode(K key) {
+        byte[] keyBytes = keyCodec.encode(key);
+        if (keyBytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("key is longer than " + MAX_KEY_BYTES + " bytes: " + keyBytes.length);
+        }
+        return keyBytes;
+    }
+
+    private void publish(byte type, byte[] keyBytes, long now) {
+        publishedEvents.increment();
+        int size = EVENT_HEADER_SIZE + keyBytes.length;
+        ByteBuffer full = null;
+        ByteBuffer large = null;
+        synchronized (this) {
+            if (batchEvents > 0 && pending.position() + size > maxBatchBytes) {
+                full = takeBatch();
+            }
+            if (batchEvents == 0) {
+                if (HEADER_SIZE + size > pending.capacity()) {
+                    pending = ByteBuffer.allocate(HEADER_SIZE + size);
+                }
+                pending.clear();
+                pending.position(HEADER_SIZE);
+                batchStartMicros = now;
+            }
+            pending.put(type);
+            pending.putInt((int) Math.min(Integer.MAX_VALUE, now - batchStartMicros));
+            pending.putShort((short) keyBytes.length);
+            pending.put(keyBytes);
+            batchEvents++;
+            if (pending.position() >= maxBatchBytes) {
+                large = takeBatch();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, maxBatchDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        if (large != null) {
+            send(large);
+        }
+    }
+
+    /**
+     * send the pending events now. also waits for a send of the flusher thread,
+     * so the events published before flush() are out when it returns.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            ByteBuffer batch;
+            synchronized (this) {
+                flushScheduled = false;
+                if (batchEvents == 0) {
+                    return;
+                }
+                batch = takeBatch();
+            }
+            send(batch);
+        }
+    }
+
+    /**
+     * copy the pending batch out with its header, and start a new one. called with the lock held.
+     */
+    private ByteBuffer takeBatch() {
+        pending.putInt(0, MAGIC);
+        pending.putLong(4, nodeId);
+        pending.putLong(20, batchStartMicros);
+        pending.putInt(28, batchEvents);
+        pending.flip();
+        ByteBuffer batch = ByteBuffer.allocate(pending.limit());
+        batch.put(pending).flip();
+        if (pending.capacity() > maxBatchBytes) {
+            pending = ByteBuffer.allocate(maxBatchBytes);
+        }
+        pending.clear();
+        batchEvents = 0;
+        return batch;
+    }
+
+    /**
+     * batches are numbered when they are sent, one at a time, so they leave in sequence order
+     * even when the caller threads and the flusher send concurrently.
+     */
+    private void send(ByteBuffer batch) {
+        int bytes = batch.remaining();
+        synchronized (flushLock) {
+            batch.putLong(12, ++batchSequence);
+            try {
+                transport.send(batch);
+                sentBatches.increment();
+                sentBytes.add(bytes);
+            } catch (IOException e) {
+                sendFailures.increment();
+                System.out.println("Cache invalidation send failed: " + e);
+            }
+        }
+    }
+
+    private void receive(ByteBuffer batch) {
+        long now = nowMicros();
+        if (batch.remaining() < HEADER_SIZE || batch.getInt(batch.position()) != MAGIC) {
+            malformedBatches.increment();
+            return;
+        }
+        batch.getInt();
+        long sender = batch.getLong();
+        long sequence = batch.getLong();
+        long startMicros = batch.getLong();
+        int count = batch.getInt();
+        if (sender == nodeId) {
+            return;   // our own batch, looped back
+        }
+        receivedBatches.increment();
+        // a sender seen for the first time may have sent batches before, only its first batch proves it did not
+        long[] last = senders.computeIfAbsent(sender, s -> new long[]{0, now});
+        boolean gap;
+        synchronized (last) {
+            gap = sequence > last[0] + 1;
+            if (gap) {
+                lostBatches.add(sequence - last[0] - 1);
+            }
+            last[0] = Math.max(last[0], sequence);
+            last[1] = now;
+        }
+        if (gap) {
+            fullInvalidations.increment();
+            cache.invalidateAll();
+        }
+        for (int i = 0; i < count; i++) {
+            if (batch.remaining() < EVENT_HEADER_SIZE) {
+                malformedBatches.increment();
+                return;
+            }
+            batch.get();   // PUT and REMOVE both drop the key, the value is read from the backend again
+            long eventMicros = startMicros + batch.getInt();
+            int length = batch.getShort() & 0xffff;
+            if (batch.remaining() < length) {
+                malformedBatches.increment();
+                return;
+            }
+            byte[] keyBytes = new byte[length];
+            batch.get(keyBytes);
+            K key = keyCodec.decode(keyBytes);
+            recordLag(Math.max(0, now - eventMicros));
+            Long known = versions.get(key);
+            if (known != null && known > eventMicros) {
+                staleEvents.increment();   // the local value is newer than the event
+                continue;
+            }
+            // a put() racing this can still be dropped here, that costs a miss and keeps no old value
+            versions.put(key, eventMicros);
+            cache.remove(key);
+            appliedEvents.increment();
+        }
+    }
+
+    /**
+     * forget the senders not heard from for SENDER_IDLE_MINUTES, nodes come and go and their ids are random
+     */
+    private void expireSenders() {
+        long idleSince = nowMicros() - SENDER_IDLE_MICROS;
+        for (Map.Entry<Long, long[]> sender : senders.entrySet()) {
+            long[] last = sender.getValue();
+            synchronized (last) {
+                if (last[1] < idleSince && senders.remove(sender.getKey(), last)) {
+                    expiredSenders.increment();
+                }
+            }
+        }
+    }
+
+    private void recordLag(long micros) {
+        lagMicros.incrementAndGet(CacheAnalytics.bucketOf(micros));
+        if (micros > maxLagMicros) {
+            maxLagMicros = micros;   // racy, good enough for a stat
+        }
+    }
+
+    private long nowMicros() {
+        return originEpochMicros + (System.nanoTime() - originNanos) / 1000;
+    }
+
+    /**
+     * stats of the local cache, with an "invalidation" object for the bus
+     */
+    public JSONObject getStats() {
+        JSONObject stats = cache.getStats();
+        JSONObject bus = new JSONObject();
+        bus.put("publishedEvents", publishedEvents.sum());
+        bus.put("sentBatches", sentBatches.sum());
+        bus.put("sentBytes", sentBytes.sum());
+        bus.put("sendFailures", sendFailures.sum());
+        bus.put("receivedBatches", receivedBatches.sum());
+        bus.put("appliedEvents", appliedEvents.sum());
+        bus.put("staleEvents", staleEvents.sum());
+        bus.put("stalePuts", stalePuts.sum());
+        bus.put("senders", senders.size());
+        bus.put("expiredSenders", expiredSenders.sum());
+        bus.put("lostBatches", lostBatches.sum());
+        bus.put("fullInvalidations", fullInvalidations.sum());
+        bus.put("malformedBatches", malformedBatches.sum());
+        long[] counts = new long[lagMicros.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = lagMicros.get(i);
+        }
+        JSONObject lag = new JSONObject();
+        lag.put("p50", CacheAnalytics.percentile(counts, 0.5));
+        lag.put("p99", CacheAnalytics.percentile(counts, 0.99));
+        lag.put("max", maxLagMicros);
+        bus.put("lagMicros", lag);
+        stats.put("invalidation", bus);
+        return stats;
+    }
+
+    /**
+     * send what is pending, stop the flusher and close the transport
+     */
+    public void close() {
+        flush();
+        flusher.shutdown();
+        transport.close();
+    }
+
+    /**
+     * delivers batches between the buses of one JVM, on the sender thread. for tests and for caches
+     * of several tenants in one process.
+     */
+    public static class InProcessTransport {
+        private final List<Consumer<ByteBuffer>> members = new CopyOnWriteArrayList<Consumer<ByteBuffer>>();
+
+        public Transport newMember() {
+            return new Transport() {
+                private Consumer<ByteBuffer> receiver;
+
+                @Override
+                public void send(ByteBuffer batch) {
+                    for (Consumer<ByteBuffer> member : members) {
+                        if (member != receiver) {
+                            member.accept(batch.asReadOnlyBuffer());
+                        }
+                    }
+                }
+
+                @Override
+                public void start(Consumer<ByteBuffer> receiver) {
+                    this.receiver = receiver;
+                    members.add(receiver);
+                }
+
+                @Override
+                public void close() {
+                    members.remove(receiver);
+                }
+            };
+        }
+    }
+
+    /**
+     * one datagram per batch, sent to every peer. no delivery guarantee, a lost datagram shows up
+     * as a gap in the batch sequence and clears the receiver cache.
+     */
+    public static class UdpTransport implements Transport {
+        private static final int MAX_DATAGRAM = 65507;
+        private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+        private final DatagramChannel channel;
+        private final List<InetSocketAddress> peers = new CopyOnWriteArrayList<InetSocketAddress>();
+        private Thread receiverThread;
+
+        /**
+         * @param bind  local address, port 0 picks a free port
+         */
+        public UdpTransport(InetSocketAddress bind) throws IOException {
+            channel = DatagramChannel.open();
+            // room for bursts while the receiver thread is busy removing keys
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+            channel.bind(bind);
+        }
+
+        /**
+         * a transport on a free port of the loopback interface
+         */
+        public static UdpTransport loopback() throws IOException {
+            return new UdpTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        public InetSocketAddress getLocalAddress() throws IOException {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        public void addPeer(InetSocketAddress peer) {
+            peers.add(peer);
+        }
+
+        @Override
+        public void send(ByteBuffer batch) throws IOException {
+            if (batch.remaining() > MAX_DATAGRAM) {
+                throw new IOException("batch does not fit in a datagram: " + batch.remaining() + " bytes");
+            }
+            for (InetSocketAddress peer : peers) {
+                channel.send(batch.duplicate(), peer);
+            }
+        }
+
+        @Override
+        public synchronized void start(Consumer<ByteBuffer> receiver) {
+            receiverThread = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+                while (channel.isOpen()) {
+                    try {
+                        buffer.clear();
+                        channel.receive(buffer);
+                        buffer.flip();
+                        receiver.accept(buffer);
+                    } catch (ClosedChannelException e) {
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Cache invalidation receive failed: " + e);
+                    }
+                }
+            }, "cache-invalidation-receiver");
+            receiverThread.setDaemon(true);
+            receiverThread.start();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Cache invalidation transport close failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * MAIN to show three nodes in one JVM, then two nodes over loopback UDP, and the publish rate.
+     *
+     * @param args optional argv[0] is the number of events to publish (default 1000000)
+     */
+    public static void main(String[] args) throws Exception {
+        int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        InProcessTransport group = new InProcessTransport();
+        List<CacheInvalidationBus<String, String>> nodes = new CopyOnWriteArrayList<CacheInvalidationBus<String, String>>();
+        for (int i = 0; i < 3; i++) {
+            LRUCaching<String, String> cache = LRUCaching.<String, String>newBuilder().maximumSize(10000).build();
+            nodes.add(new CacheInvalidationBus<String, String>(cache, group.newMember(), CacheCodec.STRING));
+        }
+        for (CacheInvalidationBus<String, String> node : nodes) {
+            node.getCache().put("user:1", "old name");
+        }
+        nodes.get(0).put("user:1", "new name");
+        nodes.get(0).flush();
+        System.out.println("In-process: node 0 has " + nodes.get(0).getCache().get("user:1")
+                + ", node 1 has " + nodes.get(1).getCache().get("user:1")
+                + ", node 2 has " + nodes.get(2).getCache().get("user:1"));
+
+        UdpTransport udpA = UdpTransport.loopback();
+        UdpTransport udpB = UdpTransport.loopback();
+        udpA.addPeer(udpB.getLocalAddress());
+        udpB.addPeer(udpA.getLocalAddress());
+        CacheInvalidationBus<String, String> nodeA = new CacheInvalidationBus<String, String>(
+                LRUCaching.<String, String>newBuilder().maximumSize(numEvents).build(), udpA, CacheCodec.STRING);
+        CacheInvalidationBus<String, String> nodeB = new CacheInvalidationBus<String, String>(
+                LRUCaching.<String, String>newBuilder().maximumSize(numEvents).build(), udpB, CacheCodec.STRING);
+        for (int i = 0; i < 1000; i++) {
+            nodeB.getCache().put("key" + i, "v");
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numEvents; i++) {
+            nodeA.remove("key" + (i % 100000));
+        }
+        nodeA.flush();
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(200);
+        System.out.println("UDP: " + numEvents + " removes in " + elapsed / 1000000 + " ms, "
+                + (numEvents * 1000000000L / Math.max(1, elapsed)) + " events/sec, node B size " + nodeB.getCache().size());
+        System.out.println("Node A stats: " + nodeA.getStats().getJSONObject("invalidation").toString(2));
+        System.out.println("Node B stats: " + nodeB.getStats().getJSONObject("invalidation").toString(2));
+        nodeA.close();
+        nodeB.close();
+        for (CacheInvalidationBus<String, String> node : nodes) {
+            node.close();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * save the content of an LRUCaching to a binary file, and load it back at startup (warm start).
+ *
+ * File layout, all numbers big endian:
+ *     header:   magic "LRUS", version, snapshot time, hits, misses, last reset time
+ *     entries:  key length, key bytes, value length, value bytes, write age in ms ... least recently used first
+ *     trailer:  -1, entry count, CRC32C of all bytes before the checksum
+ *
+ * sample usage:
+ *     CacheSnapshot<String, String> snapshot = new CacheSnapshot<>(cache, Paths.get("/var/cache/app.snapshot"),
+ *             CacheCodec.STRING, CacheCodec.STRING);
+ *     snapshot.restoreAsync();                     // cache serves requests while it is warming up
+ *     snapshot.schedule(5, TimeUnit.MINUTES);      // periodic snapshots
+ *     snapshot.writeAtShutdown();
+ */
+public class CacheSnapshot<K, V> {
+    private static final int MAGIC = 0x4c525553;   // "LRUS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int END_OF_ENTRIES = -1;
+
+    private final LRUCaching<K, V> cache;
+    private final Path file;
+    private final CacheCodec<K> keyCodec;
+    private final CacheCodec<V> valueCodec;
+    private ScheduledExecutorService scheduler = null;
+
+    public CacheSnapshot(LRUCaching<K, V> cache, Path file, CacheCodec<K> keyCodec, CacheCodec<V> valueCodec) {
+        this.cache = cache;
+        this.file = file;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * write a snapshot to a temporary file, then move it over the snapshot file,
+     * so a crash during the write never leaves a half written snapshot behind.
+     *
+     * @return  number of entries written
+     */
+    public synchronized long write() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long count;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(System.currentTimeMillis());
+            out.putLong(cache.getHitCount());
+            out.putLong(cache.getMissCount());
+            out.putLong(cache.getLastResetTimeMillis());
+            long[] written = new long[1];
+            IOException[] failure = new IOException[1];
+            cache.forEachEntry((key, value, writeAgeNanos) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    out.putBytes(keyCodec.encode(key));
+                    out.putBytes(valueCodec.encode(value));
+                    out.putLong(TimeUnit.NANOSECONDS.toMillis(writeAgeNanos));
+                    written[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            count = written[0];
+            out.putInt(END_OF_ENTRIES);
+            out.putLong(count);
+            out.finish();
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * load the snapshot into the cache.
+     * the checksum is verified before any entry is put, and entries never replace values already in the cache.
+     * an entry keeps its write age, so it expires when it would have without the restart, expired entries are dropped.
+     * a snapshot older than the cache's expireAfterWrite is ignored.
+     *
+     * @return  number of entries put into the cache, 0 when there is no snapshot
+     */
+    public long restore() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + 4 + 8 + 8) {
+                throw new IOException("snapshot too short: " + file);
+            }
+            verifyChecksum(channel, size);
+
+            Input in = new Input(channel);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("not a cache snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported cache snapshot version " + version + ": " + file);
+            }
+            long snapshotTime = in.getLong();
+            long hits = in.getLong();
+            long misses = in.getLong();
+            long lastResetTime = in.getLong();
+            long expireAfterWrite = cache.getExpireAfterWriteNanos();
+            if (expireAfterWrite > 0
+                    && TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - snapshotTime) >= expireAfterWrite) {
+                return 0;   // every entry would be expired
+            }
+            cache.restoreStats(hits, misses, lastResetTime);
+            long snapshotAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - snapshotTime));
+            long read = 0;
+            long restored = 0;
+            try {
+                while (true) {
+                    byte[] key = in.getBytes();
+                    if (key == null) {
+                        break;
+                    }
+                    byte[] value = in.getBytes();
+                    if (value == null) {
+                        throw new IOException("truncated cache snapshot: " + file);
+                    }
+                    read++;
+                    long writeAge = snapshotAge + TimeUnit.MILLISECONDS.toNanos(in.getLong());
+                    if (expireAfterWrite > 0 && writeAge >= expireAfterWrite) {
+                        continue;
+                    }
+                    if (cache.putIfAbsent(keyCodec.decode(key), valueCodec.decode(value), writeAge)) {
+                        restored++;
+                    }
+                }
+            } finally {
+                cache.sortWriteOrder();
+            }
+            long count = in.getLong();
+            if (count != read) {
+                throw new IOException("cache snapshot has " + read + " entries, its trailer says " + count + ": " + file);
+            }
+            return restored;
+        }
+    }
+
+    /**
+     * restore() on a background thread, get() and put() on the cache are not blocked while it runs.
+     */
+    public CompletableFuture<Long> restoreAsync() {
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        Thread t = new Thread(() -> {
+            try {
+                future.complete(restore());
+            } catch (Exception e) {
+                HttpMTLSClient.log("Cache snapshot restore failed: " + file + " " + e);
+                future.completeExceptionally(e);
+            }
+        }, "cache-snapshot-restore");
+        t.setDaemon(true);
+        t.start();
+        return future;
+    }
+
+    /**
+     * write a snapshot every period, on a daemon thread
+     */
+    public synchronized void schedule(long period, TimeUnit unit) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cache-snapshot-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                write();
+            } catch (Exception e) {
+                HttpMTLSClient.log("Cache snapshot write failed: " + file + " " + e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * write a last snapshot when the JVM shuts down
+     */
+    public void writeAtShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                write();
+            } catch (Exception e) {
+                HttpMTLSClient.log("Cache snapshot write failed: " + file + " " + e);
+            }
+        }, "cache-snapshot-shutdown"));
+    }
+
+    /**
+     * stop periodic snapshots
+     */
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    private static void verifyChecksum(FileChannel channel, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long position = 0;
+        long end = size - 8;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += n;
+        }
+        ByteBuffer stored = ByteBuffer.allocate(8);
+        while (stored.hasRemaining()) {
+            if (channel.read(stored, end + stored.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        if (stored.getLong(0) != crc.getValue()) {
+            throw new IOException("cache snapshot checksum mismatch");
+        }
+    }
+
+    /**
+     * buffered writer to a FileChannel, computing the checksum of everything it writes
+     */
+    private static final class Output {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CRC32C crc = new CRC32C();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * flush, then append the checksum
+         */
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * buffered reader from a FileChannel
+     */
+    private static final class Input {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(0);
+            buffer.limit(0);
+        }
+
+        void require(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("truncated cache snapshot");
+                }
+            }
+            buffer.flip();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        /**
+         * a length prefixed byte array, or null at the end of the entries
+         */
+        byte[] getBytes() throws IOException {
+            int length = getInt();
+            if (length == END_OF_ENTRIES) {
+                return null;
+            }
+            if (length < 0) {
+                throw new IOException("corrupted cache snapshot, length " + length);
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (!buffer.hasRemaining()) {
+                    require(1);
+                }
+                int n = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, n);
+                offset += n;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * MAIN to time a snapshot write and restore.
+     *
+     * @param args argv[0] is the number of entries, argv[1] is the snapshot file.
+     */
+    public static void main(String[] args) throws Exception {
+        int numKeys = Integer.parseInt(args[0]);
+        Path path = Paths.get(args[1]);
+        LRUCaching<String, String> cache = LRUCaching.<String, String>newBuilder().maximumSize(numKeys).build();
+        for (int i = 0; i < numKeys; i++) {
+            cache.put(String.valueOf(i), "value-" + i);
+        }
+        for (int i = 0; i < numKeys; i += 2) {
+            cache.get(String.valueOf(i));
+        }
+        long start = System.nanoTime();
+        long written = new CacheSnapshot<String, String>(cache, path, CacheCodec.STRING, CacheCodec.STRING).write();
+        System.out.println("wrote " + written + " entries, " + Files.size(path) + " bytes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        LRUCaching<String, String> warm = LRUCaching.<String, String>newBuilder().maximumSize(numKeys).build();
+        start = System.nanoTime();
+        CompletableFuture<Long> restoring = new CacheSnapshot<String, String>(warm, path, CacheCodec.STRING, CacheCodec.STRING).restoreAsync();
+        System.out.println("first get while restoring: " + warm.get("1") + " after "
+                + (System.nanoTime() - start) / 1000 + " us");
+        long restored = restoring.get();
+        System.out.println("restored " + restored + " entries in " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.out.println("restored stats: " + warm.getStats().toString(2));
+    }
+}
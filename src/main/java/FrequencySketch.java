@@ -0,0 +1,103 @@
+/**
+ * Count-Min sketch of access frequencies, used by LRUCaching's TinyLFU admission policy.
+ *
+ * The sketch has 4 rows of byte counters, an item is counted once in every row and its frequency is the
+ * smallest of its 4 counters. The column of each row comes from two hashes of the item (h1 + row * h2).
+ * Counters stop at 15, popularity above that does not change an admission decision.
+ * After sampleSize increments all counters are halved, so old popularity ages out and the sketch follows recent traffic.
+ *
+ * Not thread safe, the caller guards it (LRUCaching keeps one sketch per segment, under the segment lock).
+ */
+public class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MAX_ROW_WIDTH = 1 << 22;
+
+    // row r is counters[r * width .. (r + 1) * width - 1]
+    private byte[] counters;
+    private int width;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * @param maximumSize   expected number of distinct items to keep track of
+     */
+    public FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * grow the rows when the cache holds more entries than it was sized for, counts are lost when it grows.
+     */
+    public void ensureCapacity(long maximumSize) {
+        int wanted = (int) Math.min(Math.max(maximumSize, 16), MAX_ROW_WIDTH);
+        if (counters != null && width >= wanted) {
+            return;
+        }
+        width = Integer.highestOneBit(wanted - 1) << 1;
+        counters = new byte[ROWS * width];
+        sampleSize = 10 * width;
+        size = 0;
+    }
+
+    /**
+     * estimated number of accesses of the item, between 0 and 15
+     */
+    public int frequency(Object item) {
+        long hash = mix(item.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            frequency = Math.min(frequency, counters[index(row, h1, h2)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * count one access of the item, halve all counters when the sample period is over
+     */
+    public void increment(Object item) {
+        long hash = mix(item.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int i = index(row, h1, h2);
+            if (counters[i] < MAX_COUNT) {
+                counters[i]++;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * aging, halve every counter
+     */
+    private void halve() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        size >>>= 1;
+    }
+
+    /**
+     * position of the item's counter in the row, h2 is odd so the rows of one item use different columns
+     */
+    private int index(int row, int h1, int h2) {
+        return row * width + ((h1 + row * h2) & (width - 1));
+    }
+
+    /**
+     * 64 well mixed bits from a hash code, the finalizer of splitmix64
+     */
+    private static long mix(int hashCode) {
+        long z = hashCode * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
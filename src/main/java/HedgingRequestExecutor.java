@@ -0,0 +1,529 @@
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedged requests for the tail latency of idempotent requests.
+ *
+ * The first attempt goes out at once. When it has no response after the hedge delay of its route, a second attempt
+ * goes to an alternate route, or to the same route on another pooled connection, and the first response wins.
+ * The other attempt is aborted. An attempt that fails before the delay is retried at once instead of after
+ * the socket timeout.
+ *
+ * - hedge delay: the hedgePercentile of the route latency over the last two windows, the default delay
+ *   until a route has MIN_SAMPLES responses
+ * - hedge budget: hedges and retries are at most budgetPercent of the requests, plus a small burst, so a slow
+ *   backend does not get twice the load
+ * - circuit breaker per route: open when the error rate or the p99 latency of the window is too high,
+ *   no requests go to an open route until openMillis passed, then one probe request decides
+ *
+ * POST and PATCH, and requests with a body that can not be sent twice, are executed once without hedging.
+ *
+ * sample usage:
+ *     try (CloseableHttpResponse response = HttpMTLSClient.getInstance().executeHedged(new HttpGet(url))) {
+ *         ...
+ *     }
+ */
+public class HedgingRequestExecutor {
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+    // below this many responses in the window, the route uses defaultDelayMillis
+    private static final int MIN_SAMPLES = 50;
+    private static final long WINDOW_MILLIS = 10000;
+    private static final double BUDGET_BURST = 10;
+    // the hedge delay is recomputed at most this often, not on every request
+    private static final long DELAY_REFRESH_MILLIS = 100;
+
+    private final CloseableHttpClient client;
+    private final ExecutorService executor;
+    private final double hedgePercentile;
+    private final double budgetRatio;
+    private final long defaultDelayMillis;
+    private final Map<HttpHost, Route> routes = new ConcurrentHashMap<HttpHost, Route>();
+
+    private double breakerFailureRate = 0.5;
+    private long breakerSlowMillis = 2000;
+    private int breakerMinRequests = 20;
+    private long breakerOpenMillis = 5000;
+
+    // hedge budget: each request adds budgetRatio tokens, each hedge or retry takes one
+    private double budgetTokens = BUDGET_BURST;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final LongAdder notHedgeable = new LongAdder();
+    private final LongAdder rejectedOpen = new LongAdder();
+
+    /**
+     * @param client              the blocking client
+     * @param executor            runs the attempts, see BulkRequestExecutor.newDefaultExecutor()
+     * @param hedgePercentile     latency percentile of the route after which to hedge, e.g. 0.95
+     * @param budgetPercent       the most hedges and retries per 100 requests
+     * @param defaultDelayMillis  hedge delay of a route without enough samples
+     */
+    public HedgingRequestExecutor(CloseableHttpClient client, ExecutorService executor, double hedgePercentile,
+                                  double budgetPercent, long defaultDelayMillis) {
+        this.client = client;
+        this.executor = executor;
+        this.hedgePercentile = hedgePercentile;
+        this.budgetRatio = budgetPercent / 100;
+        this.defaultDelayMillis = defaultDelayMillis;
+    }
+
+    /**
+     * @param failureRate   open when this share of the requests in the window failed (I/O error or 5xx)
+     * @param slowMillis    open when the p99 latency of the window is above it
+     * @param minRequests   requests in the window before the breaker decides
+     * @param openMillis    time an open route gets no requests, then one probe is let through
+     */
+    public synchronized void setCircuitBreaker(double failureRate, long slowMillis, int minRequests, long openMillis) {
+        this.breakerFailureRate = failureRate;
+        this.breakerSlowMillis = slowMillis;
+        this.breakerMinRequests = minRequests;
+        this.breakerOpenMillis = openMillis;
+    }
+
+    /**
+     * latency histogram and circuit breaker of one route (host), over the current and the previous window
+     */
+    private final class Route {
+        final HttpHost host;
+        private final long[] current = new long[CacheAnalytics.HISTOGRAM_BUCKETS];
+        private final long[] previous = new long[CacheAnalytics.HISTOGRAM_BUCKETS];
+        private long windowStart = System.currentTimeMillis();
+        private int currentCount, previousCount;
+        private int currentFailures, previousFailures;
+        private long openUntil = 0;
+        private boolean probing = false;
+        private int opened = 0;
+        private long delayMillis = 0;
+        private long delayComputedAt = Long.MIN_VALUE / 2;
+
+        Route(HttpHost host) {
+            this.host = host;
+        }
+
+        private void roll(long now) {
+            if (now - windowStart < WINDOW_MILLIS) {
+                return;
+            }
+            boolean skipped = now - windowStart >= 2 * WINDOW_MILLIS;
+            for (int i = 0; i < current.length; i++) {
+                previous[i] = skipped ? 0 : current[i];
+                current[i] = 0;
+            }
+            previousCount = skipped ? 0 : currentCount;
+            previousFailures = skipped ? 0 : currentFailures;
+            currentCount = 0;
+            currentFailures = 0;
+            windowStart = now;
+        }
+
+        private long percentileMicros(double p) {
+            long[] counts = new long[current.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = current[i] + previous[i];
+            }
+            return CacheAnalytics.percentile(counts, p);
+        }
+
+        synchronized long hedgeDelayMillis() {
+            long now = System.currentTimeMillis();
+            if (now - delayComputedAt < DELAY_REFRESH_MILLIS) {
+                return delayMillis;
+            }
+            roll(now);
+            delayComputedAt = now;
+            if (currentCount + previousCount - currentFailures - previousFailures < MIN_SAMPLES) {
+                delayMillis = defaultDelayMillis;
+            } else {
+                delayMillis = Math.max(1, percentileMicros(hedgePercentile) / 1000);
+            }
+            return delayMillis;
+        }
+
+        /**
+         * false while the breaker is open, a half-open route takes one probe at a time
+         */
+        synchronized boolean allowRequest() {
+            long now = System.currentTimeMillis();
+            if (openUntil == 0) {
+                return true;
+            }
+            if (now < openUntil || probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void record(long micros, boolean failure) {
+            long now = System.currentTimeMillis();
+            roll(now);
+            currentCount++;
+            if (failure) {
+                currentFailures++;
+            } else {
+                current[CacheAnalytics.bucketOf(micros)]++;
+            }
+            if (probing) {
+                probing = false;
+                openUntil = failure || micros / 1000 > breakerSlowMillis ? now + breakerOpenMillis : 0;
+                if (openUntil != 0) {
+                    opened++;
+                } else {
+                    // a fresh start, the old window made the breaker open
+                    for (int i = 0; i < current.length; i++) {
+                        current[i] = 0;
+                        previous[i] = 0;
+                    }
+                    currentCount = currentFailures = previousCount = previousFailures = 0;
+                }
+                return;
+            }
+            int count = currentCount + previousCount;
+            if (openUntil == 0 && count >= breakerMinRequests) {
+                int failures = currentFailures + previousFailures;
+                boolean failing = failures >= breakerFailureRate * count;
+                boolean slow = count - failures >= breakerMinRequests && percentileMicros(0.99) / 1000 > breakerSlowMillis;
+                if (failing || slow) {
+                    openUntil = now + breakerOpenMillis;
+                    opened++;
+                    HttpMTLSClient.log("Circuit breaker open for " + host + (failing ? ", failures " + failures + "/" + count
+                            : ", p99 " + percentileMicros(0.99) / 1000 + " ms"));
+                }
+            }
+        }
+
+        /**
+         * an attempt aborted after micros, the latency was at least that.
+         * an aborted probe does not tell anything, the next request probes.
+         */
+        synchronized void recordAborted(long micros) {
+            roll(System.currentTimeMillis());
+            current[CacheAnalytics.bucketOf(micros)]++;
+            currentCount++;
+            probing = false;
+        }
+
+        synchronized JSONObject getStats() {
+            roll(System.currentTimeMillis());
+            JSONObject stats = new JSONObject();
+            stats.put("state", openUntil == 0 ? "closed" : System.currentTimeMillis() < openUntil ? "open" : "half-open");
+            stats.put("requests", currentCount + previousCount);
+            stats.put("failures", currentFailures + previousFailures);
+            stats.put("p50Ms", percentileMicros(0.5) / 1000.0);
+            stats.put("p99Ms", percentileMicros(0.99) / 1000.0);
+            stats.put("hedgeDelayMs", hedgeDelayMillis());
+            stats.put("opened", opened);
+            return stats;
+        }
+    }
+
+    private Route route(HttpHost host) {
+        return routes.computeIfAbsent(host, Route::new);
+    }
+
+    private synchronized boolean takeBudget() {
+        if (budgetTokens >= 1) {
+            budgetTokens -= 1;
+            return true;
+        }
+        budgetExhausted.increment();
+        return false;
+    }
+
+    /**
+     * the next route for a retry or a hedge, null without budget or route.
+     * the budget is taken first, a half-open route picked by next() is probing and must get its attempt.
+     */
+    private Route nextWithBudget(List<Route> candidates, Route exclude) {
+        if (!takeBudget()) {
+            return null;
+        }
+        Route route = next(candidates, exclude);
+        if (route == null) {
+            returnBudget();
+        }
+        return route;
+    }
+
+    private synchronized void returnBudget() {
+        budgetTokens = Math.min(BUDGET_BURST, budgetTokens + 1);
+    }
+
+    private synchronized void addBudget() {
+        budgetTokens = Math.min(BUDGET_BURST, budgetTokens + budgetRatio);
+    }
+
+    /**
+     * one attempt on one route
+     */
+    private final class Attempt {
+        final Route route;
+        final HttpUriRequest request;
+        final CompletableFuture<CloseableHttpResponse> future = new CompletableFuture<CloseableHttpResponse>();
+        volatile boolean aborted = false;
+
+        Attempt(Route route, HttpUriRequest request) {
+            this.route = route;
+            this.request = request;
+        }
+
+        /**
+         * run on the executor, an attempt the executor rejects fails at once and does not keep its route probing
+         */
+        Attempt start() {
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                route.recordAborted(0);
+                future.completeExceptionally(e);
+            }
+            return this;
+        }
+
+        void run() {
+            long start = System.nanoTime();
+            try {
+                CloseableHttpResponse response = client.execute(request);
+                long micros = (System.nanoTime() - start) / 1000;
+                route.record(micros, response.getStatusLine().getStatusCode() >= 500);
+                if (!future.complete(response)) {
+                    // lost the race
+                    response.close();
+                }
+            } catch (Exception e) {
+                long micros = (System.nanoTime() - start) / 1000;
+                if (aborted) {
+                    route.recordAborted(micros);
+                } else {
+                    route.record(micros, true);
+                }
+                future.completeExceptionally(e);
+            } catch (Error e) {
+                // the request did not complete, nobody must wait for it
+                route.recordAborted((System.nanoTime() - start) / 1000);
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        void abort() {
+            aborted = true;
+            request.abort();
+            if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                // completed before the cancel, nobody else reads this response
+                try {
+                    future.getNow(null).close();
+                } catch (IOException e) {
+                    // the connection is released anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * execute the request with hedging when it is idempotent
+     *
+     * @param alternates  other hosts that serve the same requests, hedges and retries go to them first
+     */
+    public CloseableHttpResponse execute(HttpUriRequest request, HttpHost... alternates) throws IOException {
+        requests.increment();
+        addBudget();
+        HttpHost target = URIUtils.extractHost(request.getURI());
+        List<Route> candidates = new ArrayList<Route>();
+        candidates.add(route(target));
+        for (HttpHost alternate : alternates) {
+            if (!alternate.equals(target)) {
+                candidates.add(route(alternate));
+            }
+        }
+        Route first = next(candidates, null);
+        if (first == null) {
+            rejectedOpen.increment();
+            throw new IOException("Circuit breaker open for " + target + " and its alternates");
+        }
+        if (!isHedgeable(request)) {
+            notHedgeable.increment();
+            Attempt once = new Attempt(first, first.host.equals(target) ? request : copyFor(request, first.host));
+            once.run();
+            return awaitDone(once);
+        }
+
+        Attempt primary = new Attempt(first, copyFor(request, first.host)).start();
+        Attempt secondary = null;
+        try {
+            try {
+                CloseableHttpResponse response = primary.future.get(first.hedgeDelayMillis(), TimeUnit.MILLISECONDS);
+                if (response.getStatusLine().getStatusCode() < 500) {
+                    return response;
+                }
+                // a server error before the hedge delay, retry on another route
+                Route retryRoute = nextWithBudget(candidates, first);
+                if (retryRoute == null) {
+                    return response;
+                }
+                response.close();
+                retries.increment();
+                return await(new Attempt(retryRoute, copyFor(request, retryRoute.host)).start());
+            } catch (ExecutionException e) {
+                Route retryRoute = nextWithBudget(candidates, first);
+                if (retryRoute == null) {
+                    throw asIOException(e.getCause());
+                }
+                retries.increment();
+                return await(new Attempt(retryRoute, copyFor(request, retryRoute.host)).start());
+            } catch (TimeoutException e) {
+                Route hedgeRoute = nextWithBudget(candidates, first);
+                if (hedgeRoute == null) {
+                    return await(primary);
+                }
+                hedges.increment();
+                secondary = new Attempt(hedgeRoute, copyFor(request, hedgeRoute.host)).start();
+            }
+            return race(primary, secondary);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primary.abort();
+            if (secondary != null) {
+                secondary.abort();
+            }
+            throw new IOException("Interrupted while waiting for " + request.getRequestLine(), e);
+        }
+    }
+
+    /**
+     * the first response that is not a server error, else the last response or error
+     */
+    private CloseableHttpResponse race(Attempt primary, Attempt secondary) throws IOException, InterruptedException {
+        CompletableFuture<Object> any = CompletableFuture.anyOf(primary.future, secondary.future);
+        Attempt winner;
+        try {
+            CloseableHttpResponse response = (CloseableHttpResponse) any.get();
+            winner = primary.future.isDone() && !primary.future.isCompletedExceptionally()
+                    && primary.future.getNow(null) == response ? primary : secondary;
+            if (response.getStatusLine().getStatusCode() < 500) {
+                (winner == primary ? secondary : primary).abort();
+                if (winner == secondary) {
+                    hedgeWins.increment();
+                }
+                return response;
+            }
+            response.close();
+        } catch (ExecutionException e) {
+            winner = primary.future.isCompletedExceptionally() ? primary : secondary;
+        }
+        // the winner failed, it is up to the other attempt
+        Attempt other = winner == primary ? secondary : primary;
+        CloseableHttpResponse response = await(other);
+        if (other == secondary) {
+            hedgeWins.increment();
+        }
+        return response;
+    }
+
+    private static CloseableHttpResponse awaitDone(Attempt attempt) throws IOException {
+        try {
+            return attempt.future.getNow(null);
+        } catch (CompletionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    private CloseableHttpResponse await(Attempt attempt) throws IOException, InterruptedException {
+        try {
+            return attempt.future.get();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    /**
+     * a route other than the given one whose breaker lets the request through, the same route when it is the only one
+     */
+    private static Route next(List<Route> candidates, Route exclude) {
+        for (Route route : candidates) {
+            if (route != exclude && route.allowRequest()) {
+                return route;
+            }
+        }
+        if (exclude != null && candidates.size() == 1 && exclude.allowRequest()) {
+            return exclude;
+        }
+        return null;
+    }
+
+    private static boolean isHedgeable(HttpUriRequest request) {
+        if (!IDEMPOTENT_METHODS.contains(request.getMethod())) {
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * a copy of the request for one attempt, sent to the given host. clone() would share the abort state.
+     */
+    private static HttpUriRequest copyFor(HttpUriRequest request, HttpHost host) throws IOException {
+        try {
+            return RequestBuilder.copy(request).setUri(URIUtils.rewriteURI(request.getURI(), host)).build();
+        } catch (URISyntaxException e) {
+            throw new IOException("Can not copy " + request.getRequestLine(), e);
+        }
+    }
+
+    private static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * hedging counters, and latency and breaker state per route
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("requests", requests.sum());
+        stats.put("hedges", hedges.sum());
+        stats.put("hedgeWins", hedgeWins.sum());
+        stats.put("retries", retries.sum());
+        stats.put("budgetExhausted", budgetExhausted.sum());
+        stats.put("notHedgeable", notHedgeable.sum());
+        stats.put("rejectedOpen", rejectedOpen.sum());
+        JSONObject perRoute = new JSONObject();
+        for (Route route : routes.values()) {
+            perRoute.put(route.host.toURI(), route.getStats());
+        }
+        stats.put("routes", perRoute);
+        return stats;
+    }
+}
@@ -1,31 +1,55 @@
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
-import java.util.Calendar;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.http.*;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.*;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * Sample code for pooled HTTP connections, with MTLS support.
@@ -43,14 +67,72 @@ public class HttpMTLSClient {
     // get authorization header from java property AUTHORIZATION_HEADER
     private static final String authorizationHeader = System.getProperty("AUTHORIZATION_HEADER");
 
-    String serverTrustStorePath = null;
-    private static SSLContext sslContext = null;
+    // get server truststore path from java property SERVER_TRUSTSTORE_PATH, the JVM default truststore when not set
+    String serverTrustStorePath = System.getProperty("SERVER_TRUSTSTORE_PATH");
+    // get server truststore password from java property SERVER_TRUSTSTORE_PASSWORD, keytool protects certificates with it
+    private static final String serverTrustStorePassword = System.getProperty("SERVER_TRUSTSTORE_PASSWORD");
+    private static volatile SSLContext sslContext = null;
     private static PoolingHttpClientConnectionManager cm = null;
+    private static AdaptivePoolController poolController = null;
+    private static MeasuredSSLConnectionSocketFactory sslSocketFactory = null;
+    private static ScheduledExecutorService prewarmScheduler = null;
+    private static Thread keyStoreWatcher = null;
+    private static volatile long sslContextReloadMillis = 0;
+    private static java.net.http.HttpClient asyncHttpClient = null;
+    private static ExecutorService asyncExecutor = null;
+    private static final AtomicInteger asyncThreadCount = new AtomicInteger();
+    private static BulkRequestExecutor bulkExecutor = null;
+    private static HttpResponseCache responseCache = null;
+    private static RequestPhaseMetrics requestMetrics = null;
+    private static HedgingRequestExecutor hedgingExecutor = null;
+    private static ExecutorService batchSender = null;
+    private static final List<RequestBatcher> requestBatchers = new CopyOnWriteArrayList<RequestBatcher>();
+    private static final AsyncLogger LOG = AsyncLogger.getInstance();
 
     private static final String KEYSTORE_TYPE = "pkcs12";
     private static final String TLS_VERSION = "TLSv1.2"; // or TLSv1.3
     private int MAX_CONN_SIZE = 8;
     private int MAX_CONN_PER_ROUTE = 1;
+    // the pool grows from MAX_CONN_PER_ROUTE/MAX_CONN_SIZE up to these under load, java property POOL_ADAPTIVE=false turns it off
+    private static final boolean POOL_ADAPTIVE = !"false".equalsIgnoreCase(System.getProperty("POOL_ADAPTIVE"));
+    private int POOL_MAX_CONN_PER_ROUTE = Integer.getInteger("POOL_MAX_CONN_PER_ROUTE", 32);
+    private int POOL_MAX_CONN_SIZE = Integer.getInteger("POOL_MAX_CONN_SIZE", 128);
+    private int POOL_ADJUST_INTERVAL_MS = 250;
+    // client side TLS session cache, sessions in it are resumed (session id or session ticket) without a full handshake
+    private static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("TLS_SESSION_CACHE_SIZE", 1000);
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = Integer.getInteger("TLS_SESSION_TIMEOUT_SECONDS", 24 * 3600);
+    // check the keystore and truststore files for changes every interval, 0 turns the reload off
+    private static final int KEYSTORE_RELOAD_INTERVAL_MS = Integer.getInteger("KEYSTORE_RELOAD_INTERVAL_MS", 0);
+    // connections of the old SSLContext are retired at a random time within this window after a reload
+    private static final int KEYSTORE_RETIRE_WINDOW_MS = Integer.getInteger("KEYSTORE_RETIRE_WINDOW_MS", 30000);
+    // threads of the async client, they only run callbacks, requests are not bound to threads
+    private static final int ASYNC_THREADS = Integer.getInteger("ASYNC_THREADS", 2);
+    // async requests beyond this wait in a queue, an HTTP/1.1 server gets one connection per request in flight
+    private static final int ASYNC_MAX_IN_FLIGHT = Integer.getInteger("ASYNC_MAX_IN_FLIGHT", 256);
+    private static final Semaphore asyncPermits = new Semaphore(ASYNC_MAX_IN_FLIGHT);
+    private static final ConcurrentLinkedQueue<Runnable> asyncWaiting = new ConcurrentLinkedQueue<Runnable>();
+    // deadline of an executeAll() batch when the caller gives none
+    private static final int DEFAULT_BULK_TIMEOUT = 60000;
+    // headers the JDK client sets itself, and refuses to take from the caller
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+    // java property HTTP_CACHE=true caches GET responses in the clients of getHttpClient(), see HttpResponseCache
+    private static final boolean HTTP_CACHE = Boolean.getBoolean("HTTP_CACHE");
+    private static final long HTTP_CACHE_MAX_BYTES = Long.getLong("HTTP_CACHE_MAX_BYTES", 64L * 1024 * 1024);
+    private static final int HTTP_CACHE_MAX_ENTRY_BYTES = Integer.getInteger("HTTP_CACHE_MAX_ENTRY_BYTES", 1024 * 1024);
+    // responses evicted from memory go to this directory when it is set
+    private static final String HTTP_CACHE_DIRECTORY = System.getProperty("HTTP_CACHE_DIRECTORY");
+    private static final long HTTP_CACHE_DISK_MAX_BYTES = Long.getLong("HTTP_CACHE_DISK_MAX_BYTES", 1024L * 1024 * 1024);
+    // executeHedged() sends a second attempt after this latency percentile of the route, or HEDGE_DELAY_MS until
+    // the route has enough samples, with at most HEDGE_BUDGET_PERCENT extra requests
+    private static final int HEDGE_PERCENTILE = Integer.getInteger("HEDGE_PERCENTILE", 95);
+    private static final int HEDGE_DELAY_MS = Integer.getInteger("HEDGE_DELAY_MS", 200);
+    private static final int HEDGE_BUDGET_PERCENT = Integer.getInteger("HEDGE_BUDGET_PERCENT", 10);
+    // newRequestBatcher() sends a batch at BATCH_MAX_ITEMS items, BATCH_MAX_BYTES bytes, or BATCH_LINGER_MS after its first item
+    private static final int BATCH_MAX_ITEMS = Integer.getInteger("BATCH_MAX_ITEMS", 100);
+    private static final int BATCH_MAX_BYTES = Integer.getInteger("BATCH_MAX_BYTES", 64 * 1024);
+    private static final int BATCH_LINGER_MS = Integer.getInteger("BATCH_LINGER_MS", 5);
+    // per route phase latency histograms of getHttpClient() requests, see RequestPhaseMetrics
+    private static final boolean HTTP_METRICS = Boolean.getBoolean("HTTP_METRICS");
     private int DEFAULT_KEEP_ALIVE = 10000;  // 10 seconds
     private int VALIDATE_INACTIVITY_INTERVAL_MS = 10000;
     private int NUM_CONN_RETRIES = 2;
@@ -86,7 +168,10 @@ public class HttpMTLSClient {
         if (_clientKeyStorePassword != null) {
             clientKeyStorePasswordChars = _clientKeyStorePassword.toCharArray();
         }
-        clientKeyStore.load(new FileInputStream(_clientKeyStorePath), clientKeyStorePasswordChars);
+        // closed at once, the file is read again on every reload
+        try (FileInputStream in = new FileInputStream(_clientKeyStorePath)) {
+            clientKeyStore.load(in, clientKeyStorePasswordChars);
+        }
         return clientKeyStore;
     }
 
@@ -95,7 +180,10 @@ public class HttpMTLSClient {
             return null;
         }
         KeyStore serverTrustStore = KeyStore.getInstance(KEYSTORE_TYPE);
-        serverTrustStore.load(new FileInputStream(_serverTrustStorePath), null); // no password for trust store
+        try (FileInputStream in = new FileInputStream(_serverTrustStorePath)) {
+            // no password for trust store, unless SERVER_TRUSTSTORE_PASSWORD is set
+            serverTrustStore.load(in, serverTrustStorePassword == null ? null : serverTrustStorePassword.toCharArray());
+        }
         return serverTrustStore;
     }
 
@@ -106,14 +194,108 @@ public class HttpMTLSClient {
         if (sslContext != null) {
             return sslContext;
         }
+        sslContext = buildSSLContext();
+        return sslContext;
+    }
+
+    private SSLContext buildSSLContext() throws Exception {
         KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
 
         kmf.init(getClientKeyStore(clientKeyStorePath, clientKeyStorePassword), clientKeyStorePasswordChars);
         TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
         tmf.init(getServerTrustStore(serverTrustStorePath));
-        sslContext = SSLContext.getInstance(TLS_VERSION);
-        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-        return sslContext;
+        SSLContext context = SSLContext.getInstance(TLS_VERSION);
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        // one cache for all connections of this context, a new connection to a known server resumes its session
+        context.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    /**
+     * load the keystore and truststore files again, and use the new SSL context for the connections opened from now on.
+     * pooled connections of the old context are closed after their next response, each at a random time
+     * within KEYSTORE_RETIRE_WINDOW_MS, so the new handshakes are spread out. A keystore that does not load
+     * keeps the old context.
+     */
+    public synchronized void reloadSSLContext() throws Exception {
+        SSLContext context = buildSSLContext();
+        getPoolingHttpClientConnectionManager();
+        sslSocketFactory.setSSLContext(context);
+        sslContext = context;
+        sslContextReloadMillis = System.currentTimeMillis();
+        if (asyncHttpClient != null) {
+            // requests in flight finish on the old client
+            asyncHttpClient = buildAsyncHttpClient(context);
+        }
+        log("SSL context reloaded from " + clientKeyStorePath + (serverTrustStorePath != null ? " and " + serverTrustStorePath : ""));
+    }
+
+    /**
+     * true when the connection of the context belongs to an SSL context replaced by a reload,
+     * and its retire time within the retire window has come
+     */
+    private static boolean isRetired(HttpContext context) {
+        if (sslContextReloadMillis == 0 || sslSocketFactory == null) {
+            return false;
+        }
+        ManagedHttpClientConnection conn = HttpClientContext.adapt(context).getConnection(ManagedHttpClientConnection.class);
+        SSLSession session = conn == null ? null : conn.getSSLSession();
+        if (session == null || sslSocketFactory.isCurrent(session)) {
+            return false;
+        }
+        // a fixed random delay per session spreads the reconnects of the old connections over the window
+        long jitter = Math.floorMod(System.identityHashCode(session) * 0x9e3779b9L, (long) Math.max(1, KEYSTORE_RETIRE_WINDOW_MS));
+        return System.currentTimeMillis() >= sslContextReloadMillis + jitter;
+    }
+
+    /**
+     * poll the keystore and truststore files every KEYSTORE_RELOAD_INTERVAL_MS, and reload when one changed.
+     * polling instead of a WatchService: a mounted secret is replaced by swapping a symlink, which does not
+     * always show up as an event on the file. A change is only loaded when it is the same on two polls in a row,
+     * so a file that is still being written is not read.
+     */
+    private synchronized void startKeyStoreWatcher() {
+        if (keyStoreWatcher != null || KEYSTORE_RELOAD_INTERVAL_MS <= 0 || clientKeyStorePath == null) {
+            return;
+        }
+        keyStoreWatcher = new Thread(() -> {
+            String loaded = fileSignature();
+            String previous = loaded;
+            while (true) {
+                try {
+                    Thread.sleep(KEYSTORE_RELOAD_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String current = fileSignature();
+                if (!current.equals(loaded) && current.equals(previous)) {
+                    try {
+                        reloadSSLContext();
+                        loaded = current;
+                    } catch (Exception e) {
+                        log("SSL context reload failed, keeping the old one: " + e);
+                    }
+                }
+                previous = current;
+            }
+        }, "keystore-watcher");
+        keyStoreWatcher.setDaemon(true);
+        keyStoreWatcher.start();
+    }
+
+    /**
+     * modification time and size of the keystore and truststore files
+     */
+    private String fileSignature() {
+        StringBuilder sb = new StringBuilder();
+        for (String path : new String[]{clientKeyStorePath, serverTrustStorePath}) {
+            if (path != null) {
+                File file = new File(path);
+                sb.append(file.lastModified()).append(':').append(file.length()).append(';');
+            }
+        }
+        return sb.toString();
     }
 
     /**
@@ -125,24 +307,192 @@ public class HttpMTLSClient {
             return cm;
         }
         SSLContext sslContext = getSSLContext();
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext, new String[]{TLS_VERSION}, null,
+        sslSocketFactory = new MeasuredSSLConnectionSocketFactory(sslContext, new String[]{TLS_VERSION}, null,
                 SSLConnectionSocketFactory.getDefaultHostnameVerifier());
         Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("https", sslsf)
+                .register("https", sslSocketFactory)
                 .build();
         cm = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
         cm.setMaxTotal(MAX_CONN_SIZE);
         cm.setDefaultMaxPerRoute(MAX_CONN_PER_ROUTE);
         cm.setValidateAfterInactivity(VALIDATE_INACTIVITY_INTERVAL_MS);
+        startKeyStoreWatcher();
         return cm;
     }
 
+    /**
+     *   Get the controller that sizes the connection pool with the traffic, null when POOL_ADAPTIVE=false
+     */
+    public synchronized AdaptivePoolController getPoolController() throws Exception {
+        if (poolController != null || !POOL_ADAPTIVE) {
+            return poolController;
+        }
+        poolController = new AdaptivePoolController(getPoolingHttpClientConnectionManager(),
+                MAX_CONN_PER_ROUTE, Math.max(MAX_CONN_PER_ROUTE, POOL_MAX_CONN_PER_ROUTE),
+                MAX_CONN_SIZE, Math.max(MAX_CONN_SIZE, POOL_MAX_CONN_SIZE));
+        // idle connections live as long as the keep-alive, a closed warm connection costs a handshake
+        poolController.setIdleTimeout(DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        poolController.start(POOL_ADJUST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return poolController;
+    }
+
+    /**
+     *   Open n connections to the server of the url in the background, with their TLS handshakes,
+     *   so the first requests do not pay for them. Connections already in the pool are counted, not replaced.
+     *   At most the current limit of the route, the pool is not grown for it.
+     *
+     * @return  number of connections open in the pool for the route once done
+     */
+    public CompletableFuture<Integer> prewarm(String url, int n) throws Exception {
+        URI uri = URI.create(url);
+        HttpHost target = new HttpHost(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443, "https");
+        return prewarm(new HttpRoute(target, null, true), n);
+    }
+
+    /**
+     * @param route  same route as the client plans for a request: new HttpRoute(new HttpHost(host, port, "https"), null, true)
+     */
+    public CompletableFuture<Integer> prewarm(HttpRoute route, int n) throws Exception {
+        PoolingHttpClientConnectionManager cm = getPoolingHttpClientConnectionManager();
+        CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        getPrewarmScheduler().execute(() -> future.complete(prewarmNow(cm, route, n)));
+        return future;
+    }
+
+    /**
+     *   Lease up to n connections of the route at once, connect those that are not open and release them all.
+     *   n is capped by the current pool limits, with POOL_ADAPTIVE the controller grows them with the traffic.
+     *
+     * @return  number of connections open in the pool for the route once done
+     */
+    private int prewarmNow(PoolingHttpClientConnectionManager cm, HttpRoute route, int n) {
+        int wanted = Math.min(n, Math.min(cm.getMaxPerRoute(route), cm.getMaxTotal()));
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>();
+        int open = 0;
+        try {
+            for (int i = 0; i < wanted; i++) {
+                HttpClientConnection conn = cm.requestConnection(route, null)
+                        .get(DEFAULT_CLIENT_GET_CONNECTION_TIMEROUT, TimeUnit.MILLISECONDS);
+                leased.add(conn);
+                if (!conn.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    cm.connect(conn, route, DEFAULT_SERVER_CONNECT_TIMEOUT, context);
+                    cm.routeComplete(conn, route, context);
+                }
+                open++;
+            }
+        } catch (Exception e) {
+            log("Prewarm of " + route + " stopped after " + open + " connections: " + e);
+        } finally {
+            for (int i = 0; i < leased.size(); i++) {
+                HttpClientConnection conn = leased.get(i);
+                if (i >= open) {
+                    // half connected, the pool must not hand it out
+                    try {
+                        conn.shutdown();
+                    } catch (IOException e) {
+                        // closed anyway
+                    }
+                }
+                cm.releaseConnection(conn, null, DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+            }
+        }
+        return open;
+    }
+
+    /**
+     *   prewarm(url, n) every period, so n connections are ready after idle periods too.
+     *   Use a period shorter than DEFAULT_KEEP_ALIVE, the connection time to live.
+     */
+    public void keepWarm(String url, int n, long period, TimeUnit unit) {
+        URI uri = URI.create(url);
+        HttpHost target = new HttpHost(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443, "https");
+        HttpRoute route = new HttpRoute(target, null, true);
+        // runs on the prewarm thread itself, waiting there for a prewarm() task would never end
+        getPrewarmScheduler().scheduleWithFixedDelay(() -> {
+            try {
+                prewarmNow(getPoolingHttpClientConnectionManager(), route, n);
+            } catch (Exception e) {
+                log("Prewarm of " + url + " failed: " + e);
+            }
+        }, 0, period, unit);
+    }
+
+    private static synchronized ScheduledExecutorService getPrewarmScheduler() {
+        if (prewarmScheduler == null) {
+            prewarmScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "http-prewarm");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return prewarmScheduler;
+    }
+
+    /**
+     *   pool, pool controller, TLS handshake, async client, response cache, request phase, hedging, request batcher
+     *   and logger stats
+     */
+    public JSONObject getStats() throws Exception {
+        JSONObject stats = new JSONObject();
+        stats.put("pool", getPoolingHttpClientConnectionManager().getTotalStats().toString());
+        if (getPoolController() != null) {
+            stats.put("poolController", getPoolController().getStats());
+        }
+        stats.put("handshakes", sslSocketFactory.getStats());
+        stats.put("async", getAsyncStats());
+        if (getResponseCache() != null) {
+            stats.put("responseCache", getResponseCache().getStats());
+        }
+        if (getRequestMetrics() != null) {
+            stats.put("requestPhases", getRequestMetrics().getStats());
+        }
+        if (hedgingExecutor != null) {
+            stats.put("hedging", hedgingExecutor.getStats());
+        }
+        if (!requestBatchers.isEmpty()) {
+            JSONArray batchers = new JSONArray();
+            for (RequestBatcher batcher : requestBatchers) {
+                batchers.put(batcher.getStats());
+            }
+            stats.put("requestBatchers", batchers);
+        }
+        stats.put("logger", LOG.getStats());
+        return stats;
+    }
+
+    /**
+     *   the response cache shared by the clients of getHttpClient(), null unless java property HTTP_CACHE=true
+     */
+    public static synchronized HttpResponseCache getResponseCache() throws IOException {
+        if (responseCache == null && HTTP_CACHE) {
+            responseCache = new HttpResponseCache(HTTP_CACHE_MAX_BYTES, HTTP_CACHE_MAX_ENTRY_BYTES,
+                    HTTP_CACHE_DIRECTORY == null ? null : new File(HTTP_CACHE_DIRECTORY), HTTP_CACHE_DISK_MAX_BYTES);
+        }
+        return responseCache;
+    }
+
+    /**
+     *   the phase metrics of the clients of getHttpClient(), null unless java property HTTP_METRICS=true
+     */
+    public synchronized RequestPhaseMetrics getRequestMetrics() throws Exception {
+        if (requestMetrics != null || !HTTP_METRICS) {
+            return requestMetrics;
+        }
+        AdaptivePoolController controller = getPoolController();
+        requestMetrics = new RequestPhaseMetrics(controller != null ? controller : getPoolingHttpClientConnectionManager());
+        sslSocketFactory.setHandshakeListener(requestMetrics);
+        return requestMetrics;
+    }
+
     public CloseableHttpClient getHttpClient() throws Exception {
         return getHttpClient(DEFAULT_CLIENT_GET_CONNECTION_TIMEROUT, DEFAULT_SERVER_CONNECT_TIMEOUT, DEFAULT_SERVER_RESPONSE_TIMEOUT);
     }
 
     public synchronized CloseableHttpClient getHttpClient(int getClientConnTimeout, int serverConnTimeout, int serverReadTimeout) throws Exception {
         PoolingHttpClientConnectionManager cm = getPoolingHttpClientConnectionManager();
+        AdaptivePoolController controller = getPoolController();
+        RequestPhaseMetrics metrics = getRequestMetrics();
         // a better keepalive strategy, which is based on server response header
         // when response does not have keepa-live header, use DEFAULT_KEEP_ALIVE.
         ConnectionKeepAliveStrategy myKeepAliveStrategy = new ConnectionKeepAliveStrategy() {
@@ -156,19 +506,28 @@ public class HttpMTLSClient {
                     String value = he.getValue();
                     if (value != null && param.equalsIgnoreCase
                             ("timeout")) {
-                        log("set keep-alive: " + value.toString());
+                        LOG.debug("set keep-alive: {}", value);
+                        if (metrics != null) {
+                            metrics.record(RequestPhaseMetrics.KeepAliveDecision.KEEP_ALIVE_TIMEOUT);
+                        }
                         return Long.parseLong(value) * 1000;
                     }
                 }
                 Header ka = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
                 if (ka != null) {
                     if (ka.getValue().equalsIgnoreCase("keep-alive")) {
-                        log("set default keep-alive:" + DEFAULT_KEEP_ALIVE);
+                        LOG.debug("set default keep-alive: {}", DEFAULT_KEEP_ALIVE);
+                        if (metrics != null) {
+                            metrics.record(RequestPhaseMetrics.KeepAliveDecision.KEEP_ALIVE_DEFAULT);
+                        }
                         return DEFAULT_KEEP_ALIVE;
                     }
                 }
                 // all other conditions, do nto keep alive
-                log("do not keep alive");
+                LOG.debug("do not keep alive");
+                if (metrics != null) {
+                    metrics.record(RequestPhaseMetrics.KeepAliveDecision.NO_KEEP_ALIVE);
+                }
                 return 0L;
             }
         };
@@ -176,16 +535,29 @@ public class HttpMTLSClient {
         ConnectionReuseStrategy myReuseStrategy = new DefaultConnectionReuseStrategy() {
             @Override
             public boolean keepAlive(HttpResponse response, HttpContext context) {
+                if (isRetired(context)) {
+                    LOG.debug("retire connection of the old SSL context");
+                    if (metrics != null) {
+                        metrics.record(RequestPhaseMetrics.KeepAliveDecision.RETIRED);
+                    }
+                    return false;
+                }
                 Header[] kas = response.getHeaders(HTTP.CONN_DIRECTIVE);
                 for (int i=0; i < kas.length; i++) {
                     Header ka = kas[i];
                     if (ka.getValue().equalsIgnoreCase("keep-alive")) {
-                        log("reuse keep-alive");
+                        LOG.debug("reuse keep-alive");
+                        if (metrics != null) {
+                            metrics.record(RequestPhaseMetrics.KeepAliveDecision.REUSE);
+                        }
                         return true;
                     }
                 }
                 // all other conditions, do nto keep alive
-                log("do not reuse keep-alive");
+                LOG.debug("do not reuse keep-alive");
+                if (metrics != null) {
+                    metrics.record(RequestPhaseMetrics.KeepAliveDecision.NO_REUSE);
+                }
                 return false;
             }
         };
@@ -197,8 +569,9 @@ public class HttpMTLSClient {
                 .setConnectionRequestTimeout(getClientConnTimeout) // timeout to get a connection from connection pool
                 .build();
 
-        HttpClientBuilder httpClientBuilder = HttpClients.custom()
-                .setConnectionManager(cm)
+        HttpResponseCache cache = getResponseCache();
+        HttpClientBuilder httpClientBuilder = (cache != null ? cache.newHttpClientBuilder() : HttpClients.custom())
+                .setConnectionManager(metrics != null ? metrics : controller != null ? controller : cm)
                 .setConnectionReuseStrategy(myReuseStrategy)
                 .setKeepAliveStrategy(myKeepAliveStrategy)
                 .setRetryHandler(retryHandler)
@@ -206,10 +579,212 @@ public class HttpMTLSClient {
         //        .disableCookieManagement()    // do not disable cookie for server affinity in load balancer
                 .disableRedirectHandling()
                 .setDefaultRequestConfig(requestConfig);
+        if (metrics != null) {
+            httpClientBuilder.setRequestExecutor(metrics.newRequestExecutor());
+        }
 
         return httpClientBuilder.build();
     }
 
+    /**
+     *   Get the non-blocking client, HTTP/2 when the server supports it (one connection per server,
+     *   requests are multiplexed as streams), HTTP/1.1 otherwise. Uses the same SSL context as getHttpClient().
+     */
+    public synchronized java.net.http.HttpClient getAsyncHttpClient() throws Exception {
+        if (asyncHttpClient != null) {
+            return asyncHttpClient;
+        }
+        asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS, r -> {
+            Thread t = new Thread(r, "http-async-" + asyncThreadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        asyncHttpClient = buildAsyncHttpClient(getSSLContext());
+        return asyncHttpClient;
+    }
+
+    private java.net.http.HttpClient buildAsyncHttpClient(SSLContext context) {
+        SSLParameters sslParameters = new SSLParameters(null, new String[]{TLS_VERSION});
+        return java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                .sslContext(context)
+                .sslParameters(sslParameters)
+                .connectTimeout(Duration.ofMillis(DEFAULT_SERVER_CONNECT_TIMEOUT))
+                .followRedirects(java.net.http.HttpClient.Redirect.NEVER)
+                .executor(asyncExecutor)
+                .build();
+    }
+
+    /**
+     * execute a request without blocking the caller, the request is converted to a JDK HttpRequest
+     * with DEFAULT_SERVER_RESPONSE_TIMEOUT as its timeout
+     */
+    public CompletableFuture<java.net.http.HttpResponse<byte[]>> executeAsync(HttpUriRequest request) {
+        HttpRequest jdkRequest;
+        try {
+            jdkRequest = toJdkRequest(request);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return executeAsync(jdkRequest, java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * execute a request without blocking the caller, at most ASYNC_MAX_IN_FLIGHT requests are sent at a time
+     */
+    public <T> CompletableFuture<java.net.http.HttpResponse<T>> executeAsync(HttpRequest request,
+            java.net.http.HttpResponse.BodyHandler<T> bodyHandler) {
+        java.net.http.HttpClient client;
+        try {
+            client = getAsyncHttpClient();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return withAsyncPermit(() -> client.sendAsync(request, bodyHandler));
+    }
+
+    private HttpRequest toJdkRequest(HttpUriRequest request) throws IOException {
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+            body = HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity()));
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getURI().toString()))
+                .method(request.getMethod(), body)
+                .timeout(Duration.ofMillis(DEFAULT_SERVER_RESPONSE_TIMEOUT));
+        for (Header header : request.getAllHeaders()) {
+            if (header.getValue() != null && !RESTRICTED_HEADERS.contains(header.getName().toLowerCase())) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * start the call when a permit is free, otherwise queue it. a completed call starts the next queued one.
+     */
+    private <T> CompletableFuture<T> withAsyncPermit(Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        asyncWaiting.add(() -> {
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((value, error) -> {
+                asyncPermits.release();
+                startWaitingAsync();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        startWaitingAsync();
+        return result;
+    }
+
+    private static void startWaitingAsync() {
+        while (!asyncWaiting.isEmpty() && asyncPermits.tryAcquire()) {
+            Runnable next = asyncWaiting.poll();
+            if (next == null) {
+                asyncPermits.release();
+            } else {
+                // on the executor, a call that fails at once would start the next one on this stack
+                asyncExecutor.execute(next);
+            }
+        }
+    }
+
+    /**
+     * async requests sent and not completed yet, and requests waiting for a permit
+     */
+    public static String getAsyncStats() {
+        return "[in flight: " + (ASYNC_MAX_IN_FLIGHT - asyncPermits.availablePermits()) + "; queued: " + asyncWaiting.size()
+                + "; max in flight: " + ASYNC_MAX_IN_FLIGHT + "]";
+    }
+
+    /**
+     *   Get the executor of executeAll(): virtual threads on JDK 21+, otherwise a platform thread per pooled connection.
+     *   The requests in flight are bounded by the pool limits, or by the adaptive pool ceilings.
+     */
+    public synchronized BulkRequestExecutor getBulkRequestExecutor() throws Exception {
+        if (bulkExecutor != null) {
+            return bulkExecutor;
+        }
+        AdaptivePoolController controller = getPoolController();
+        PoolingHttpClientConnectionManager cm = getPoolingHttpClientConnectionManager();
+        int maxPerRoute = controller != null ? controller.getMaxPerRouteLimit() : cm.getDefaultMaxPerRoute();
+        int maxTotal = controller != null ? controller.getMaxTotalLimit() : cm.getMaxTotal();
+        bulkExecutor = new BulkRequestExecutor(getHttpClient(), BulkRequestExecutor.newDefaultExecutor(maxTotal),
+                maxPerRoute, maxTotal);
+        return bulkExecutor;
+    }
+
+    /**
+     * run the requests at most concurrencyLimit at a time, with DEFAULT_BULK_TIMEOUT as the deadline of the batch.
+     * iterate the returned batch to get the results as they complete.
+     */
+    public BulkRequestExecutor.Batch executeAll(List<? extends HttpUriRequest> requests, int concurrencyLimit) throws Exception {
+        return executeAll(requests, concurrencyLimit, DEFAULT_BULK_TIMEOUT, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * @param failFast  cancel the remaining requests after the first error or server error
+     */
+    public BulkRequestExecutor.Batch executeAll(List<? extends HttpUriRequest> requests, int concurrencyLimit,
+                                                long timeout, TimeUnit unit, boolean failFast) throws Exception {
+        return getBulkRequestExecutor().executeAll(requests, concurrencyLimit, timeout, unit, failFast);
+    }
+
+    /**
+     *   Get the executor of executeHedged(), its circuit breakers open for routes slower than half the response timeout.
+     */
+    public synchronized HedgingRequestExecutor getHedgingRequestExecutor() throws Exception {
+        if (hedgingExecutor == null) {
+            AdaptivePoolController controller = getPoolController();
+            int maxTotal = controller != null ? controller.getMaxTotalLimit() : getPoolingHttpClientConnectionManager().getMaxTotal();
+            hedgingExecutor = new HedgingRequestExecutor(getHttpClient(), BulkRequestExecutor.newDefaultExecutor(maxTotal),
+                    HEDGE_PERCENTILE / 100.0, HEDGE_BUDGET_PERCENT, HEDGE_DELAY_MS);
+            hedgingExecutor.setCircuitBreaker(0.5, DEFAULT_SERVER_RESPONSE_TIMEOUT / 2, 20, 5000);
+        }
+        return hedgingExecutor;
+    }
+
+    /**
+     * execute an idempotent request with hedging: a second attempt goes out when the first is slower than
+     * the HEDGE_PERCENTILE latency of its route, to one of the alternates if given, and the first response wins.
+     * Requests that are not idempotent are executed once.
+     */
+    public CloseableHttpResponse executeHedged(HttpUriRequest request, HttpHost... alternates) throws Exception {
+        return getHedgingRequestExecutor().execute(request, alternates);
+    }
+
+    /**
+     * a batcher of small JSON POSTs to a batch endpoint, with the authorization header and the BATCH_* limits.
+     * its stats are part of getStats().
+     */
+    public RequestBatcher newRequestBatcher(String batchUrl) throws Exception {
+        Header[] headers = authorizationHeader == null ? new Header[0]
+                : new Header[] {new BasicHeader("authorization", authorizationHeader)};
+        AdaptivePoolController controller = getPoolController();
+        int maxPerRoute = controller != null ? controller.getMaxPerRouteLimit() : getPoolingHttpClientConnectionManager().getDefaultMaxPerRoute();
+        RequestBatcher batcher = new RequestBatcher(getHttpClient(), batchUrl, headers, BATCH_MAX_ITEMS, BATCH_MAX_BYTES,
+                BATCH_LINGER_MS, TimeUnit.MILLISECONDS, maxPerRoute, getBatchSender());
+        requestBatchers.add(batcher);
+        return batcher;
+    }
+
+    private synchronized ExecutorService getBatchSender() throws Exception {
+        if (batchSender == null) {
+            AdaptivePoolController controller = getPoolController();
+            batchSender = BulkRequestExecutor.newDefaultExecutor(
+                    controller != null ? controller.getMaxTotalLimit() : getPoolingHttpClientConnectionManager().getMaxTotal());
+        }
+        return batchSender;
+    }
+
     /**
      * get a multiline of string representation for the stack trace
      *
@@ -230,18 +805,78 @@ public class HttpMTLSClient {
     }
 
     /**
-     * get  current timestamp string
+     * log at INFO level, see AsyncLogger for the format and the java properties
      */
-    static private String getTimeString() {
-        Calendar cal = Calendar.getInstance();
-        return cal.getTime().toString();
+    static void log(String s) {
+        LOG.info(s);
     }
     /**
-     * format output lines
+     * send count GET requests with the blocking client on 20 threads, then all at once with executeAsync,
+     * then with executeAll and a concurrency limit of 20
      */
-    static synchronized void log(String s) {
-        System.out.println(getTimeString() + " Line:" + Thread.currentThread().getStackTrace()[2].getLineNumber() + " [" + Thread.currentThread().getName() + "] " + s);
+    static void compareBlockingAsync(String url, int count) throws Exception {
+        final int BLOCKING_THREADS = 20;
+        for (int round = 0; round < 2; round++) {    // the first round warms up connections and the JIT
+            ExecutorService pool = Executors.newFixedThreadPool(BLOCKING_THREADS);
+            AtomicInteger failures = new AtomicInteger();
+            long start = System.nanoTime();
+            List<java.util.concurrent.Future<?>> futures = new ArrayList<java.util.concurrent.Future<?>>();
+            for (int i = 0; i < count; i++) {
+                futures.add(pool.submit(() -> {
+                    HttpGet httpGet = new HttpGet(url);
+                    httpGet.addHeader("authorization", authorizationHeader);
+                    try (CloseableHttpResponse response = getInstance().getHttpClient().execute(httpGet)) {
+                        EntityUtils.consume(response.getEntity());
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }));
+            }
+            for (java.util.concurrent.Future<?> f : futures) {
+                f.get();
+            }
+            long blockingNanos = System.nanoTime() - start;
+            pool.shutdown();
+            log("Blocking: " + count + " requests in " + blockingNanos / 1000000 + " ms, " + failures.get() + " failed, "
+                    + BLOCKING_THREADS + " threads, pool " + getInstance().getPoolingHttpClientConnectionManager().getTotalStats());
+
+            AtomicInteger asyncFailures = new AtomicInteger();
+            start = System.nanoTime();
+            List<CompletableFuture<?>> asyncFutures = new ArrayList<CompletableFuture<?>>();
+            for (int i = 0; i < count; i++) {
+                HttpGet httpGet = new HttpGet(url);
+                httpGet.addHeader("authorization", authorizationHeader);
+                asyncFutures.add(getInstance().executeAsync(httpGet).whenComplete((response, error) -> {
+                    if (error != null || response.statusCode() >= 500) {
+                        asyncFailures.incrementAndGet();
+                    }
+                }));
+            }
+            String inFlight = getAsyncStats();
+            CompletableFuture.allOf(asyncFutures.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            long asyncNanos = System.nanoTime() - start;
+            log("Async: " + count + " requests in " + asyncNanos / 1000000 + " ms, " + asyncFailures.get() + " failed, "
+                    + ASYNC_THREADS + " threads, after submit " + inFlight + ", " + getInstance().getAsyncHttpClient().version());
+
+            List<HttpGet> requests = new ArrayList<HttpGet>();
+            for (int i = 0; i < count; i++) {
+                HttpGet httpGet = new HttpGet(url);
+                httpGet.addHeader("authorization", authorizationHeader);
+                requests.add(httpGet);
+            }
+            start = System.nanoTime();
+            int bulkFailures = 0;
+            for (BulkRequestExecutor.Result result : getInstance().executeAll(requests, BLOCKING_THREADS)) {
+                if (!result.isSuccess()) {
+                    bulkFailures++;
+                }
+            }
+            long bulkNanos = System.nanoTime() - start;
+            log("executeAll: " + count + " requests in " + bulkNanos / 1000000 + " ms, " + bulkFailures + " failed, "
+                    + "concurrency limit " + BLOCKING_THREADS + ", pool " + getInstance().getPoolingHttpClientConnectionManager().getTotalStats());
+        }
     }
+
     /**
      *  Test HttpMTLSClient
      *  sample parameters:
@@ -249,12 +884,17 @@ public class HttpMTLSClient {
      *   -DCLIENT_KEYSTORE_PATH=/Users/garyzhu/mykeystore.pkcs12
      *   -DAUTHORIZATION_HEADER="Basic UkJf........"
      *   HttpMTLSClient https://somewhere.garyzhu.net/test/
+     *   HttpMTLSClient https://somewhere.garyzhu.net/test/ 5000     (compare the blocking and the async client)
      *
      * @param args
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
         String url = args[0];
+        if (args.length > 1) {
+            compareBlockingAsync(url, Integer.parseInt(args[1]));
+            return;
+        }
         // final String url = "https://www.google.com/";
         // final String url = "https://tls13.cloudflare.com/";
         // final String url = "https://www.baeldung.com/api/country-code/";   // with Connection: close
@@ -286,7 +926,7 @@ public class HttpMTLSClient {
                 //httpPost.addHeader("content-type", "application/json");
                 httpGet.addHeader("authorization", authorizationHeader);
                 //String postBody = "{\"name\":\"John\"}";
-                //httpPost.setEntity(new StringEntity(postBody, StandardCharsets.UTF_8));
+                //httpPost.setEntity(HttpStreams.gzipIfLarge(new StringEntity(postBody, StandardCharsets.UTF_8)));
                 // below is the time actually get  a connection from the pool
                 log("Before execute HttpGet " + httpGet.toString() + " connection stats: "
                         + getInstance().getPoolingHttpClientConnectionManager().getTotalStats().toString());
@@ -300,16 +940,13 @@ public class HttpMTLSClient {
                     log("    " + header.getName() + ": " + header.getValue());
                 }
 
-                if (response.getEntity() != null) {
-                    // print the first 128 char of the response body, or the entire body if less than 128 char
-                    String responseBody = EntityUtils.toString(response.getEntity());
-                    if (responseBody.length() > 64) {
-                        log("Response body: " + responseBody.substring(0, 64) + "...");
-                    } else {
-                        log("Response body: " + responseBody);
-                    }
+                // print the first 64 chars of the response body, without reading a large body into memory
+                String responseBody = HttpStreams.readPrefix(response, 65);
+                if (responseBody.length() > 64) {
+                    log("Response body: " + responseBody.substring(0, 64) + "...");
+                } else {
+                    log("Response body: " + responseBody);
                 }
-                response.close();
 
                 log("Successful,  Connection Manager Stats: "
                         + getInstance().getPoolingHttpClientConnectionManager().getTotalStats().toString());
@@ -318,6 +955,8 @@ public class HttpMTLSClient {
                         + e.getMessage() + " ==> " + getStackTrace(e, 0));
             }
         };
+        // handshake a few connections before the first requests
+        log("Prewarmed connections: " + getInstance().prewarm(url, 4).get());
         final int TCOUNT = 20;
         Thread[] ts = new Thread[TCOUNT];
         for (int i=0; i< TCOUNT; i++) {
@@ -334,5 +973,6 @@ public class HttpMTLSClient {
         }
 
         Thread.sleep(3000);
+        log("Client stats: " + getInstance().getStats().toString(2));
     }
 }
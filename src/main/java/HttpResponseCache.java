@@ -0,0 +1,759 @@
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Private HTTP cache (RFC 9111) for the GET requests of the blocking client, it sits in the exec chain in front of
+ * the connection pool, so a fresh hit does not lease a connection.
+ *
+ * - fresh responses are served from the cache, freshness comes from max-age, Expires, or 10% of the Last-Modified age
+ * - stale responses are revalidated with If-None-Match / If-Modified-Since, a 304 freshens the stored response
+ * - within stale-while-revalidate the stale response is served and revalidated in the background
+ * - responses are keyed by URL, the authorization header and the request headers named by Vary
+ * - POST, PUT, DELETE, PATCH invalidate the stored responses of their URL
+ * - the memory tier is an LRUCaching bounded by bytes, the optional disk tier takes the responses it evicts,
+ *   and those heavier than the largest memory entry (an 8th of maxBytes)
+ *
+ * Request Cache-Control no-store, no-cache, max-age and only-if-cached are honoured. Requests with their own
+ * conditional or Range headers go to the server.
+ *
+ * sample usage:
+ *     HttpResponseCache cache = new HttpResponseCache(64 * 1024 * 1024, 1024 * 1024, null, 0);
+ *     CloseableHttpClient client = cache.newHttpClientBuilder().setConnectionManager(cm).build();
+ */
+public class HttpResponseCache {
+    /** context attribute with how the cache answered: HIT, STALE, VALIDATED, MISS or BYPASS */
+    public static final String CACHE_STATUS = "http.cache.status";
+
+    // stored without explicit freshness too, RFC 9110 section 15.1
+    private static final Set<Integer> HEURISTICALLY_CACHEABLE = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "te", "trailer",
+            "transfer-encoding", "upgrade", "content-length");
+    // a 304 does not describe the stored body, these headers of the stored response are kept
+    private static final Set<String> NOT_FRESHENED = Set.of("content-encoding", "content-range", "content-type");
+    private static final long MAX_HEURISTIC_MILLIS = 24 * 3600 * 1000L;
+    private static final int DISK_MAGIC = 0x48524331;   // "HRC1"
+
+    private final int maxEntryBytes;
+    private final LRUCaching<String, Entry> memory;
+    // URL -> Vary header names of its stored responses, a new generation orphans the old variants
+    private final LRUCaching<String, Variants> variants;
+    private final AtomicLong generations = new AtomicLong();
+    private final File directory;
+    // disk file name -> file size
+    private final LRUCaching<String, Long> diskIndex;
+    private final ExecutorService background;
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder validated = new LongAdder();
+    private final LongAdder backgroundRevalidations = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder notStored = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskWrites = new LongAdder();
+    private final LongAdder diskErrors = new LongAdder();
+
+    /**
+     * @param maxBytes       memory bound of the stored responses
+     * @param maxEntryBytes  larger bodies are not stored
+     * @param directory      directory of the disk tier, null for memory only. Its entries from before are deleted.
+     * @param diskMaxBytes   disk bound of the stored responses
+     */
+    public HttpResponseCache(long maxBytes, int maxEntryBytes, File directory, long diskMaxBytes) throws IOException {
+        this.maxEntryBytes = maxEntryBytes;
+        this.directory = directory;
+        AtomicInteger threads = new AtomicInteger();
+        this.background = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "http-cache-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can not create cache directory " + directory);
+            }
+            // the Vary records are not persisted, entries of an earlier run can not be looked up
+            File[] old = directory.listFiles((dir, name) -> name.endsWith(".entry") || name.endsWith(".tmp"));
+            if (old != null) {
+                for (File file : old) {
+                    file.delete();
+                }
+            }
+            this.diskIndex = LRUCaching.<String, Long>newBuilder()
+                    .maximumWeight(diskMaxBytes)
+                    .weigher((name, size) -> (int) Math.min(Integer.MAX_VALUE, size))
+                    .removalListener((name, size, cause) -> {
+                        // REPLACED keeps the file, it has just been rewritten
+                        if (cause != LRUCaching.RemovalCause.REPLACED) {
+                            new File(directory, name).delete();
+                        }
+                    })
+                    .build();
+        } else {
+            this.diskIndex = null;
+        }
+        this.memory = LRUCaching.<String, Entry>newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(HttpResponseCache::memoryWeight)
+                .removalListener((key, entry, cause) -> {
+                    if (cause == LRUCaching.RemovalCause.SIZE && diskIndex != null) {
+                        background.execute(() -> writeToDisk(key, entry));
+                    }
+                })
+                .build();
+        this.variants = LRUCaching.<String, Variants>newBuilder()
+                .maximumSize(Math.max(1024, maxBytes / 1024))
+                .build();
+    }
+
+    /**
+     * a client builder with this cache in its exec chain
+     */
+    public HttpClientBuilder newHttpClientBuilder() {
+        return new HttpClientBuilder() {
+            @Override
+            protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+                return decorate(mainExec);
+            }
+        };
+    }
+
+    /**
+     * wrap the exec chain element that sends requests to the server
+     */
+    public ClientExecChain decorate(ClientExecChain backend) {
+        return (route, request, context, execAware) -> execute(backend, route, request, context, execAware);
+    }
+
+    /**
+     * a stored response, the headers without hop-by-hop headers and Content-Length
+     */
+    static final class Entry {
+        final int status;
+        final String reason;
+        final Header[] headers;
+        final byte[] body;
+        final long requestTime;
+        final long responseTime;
+        final long freshnessMillis;
+        final long correctedInitialAgeMillis;
+        final long staleWhileRevalidateMillis;
+        final boolean noCache;
+        final boolean noStore;
+        final boolean mustRevalidate;
+        final String etag;
+        final String lastModified;
+
+        Entry(int status, String reason, Header[] headers, byte[] body, long requestTime, long responseTime) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            Map<String, String> cc = directives(headers);
+            this.noCache = cc.containsKey("no-cache");
+            this.noStore = cc.containsKey("no-store");
+            this.mustRevalidate = cc.containsKey("must-revalidate");
+            this.staleWhileRevalidateMillis = seconds(cc.get("stale-while-revalidate"), 0) * 1000;
+            this.etag = first(headers, HttpHeaders.ETAG);
+            this.lastModified = first(headers, HttpHeaders.LAST_MODIFIED);
+
+            long date = dateOf(first(headers, HttpHeaders.DATE), responseTime);
+            long apparentAge = Math.max(0, responseTime - date);
+            long correctedAge = seconds(first(headers, HttpHeaders.AGE), 0) * 1000 + (responseTime - requestTime);
+            this.correctedInitialAgeMillis = Math.max(apparentAge, correctedAge);
+
+            String expires = first(headers, HttpHeaders.EXPIRES);
+            if (cc.containsKey("max-age")) {
+                this.freshnessMillis = seconds(cc.get("max-age"), 0) * 1000;
+            } else if (expires != null) {
+                // an invalid Expires means already expired
+                this.freshnessMillis = Math.max(0, dateOf(expires, date) - date);
+            } else if (lastModified != null && HEURISTICALLY_CACHEABLE.contains(status)) {
+                this.freshnessMillis = Math.min(MAX_HEURISTIC_MILLIS, Math.max(0, date - dateOf(lastModified, date)) / 10);
+            } else {
+                this.freshnessMillis = 0;
+            }
+        }
+
+        long currentAge(long now) {
+            return correctedInitialAgeMillis + Math.max(0, now - responseTime);
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        int weight() {
+            int weight = body.length + 64;
+            for (Header header : headers) {
+                weight += 2 * (header.getName().length() + header.getValue().length()) + 32;
+            }
+            return weight;
+        }
+
+        /**
+         * the stored response with the headers of a 304 response
+         */
+        Entry freshen(HttpResponse notModified, long requestTime, long responseTime) {
+            List<Header> merged = new ArrayList<Header>();
+            Set<String> replaced = new HashSet<String>();
+            for (Header header : notModified.getAllHeaders()) {
+                String name = header.getName().toLowerCase(Locale.ROOT);
+                if (!HOP_BY_HOP.contains(name) && !NOT_FRESHENED.contains(name)) {
+                    replaced.add(name);
+                }
+            }
+            for (Header header : headers) {
+                if (!replaced.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                    merged.add(header);
+                }
+            }
+            for (Header header : notModified.getAllHeaders()) {
+                if (replaced.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                    merged.add(header);
+                }
+            }
+            return new Entry(status, reason, merged.toArray(new Header[0]), body, requestTime, responseTime);
+        }
+
+        CloseableHttpResponse toResponse(long age) {
+            CachedResponse response = new CachedResponse(status, reason);
+            response.setHeaders(headers);
+            response.setHeader(HttpHeaders.AGE, String.valueOf(Math.min(Integer.MAX_VALUE, age / 1000)));
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length));
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+            entity.setContentEncoding(response.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+            response.setEntity(entity);
+            return response;
+        }
+    }
+
+    /**
+     * a response served from the cache, there is no connection to release
+     */
+    private static final class CachedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        CachedResponse(int status, String reason) {
+            super(HttpVersion.HTTP_1_1, status, reason);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class Variants {
+        final String[] names;
+        final long generation;
+
+        Variants(String[] names, long generation) {
+            this.names = names;
+            this.generation = generation;
+        }
+    }
+
+    private CloseableHttpResponse execute(ClientExecChain backend, HttpRoute route, HttpRequestWrapper request,
+                                          HttpClientContext context, HttpExecutionAware execAware) throws IOException, HttpException {
+        String method = request.getRequestLine().getMethod();
+        String url = urlOf(route, request);
+        if (!"GET".equals(method)) {
+            CloseableHttpResponse response = backend.execute(route, request, context, execAware);
+            int status = response.getStatusLine().getStatusCode();
+            if (!SAFE_METHODS.contains(method) && status >= 200 && status < 400) {
+                invalidate(url, response);
+            }
+            return response;
+        }
+        requests.increment();
+        Map<String, String> cc = directives(request.getAllHeaders());
+        boolean noCache = cc.containsKey("no-cache")
+                || (cc.isEmpty() && "no-cache".equalsIgnoreCase(first(request.getAllHeaders(), HttpHeaders.PRAGMA)));
+        if (cc.containsKey("no-store") || request.containsHeader(HttpHeaders.RANGE)
+                || request.containsHeader(HttpHeaders.IF_NONE_MATCH) || request.containsHeader(HttpHeaders.IF_MODIFIED_SINCE)
+                || request.containsHeader(HttpHeaders.IF_MATCH) || request.containsHeader(HttpHeaders.IF_UNMODIFIED_SINCE)) {
+            bypasses.increment();
+            context.setAttribute(CACHE_STATUS, "BYPASS");
+            return backend.execute(route, request, context, execAware);
+        }
+        long maxAge = cc.containsKey("max-age") ? seconds(cc.get("max-age"), 0) * 1000 : Long.MAX_VALUE;
+
+        Variants vary = variants.get(url);
+        String key = vary == null ? null : variantKey(url, vary, request);
+        Entry entry = key == null ? null : lookup(key);
+        if (entry != null) {
+            long age = entry.currentAge(System.currentTimeMillis());
+            boolean mayServe = !entry.noCache && !noCache && age <= maxAge;
+            if (mayServe && age < entry.freshnessMillis) {
+                hits.increment();
+                context.setAttribute(CACHE_STATUS, "HIT");
+                return entry.toResponse(age);
+            }
+            if (mayServe && !entry.mustRevalidate && entry.hasValidator()
+                    && age < entry.freshnessMillis + entry.staleWhileRevalidateMillis) {
+                staleHits.increment();
+                context.setAttribute(CACHE_STATUS, "STALE");
+                revalidateInBackground(backend, route, request, context, url, key, entry);
+                return entry.toResponse(age);
+            }
+        }
+        if (cc.containsKey("only-if-cached")) {
+            misses.increment();
+            context.setAttribute(CACHE_STATUS, "MISS");
+            CachedResponse response = new CachedResponse(HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout");
+            response.setEntity(new ByteArrayEntity(new byte[0]));
+            return response;
+        }
+        if (entry != null && entry.hasValidator()) {
+            return revalidate(backend, route, request, context, execAware, url, key, entry);
+        }
+        misses.increment();
+        context.setAttribute(CACHE_STATUS, "MISS");
+        long requestTime = System.currentTimeMillis();
+        CloseableHttpResponse response = backend.execute(route, request, context, execAware);
+        return store(url, request, response, requestTime, System.currentTimeMillis());
+    }
+
+    /**
+     * conditional request for a stored response, a 304 freshens it and the stored body is returned
+     */
+    private CloseableHttpResponse revalidate(ClientExecChain backend, HttpRoute route, HttpRequestWrapper request,
+                                             HttpClientContext context, HttpExecutionAware execAware,
+                                             String url, String key, Entry entry) throws IOException, HttpException {
+        revalidations.increment();
+        // a copy, the request of the caller may be retried
+        HttpRequestWrapper conditional = HttpRequestWrapper.wrap(request);
+        if (entry.etag != null) {
+            conditional.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            conditional.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        long requestTime = System.currentTimeMillis();
+        CloseableHttpResponse response = backend.execute(route, conditional, context, execAware);
+        long responseTime = System.currentTimeMillis();
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            try {
+                EntityUtils.consume(response.getEntity());
+            } finally {
+                response.close();
+            }
+            Entry freshened = entry.freshen(response, requestTime, responseTime);
+            if (freshened.noStore) {
+                memory.remove(key);
+                if (diskIndex != null) {
+                    diskIndex.remove(fileName(key));
+                }
+            } else {
+                memory.put(key, freshened);
+            }
+            validated.increment();
+            context.setAttribute(CACHE_STATUS, "VALIDATED");
+            return freshened.toResponse(freshened.currentAge(responseTime));
+        }
+        context.setAttribute(CACHE_STATUS, "MISS");
+        return store(url, request, response, requestTime, responseTime);
+    }
+
+    private void revalidateInBackground(ClientExecChain backend, HttpRoute route, HttpRequestWrapper request,
+                                        HttpClientContext context, String url, String key, Entry entry) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        HttpRequestWrapper copy = HttpRequestWrapper.wrap(request);
+        HttpClientContext backgroundContext = HttpClientContext.create();
+        backgroundContext.setRequestConfig(context.getRequestConfig());
+        backgroundContext.setUserToken(context.getUserToken());
+        background.execute(() -> {
+            try (CloseableHttpResponse response = revalidate(backend, route, copy, backgroundContext, null, url, key, entry)) {
+                EntityUtils.consume(response.getEntity());
+                backgroundRevalidations.increment();
+            } catch (Exception e) {
+                HttpMTLSClient.log("Background revalidation of " + url + " failed: " + e);
+            } finally {
+                revalidating.remove(key);
+            }
+        });
+    }
+
+    /**
+     * store the response when it is storable, and return it with its body in memory
+     */
+    private CloseableHttpResponse store(String url, HttpRequestWrapper request, CloseableHttpResponse response,
+                                        long requestTime, long responseTime) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        Header[] headers = storedHeaders(response);
+        Entry probe = new Entry(status, response.getStatusLine().getReasonPhrase(), headers, new byte[0], requestTime, responseTime);
+        String vary = joined(response.getHeaders(HttpHeaders.VARY));
+        HttpEntity entity = response.getEntity();
+        if (!HEURISTICALLY_CACHEABLE.contains(status) || probe.noStore || vary.contains("*")
+                || (probe.freshnessMillis == 0 && !probe.hasValidator())
+                || (entity != null && entity.getContentLength() > maxEntryBytes)) {
+            notStored.increment();
+            return response;
+        }
+        byte[] body = new byte[0];
+        if (entity != null) {
+            InputStream in = entity.getContent();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while (buffer.size() <= maxEntryBytes && (n = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, n);
+            }
+            if (buffer.size() > maxEntryBytes) {
+                // too large after all, give the caller what was read and the rest of the stream
+                BasicHttpEntity rest = new BasicHttpEntity();
+                rest.setContent(new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), in));
+                rest.setContentLength(entity.getContentLength());
+                rest.setContentType(entity.getContentType());
+                rest.setContentEncoding(entity.getContentEncoding());
+                rest.setChunked(entity.isChunked());
+                response.setEntity(rest);
+                notStored.increment();
+                return response;
+            }
+            // the end of the stream released the connection
+            in.close();
+            body = buffer.toByteArray();
+            ByteArrayEntity buffered = new ByteArrayEntity(body);
+            buffered.setContentType(entity.getContentType());
+            buffered.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(buffered);
+        }
+
+        String[] names = vary.isEmpty() ? new String[0] : vary.toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+        Variants current = variants.get(url);
+        if (current == null || !String.join(",", current.names).equals(String.join(",", names))) {
+            current = new Variants(names, generations.incrementAndGet());
+            variants.put(url, current);
+        }
+        String key = variantKey(url, current, request);
+        Entry stored = new Entry(status, probe.reason, headers, body, requestTime, responseTime);
+        if (diskIndex != null) {
+            diskIndex.remove(fileName(key));
+        } else if (memoryWeight(key, stored) > memory.getMaximumEntryWeight()) {
+            // too heavy for the memory tier, and no disk tier to take it
+            memory.remove(key);
+            notStored.increment();
+            return response;
+        }
+        // an entry too heavy for memory goes to the disk tier through the removal listener
+        memory.put(key, stored);
+        stores.increment();
+        return response;
+    }
+
+    /**
+     * drop the stored responses of the URL, and of the Location and Content-Location of the response
+     */
+    private void invalidate(String url, HttpResponse response) {
+        variants.remove(url);
+        invalidations.increment();
+        for (String name : new String[] {HttpHeaders.LOCATION, HttpHeaders.CONTENT_LOCATION}) {
+            Header header = response.getFirstHeader(name);
+            if (header == null) {
+                continue;
+            }
+            try {
+                URI base = new URI(url);
+                URI location = URIUtils.resolve(base, header.getValue());
+                // only the same origin, RFC 9111 section 4.4
+                if (base.getScheme().equalsIgnoreCase(location.getScheme())
+                        && base.getRawAuthority().equalsIgnoreCase(location.getRawAuthority())) {
+                    variants.remove(location.toString());
+                }
+            } catch (URISyntaxException | IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    /**
+     * memory first, then the disk tier, a disk hit moves back to memory
+     */
+    private Entry lookup(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null || diskIndex == null) {
+            return entry;
+        }
+        String name = fileName(key);
+        if (diskIndex.get(name) == null) {
+            return null;
+        }
+        entry = readFromDisk(name, key);
+        if (entry == null) {
+            diskIndex.remove(name);
+        } else {
+            diskHits.increment();
+            // an entry too heavy for memory stays on disk
+            if (memoryWeight(key, entry) <= memory.getMaximumEntryWeight()) {
+                diskIndex.remove(name);
+                memory.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static int memoryWeight(String key, Entry entry) {
+        return 2 * key.length() + entry.weight();
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        String name = fileName(key);
+        File tmp = new File(directory, name + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(DISK_MAGIC);
+                out.writeUTF(key);
+                out.writeInt(entry.status);
+                out.writeUTF(entry.reason == null ? "" : entry.reason);
+                out.writeLong(entry.requestTime);
+                out.writeLong(entry.responseTime);
+                out.writeInt(entry.headers.length);
+                for (Header header : entry.headers) {
+                    out.writeUTF(header.getName());
+                    out.writeUTF(header.getValue());
+                }
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            }
+            File file = new File(directory, name);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskIndex.put(name, file.length());
+            diskWrites.increment();
+        } catch (IOException e) {
+            tmp.delete();
+            diskErrors.increment();
+            HttpMTLSClient.log("Can not write cache entry " + file(name) + ": " + e);
+        }
+    }
+
+    private Entry readFromDisk(String name, String key) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file(name)))) {
+            if (in.readInt() != DISK_MAGIC || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int status = in.readInt();
+            String reason = in.readUTF();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+            Header[] headers = new Header[in.readInt()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(status, reason, headers, body, requestTime, responseTime);
+        } catch (IOException e) {
+            diskErrors.increment();
+            HttpMTLSClient.log("Can not read cache entry " + file(name) + ": " + e);
+            return null;
+        }
+    }
+
+    private File file(String name) {
+        return new File(directory, name);
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 6);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(".entry").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * the route gives scheme, host and port, the request line path and query
+     */
+    private static String urlOf(HttpRoute route, HttpRequestWrapper request) {
+        String uri = request.getRequestLine().getUri();
+        if (uri.startsWith("/")) {
+            return route.getTargetHost().toURI() + uri;
+        }
+        return uri;
+    }
+
+    private static String variantKey(String url, Variants vary, HttpRequestWrapper request) {
+        StringBuilder key = new StringBuilder(url).append('\n').append(vary.generation)
+                .append("\nauthorization:").append(joined(request.getHeaders(HttpHeaders.AUTHORIZATION)));
+        for (String name : vary.names) {
+            if (!name.isEmpty() && !name.equals("authorization")) {
+                key.append('\n').append(name).append(':').append(joined(request.getHeaders(name)));
+            }
+        }
+        return key.toString();
+    }
+
+    private static Header[] storedHeaders(HttpResponse response) {
+        Set<String> connectionOptions = new HashSet<String>();
+        for (Header header : response.getHeaders(HttpHeaders.CONNECTION)) {
+            for (HeaderElement element : header.getElements()) {
+                connectionOptions.add(element.getName().toLowerCase(Locale.ROOT));
+            }
+        }
+        List<Header> stored = new ArrayList<Header>();
+        for (Header header : response.getAllHeaders()) {
+            String name = header.getName().toLowerCase(Locale.ROOT);
+            if (!HOP_BY_HOP.contains(name) && !connectionOptions.contains(name)) {
+                stored.add(header);
+            }
+        }
+        return stored.toArray(new Header[0]);
+    }
+
+    /**
+     * Cache-Control directives, lower case name -> value or null
+     */
+    private static Map<String, String> directives(Header[] headers) {
+        Map<String, String> directives = new HashMap<String, String>();
+        for (Header header : headers) {
+            if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(header.getName())) {
+                for (HeaderElement element : header.getElements()) {
+                    directives.put(element.getName().toLowerCase(Locale.ROOT), element.getValue());
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static String first(Header[] headers, String name) {
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String joined(Header[] headers) {
+        StringBuilder joined = new StringBuilder();
+        for (Header header : headers) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(header.getValue().trim());
+        }
+        return joined.toString();
+    }
+
+    private static long seconds(String value, long invalid) {
+        if (value == null) {
+            return invalid;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return invalid;
+        }
+    }
+
+    private static long dateOf(String value, long invalid) {
+        Date date = value == null ? null : DateUtils.parseDate(value);
+        return date == null ? invalid : date.getTime();
+    }
+
+    public void invalidateAll() {
+        variants.invalidateAll();
+        memory.invalidateAll();
+        if (diskIndex != null) {
+            diskIndex.invalidateAll();
+        }
+    }
+
+    /**
+     * request counts by outcome, and the size of both tiers
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("requests", requests.sum());
+        stats.put("hits", hits.sum());
+        stats.put("staleHits", staleHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("revalidations", revalidations.sum());
+        stats.put("validated", validated.sum());
+        stats.put("backgroundRevalidations", backgroundRevalidations.sum());
+        stats.put("stores", stores.sum());
+        stats.put("notStored", notStored.sum());
+        stats.put("bypasses", bypasses.sum());
+        stats.put("invalidations", invalidations.sum());
+        long served = hits.sum() + staleHits.sum() + validated.sum();
+        stats.put("hitRatio", requests.sum() == 0 ? 0.0 : (double) served / requests.sum());
+        stats.put("entries", memory.size());
+        stats.put("bytes", memory.weightedSize());
+        if (diskIndex != null) {
+            stats.put("diskEntries", diskIndex.size());
+            stats.put("diskBytes", diskIndex.weightedSize());
+            stats.put("diskHits", diskHits.sum());
+            stats.put("diskWrites", diskWrites.sum());
+            stats.put("diskErrors", diskErrors.sum());
+        }
+        return stats;
+    }
+}
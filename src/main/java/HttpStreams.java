@@ -0,0 +1,180 @@
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stream response bodies instead of buffering them: the heap used per response is a fixed size buffer,
+ * whatever the size of the body.
+ *
+ * - readPrefix(): the first characters of the body, e.g. for logging, without reading the rest into memory
+ * - transferTo(): copy the body to a FileChannel or any WritableByteChannel through pooled direct buffers
+ * - consume(): hand the body to a callback chunk by chunk
+ * - gzip and deflate bodies are decoded while streaming, the client of getHttpClient() already does it,
+ *   a client built with disableContentCompression() gets it here
+ * - gzipIfLarge(): compress a large request body while it is sent
+ *
+ * Each method reads the body of the response and closes the response, the connection goes back to the pool
+ * when the body was read to the end.
+ *
+ * sample usage:
+ *     try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+ *         long bytes = HttpStreams.transferTo(httpClient.execute(new HttpGet(url)), file);
+ *     }
+ */
+public final class HttpStreams {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // direct buffers are costly to allocate and freed late by the GC, keep a few
+    private static final ArrayBlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<ByteBuffer>(
+            Integer.getInteger("HTTP_STREAM_BUFFERS", 32));
+    // readPrefix() reads at most this much more to reuse the connection, else it closes it
+    private static final int DRAIN_LIMIT = 64 * 1024;
+    // request bodies from this size on are worth compressing
+    public static final int COMPRESS_THRESHOLD = 8 * 1024;
+
+    private HttpStreams() {
+    }
+
+    /**
+     * called with each chunk of the body, the buffer is reused after the call returns
+     */
+    public interface ChunkConsumer {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * the body decoded from gzip or deflate when its Content-Encoding says so
+     */
+    public static InputStream decodedContent(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        Header encoding = entity.getContentEncoding();
+        if (encoding == null) {
+            return in;
+        }
+        String value = encoding.getValue().trim();
+        if (value.equalsIgnoreCase("gzip") || value.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(in, 8192);
+        }
+        if (value.equalsIgnoreCase("deflate")) {
+            return new DeflateInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * at most maxChars characters from the start of the body, in the charset of its Content-Type, UTF-8 by default
+     */
+    public static String readPrefix(CloseableHttpResponse response, int maxChars) throws IOException {
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return "";
+            }
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            InputStream in = decodedContent(entity);
+            StringBuilder prefix = new StringBuilder(Math.min(maxChars, 1024));
+            Reader reader = new InputStreamReader(in, charset != null ? charset : StandardCharsets.UTF_8);
+            char[] chars = new char[Math.min(maxChars, 4096)];
+            int n;
+            while (prefix.length() < maxChars && (n = reader.read(chars, 0, Math.min(chars.length, maxChars - prefix.length()))) != -1) {
+                prefix.append(chars, 0, n);
+            }
+            drain(in);
+            return prefix.toString();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * read a short rest, the end of the body releases the connection for reuse.
+     * a long rest is not read, closing the response closes the connection.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] skip = new byte[4096];
+        int drained = 0;
+        int n;
+        while (drained < DRAIN_LIMIT && (n = in.read(skip)) != -1) {
+            drained += n;
+        }
+    }
+
+    /**
+     * copy the decoded body to the channel
+     *
+     * @return the number of bytes written
+     */
+    public static long transferTo(CloseableHttpResponse response, WritableByteChannel channel) throws IOException {
+        return consume(response, chunk -> {
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        });
+    }
+
+    /**
+     * hand the decoded body to the consumer in chunks of at most 64 KB
+     *
+     * @return the number of bytes consumed
+     */
+    public static long consume(CloseableHttpResponse response, ChunkConsumer consumer) throws IOException {
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return 0;
+            }
+            ByteBuffer buffer = acquire();
+            long total = 0;
+            try (ReadableByteChannel in = Channels.newChannel(decodedContent(entity))) {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    total += buffer.remaining();
+                    consumer.accept(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                release(buffer);
+            }
+            return total;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * gzip the entity while it is sent when it is large or of unknown length, the server must accept
+     * Content-Encoding: gzip
+     */
+    public static HttpEntity gzipIfLarge(HttpEntity entity) {
+        if (entity == null || entity.getContentEncoding() != null
+                || (entity.getContentLength() >= 0 && entity.getContentLength() < COMPRESS_THRESHOLD)) {
+            return entity;
+        }
+        return new GzipCompressingEntity(entity);
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        buffer.clear();
+        BUFFER_POOL.offer(buffer);
+    }
+}
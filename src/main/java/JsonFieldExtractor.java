@@ -0,0 +1,714 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extract fields from JSON text while reading it, without building a JSONObject: the streaming version of
+ * TestingCopilot.extractJSONFields(), with the same output.
+ *
+ * A pull tokenizer reads the text through a fixed size buffer. The keys of each object are decoded into a
+ * reused buffer and looked up in a precomputed hash table of the requested keys, nothing is allocated for
+ * keys that are not requested. Values that are not extracted are skipped as they are read, arrays in arrays
+ * are skipped whole, as extractJSONFields() does. The memory used is the buffers plus the text of the
+ * extracted values, whatever the size of the document.
+ *
+ * Output, as extractJSONFields(): "key=value, " and newline for each requested key of each object, nested
+ * objects in the same way, and for each array "[ " then its objects with an empty newline, then " ]" and
+ * newline. A string value is written as is, an object or array value as compact JSON, numbers as org.json
+ * writes them. The difference: fields come in the order of the document. extractJSONFields() writes the
+ * requested keys of an object first, in the order of keys, then its nested objects and arrays in the hash
+ * order of JSONObject; here the fields nested in an extracted value still come after it.
+ *
+ * A FieldHandler gets the extracted fields as their values end, nested fields before the value holding them.
+ *
+ * The extractor is immutable and can be shared by threads.
+ *
+ * sample usage:
+ *     JsonFieldExtractor extractor = new JsonFieldExtractor("id", "assetGUID", "assetName");
+ *     StringBuilder sb = new StringBuilder();
+ *     extractor.extract(response.getEntity().getContent(), "\n", sb);
+ */
+public final class JsonFieldExtractor {
+    private static final int BUFFER_SIZE = 8192;
+    // the read buffer of the thread, taken while an extraction uses it so that a handler can extract too
+    private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>();
+
+    private final String[] keys;
+    // open addressing table of the requested keys, a key requested twice is written twice
+    private final String[] table;
+    private final int[] repeats;
+    private final int mask;
+
+    /**
+     * gets each extracted field, the value is only valid during the call
+     */
+    public interface FieldHandler {
+        void field(String key, CharSequence value) throws IOException;
+    }
+
+    public JsonFieldExtractor(String... keys) {
+        this.keys = keys.clone();
+        int size = Integer.highestOneBit(Math.max(2, keys.length * 2) - 1) << 1;
+        table = new String[size];
+        repeats = new int[size];
+        mask = size - 1;
+        for (String key : keys) {
+            int slot = key.hashCode() & mask;
+            while (table[slot] != null && !table[slot].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = key;
+            repeats[slot]++;
+        }
+    }
+
+    /**
+     * slot of the key in chars[0, length), -1 when it is not requested
+     */
+    private int find(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int slot = hash & mask;
+        String key;
+        while ((key = table[slot]) != null) {
+            if (key.length() == length) {
+                int i = 0;
+                while (i < length && key.charAt(i) == chars[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public void extract(Reader json, String newline, Appendable out) throws IOException {
+        new Parser(json, new TextEmitter(out)).document(newline);
+    }
+
+    /**
+     * UTF-8 text
+     */
+    public void extract(InputStream json, String newline, Appendable out) throws IOException {
+        extract(new InputStreamReader(json, StandardCharsets.UTF_8), newline, out);
+    }
+
+    /**
+     * UTF-8 text from the position to the limit of the buffer, the position is not changed
+     */
+    public void extract(ByteBuffer json, String newline, Appendable out) throws IOException {
+        extract(new ByteBufferReader(json.duplicate()), newline, out);
+    }
+
+    public void extract(Reader json, FieldHandler handler) throws IOException {
+        new Parser(json, new HandlerEmitter(handler)).document("");
+    }
+
+    public void extract(InputStream json, FieldHandler handler) throws IOException {
+        extract(new InputStreamReader(json, StandardCharsets.UTF_8), handler);
+    }
+
+    public void extract(ByteBuffer json, FieldHandler handler) throws IOException {
+        extract(new ByteBufferReader(json.duplicate()), handler);
+    }
+
+    /**
+     * what the parser found, in the order the output needs
+     */
+    private interface Emitter {
+        /** an extracted object or array value starts */
+        void push();
+
+        /** it ended, its text is text[start, end) */
+        void pop(String key, int repeat, StringBuilder text, int start, int end, String newline) throws IOException;
+
+        void scalar(String key, int repeat, CharSequence text, String newline) throws IOException;
+
+        void arrayStart() throws IOException;
+
+        void arrayEnd(String newline) throws IOException;
+    }
+
+    /**
+     * the output of extractJSONFields(), what is found inside an extracted value waits until the value is written
+     */
+    private static final class TextEmitter implements Emitter {
+        private final Appendable out;
+        private StringBuilder[] deferred = new StringBuilder[4];
+        private int level = 0;
+
+        TextEmitter(Appendable out) {
+            this.out = out;
+        }
+
+        private Appendable target() {
+            return level == 0 ? out : deferred[level - 1];
+        }
+
+        @Override
+        public void push() {
+            if (level == deferred.length) {
+                deferred = java.util.Arrays.copyOf(deferred, level * 2);
+            }
+            if (deferred[level] == null) {
+                deferred[level] = new StringBuilder();
+            }
+            deferred[level].setLength(0);
+            level++;
+        }
+
+        @Override
+        public void pop(String key, int repeat, StringBuilder text, int start, int end, String newline) throws IOException {
+            level--;
+            Appendable target = target();
+            for (int i = 0; i < repeat; i++) {
+                target.append(key).append('=').append(text, start, end).append(", ").append(newline);
+            }
+            StringBuilder nested = deferred[level];
+            target.append(nested);
+            nested.setLength(0);
+        }
+
+        @Override
+        public void scalar(String key, int repeat, CharSequence text, String newline) throws IOException {
+            Appendable target = target();
+            for (int i = 0; i < repeat; i++) {
+                target.append(key).append('=').append(text).append(", ").append(newline);
+            }
+        }
+
+        @Override
+        public void arrayStart() throws IOException {
+            target().append("[ ");
+        }
+
+        @Override
+        public void arrayEnd(String newline) throws IOException {
+            target().append(" ]").append(newline);
+        }
+    }
+
+    private static final class HandlerEmitter implements Emitter {
+        private final FieldHandler handler;
+        private final Slice slice = new Slice();
+
+        HandlerEmitter(FieldHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void push() {
+        }
+
+        @Override
+        public void pop(String key, int repeat, StringBuilder text, int start, int end, String newline) throws IOException {
+            slice.set(text, start, end);
+            for (int i = 0; i < repeat; i++) {
+                handler.field(key, slice);
+            }
+        }
+
+        @Override
+        public void scalar(String key, int repeat, CharSequence text, String newline) throws IOException {
+            for (int i = 0; i < repeat; i++) {
+                handler.field(key, text);
+            }
+        }
+
+        @Override
+        public void arrayStart() {
+        }
+
+        @Override
+        public void arrayEnd(String newline) {
+        }
+    }
+
+    /**
+     * a range of a StringBuilder, without copying it
+     */
+    private static final class Slice implements CharSequence {
+        private StringBuilder text;
+        private int start;
+        private int end;
+
+        void set(StringBuilder text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return text.subSequence(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return text.substring(start, end);
+        }
+    }
+
+    /**
+     * one extraction: the tokenizer, and the text of the extracted values being read
+     */
+    private final class Parser {
+        private final Reader in;
+        private final Emitter emitter;
+        private final char[] buffer;
+        private int position = 0;
+        private int limit = 0;
+        private long consumed = 0;
+        private char[] key = new char[64];
+        // compact JSON of the extracted objects and arrays being read, nested ones share it
+        private final StringBuilder capture = new StringBuilder();
+        private int captures = 0;
+        private final StringBuilder scalar = new StringBuilder();
+        private char previous;
+
+        Parser(Reader in, Emitter emitter) {
+            this.in = in;
+            this.emitter = emitter;
+            char[] free = BUFFERS.get();
+            if (free != null) {
+                BUFFERS.set(null);
+            } else {
+                free = new char[BUFFER_SIZE];
+            }
+            buffer = free;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                consumed += limit;
+                position = 0;
+                limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                if (limit == 0) {
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        /**
+         * the next character that is not white space, not consumed
+         */
+        private int peekClean() throws IOException {
+            int c;
+            while ((c = read()) != -1 && c <= ' ') {
+                // skip
+            }
+            if (c != -1) {
+                position--;
+            }
+            return c;
+        }
+
+        private int nextClean() throws IOException {
+            int c = peekClean();
+            if (c != -1) {
+                position++;
+            }
+            return c;
+        }
+
+        private JSONException error(String message) {
+            return new JSONException(message + " at character " + (consumed + position));
+        }
+
+        void document(String newline) throws IOException {
+            try {
+                if (nextClean() != '{') {
+                    throw error("A JSONObject text must begin with '{'");
+                }
+                object(newline, true);
+            } finally {
+                BUFFERS.set(buffer);
+            }
+        }
+
+        /**
+         * the members of an object, after its '{'
+         *
+         * @param visit     extract its requested keys, false inside an array of an array
+         */
+        private void object(String newline, boolean visit) throws IOException {
+            if (captures > 0) {
+                capture.append('{');
+            }
+            int c = nextClean();
+            if (c == '}') {
+                if (captures > 0) {
+                    capture.append('}');
+                }
+                return;
+            }
+            while (true) {
+                if (c == -1) {
+                    throw error("A JSONObject text must end with '}'");
+                }
+                if (c != '"') {
+                    throw error("A JSONObject key must be a string");
+                }
+                int length = readKey();
+                int slot = visit ? find(key, length) : -1;
+                if (captures > 0) {
+                    previous = 0;
+                    capture.append('"');
+                    for (int i = 0; i < length; i++) {
+                        quote(capture, key[i]);
+                    }
+                    capture.append('"').append(':');
+                }
+                if (nextClean() != ':') {
+                    throw error("Expected a ':' after a key");
+                }
+                if (slot >= 0) {
+                    extracted(table[slot], repeats[slot], newline);
+                } else {
+                    value(newline, visit);
+                }
+                c = nextClean();
+                if (c == '}') {
+                    if (captures > 0) {
+                        capture.append('}');
+                    }
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected a ',' or '}'");
+                }
+                if (captures > 0) {
+                    capture.append(',');
+                }
+                c = nextClean();
+            }
+        }
+
+        /**
+         * the elements of an array, after its '['. its objects are extracted with an empty newline,
+         * its arrays are skipped.
+         */
+        private void array(String newline, boolean visit) throws IOException {
+            if (captures > 0) {
+                capture.append('[');
+            }
+            if (visit) {
+                emitter.arrayStart();
+            }
+            if (peekClean() == ']') {
+                position++;
+            } else {
+                while (true) {
+                    int c = nextClean();
+                    if (c == '{') {
+                        object("", visit);
+                    } else if (c == '[') {
+                        array("", false);
+                    } else {
+                        position--;
+                        scalar(false, captures > 0);
+                    }
+                    c = nextClean();
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("Expected a ',' or ']'");
+                    }
+                    if (captures > 0) {
+                        capture.append(',');
+                    }
+                }
+            }
+            if (captures > 0) {
+                capture.append(']');
+            }
+            if (visit) {
+                emitter.arrayEnd(newline);
+            }
+        }
+
+        /**
+         * a value of a key that is not requested
+         */
+        private void value(String newline, boolean visit) throws IOException {
+            int c = nextClean();
+            if (c == '{') {
+                object(newline, visit);
+            } else if (c == '[') {
+                array(newline, visit);
+            } else {
+                position--;
+                scalar(false, captures > 0);
+            }
+        }
+
+        /**
+         * the value of a requested key
+         */
+        private void extracted(String name, int repeat, String newline) throws IOException {
+            int c = nextClean();
+            if (c == '{' || c == '[') {
+                int start = capture.length();
+                captures++;
+                emitter.push();
+                if (c == '{') {
+                    object(newline, true);
+                } else {
+                    array(newline, true);
+                }
+                captures--;
+                emitter.pop(name, repeat, capture, start, capture.length(), newline);
+                if (captures == 0) {
+                    capture.setLength(0);
+                }
+            } else {
+                position--;
+                emitter.scalar(name, repeat, scalar(true, captures > 0), newline);
+            }
+        }
+
+        /**
+         * a string, number, true, false or null
+         *
+         * @param text      return the value as extractJSONFields() writes it, else skip it
+         * @param captured  add it to the capture as JSON
+         */
+        private CharSequence scalar(boolean text, boolean captured) throws IOException {
+            int c = read();
+            if (c == '"') {
+                if (text) {
+                    scalar.setLength(0);
+                }
+                previous = 0;
+                if (captured) {
+                    capture.append('"');
+                }
+                readString(text ? scalar : null, captured ? capture : null);
+                if (captured) {
+                    capture.append('"');
+                }
+                return text ? scalar : null;
+            }
+            if (c == -1) {
+                throw error("Missing value");
+            }
+            position--;
+            if (!text && !captured) {
+                while ((c = read()) != -1 && c > ' ' && c != ',' && c != '}' && c != ']' && c != ':') {
+                    // skip
+                }
+                if (c != -1) {
+                    position--;
+                }
+                return null;
+            }
+            scalar.setLength(0);
+            while ((c = read()) != -1 && c > ' ' && c != ',' && c != '}' && c != ']' && c != ':') {
+                scalar.append((char) c);
+            }
+            if (c != -1) {
+                position--;
+            }
+            if (scalar.length() == 0) {
+                throw error("Missing value");
+            }
+            // the same conversion as the JSONObject parser, then the same formatting as JSONObject
+            Object value = JSONObject.stringToValue(scalar.toString());
+            if (captured) {
+                capture.append(JSONObject.valueToString(value));
+            }
+            if (text) {
+                scalar.setLength(0);
+                scalar.append(value);
+            }
+            return text ? scalar : null;
+        }
+
+        /**
+         * a key, after its opening quote, into key[0, length)
+         */
+        private int readKey() throws IOException {
+            int length = 0;
+            int c;
+            while ((c = readStringChar()) >= 0) {
+                if (length == key.length) {
+                    key = java.util.Arrays.copyOf(key, length * 2);
+                }
+                key[length++] = (char) c;
+            }
+            return length;
+        }
+
+        /**
+         * a string after its opening quote, decoded into raw and escaped as JSONObject.quote() into quoted
+         */
+        private void readString(StringBuilder raw, StringBuilder quoted) throws IOException {
+            int c;
+            while ((c = readStringChar()) >= 0) {
+                if (raw != null) {
+                    raw.append((char) c);
+                }
+                if (quoted != null) {
+                    quote(quoted, (char) c);
+                }
+            }
+        }
+
+        /**
+         * the next decoded character of a string, -1 at its closing quote
+         */
+        private int readStringChar() throws IOException {
+            int c = read();
+            switch (c) {
+                case -1:
+                case '\n':
+                case '\r':
+                    throw error("Unterminated string");
+                case '"':
+                    return -1;
+                case '\\':
+                    c = read();
+                    switch (c) {
+                        case 'b':
+                            return '\b';
+                        case 't':
+                            return '\t';
+                        case 'n':
+                            return '\n';
+                        case 'f':
+                            return '\f';
+                        case 'r':
+                            return '\r';
+                        case 'u':
+                            int code = 0;
+                            for (int i = 0; i < 4; i++) {
+                                int digit = Character.digit(read(), 16);
+                                if (digit < 0) {
+                                    throw error("Illegal escape");
+                                }
+                                code = code * 16 + digit;
+                            }
+                            return code;
+                        case '"':
+                        case '\'':
+                        case '\\':
+                        case '/':
+                            return c;
+                        default:
+                            throw error("Illegal escape");
+                    }
+                default:
+                    return c;
+            }
+        }
+
+        /**
+         * one character escaped as JSONObject.quote() does, previous is the character before it
+         */
+        private void quote(StringBuilder out, char c) {
+            switch (c) {
+                case '\\':
+                case '"':
+                    out.append('\\').append(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        String hex = Integer.toHexString(c);
+                        out.append("\\u");
+                        for (int i = hex.length(); i < 4; i++) {
+                            out.append('0');
+                        }
+                        out.append(hex);
+                    } else {
+                        out.append(c);
+                    }
+            }
+            previous = c;
+        }
+    }
+
+    /**
+     * UTF-8 decoding of a ByteBuffer, heap or direct
+     */
+    private static final class ByteBufferReader extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean flushed = false;
+
+        ByteBufferReader(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (flushed) {
+                return -1;
+            }
+            CharBuffer out = CharBuffer.wrap(chars, offset, length);
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (!bytes.hasRemaining() && !result.isOverflow()) {
+                decoder.flush(out);
+                flushed = true;
+            }
+            int n = out.position() - offset;
+            return n == 0 && flushed ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
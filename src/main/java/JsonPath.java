@@ -0,0 +1,311 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compiled lookup of values in a JSONObject or JSONArray by path, instead of chains of has() and
+ * getJSONObject() written for each caller.
+ *
+ * An expression is one path or alternatives in braces, tried in their order:
+ *     account.name
+ *     {name, person.name, user.name}
+ *     list.*.assetName             * is any key of an object, or any element of an array
+ *     list.0.assetName             a number is an index in an array
+ *
+ * The paths are compiled into a tree that shares their common prefixes, a document is walked once for all
+ * the alternatives: person.name and person.id look up person once. first() stops as soon as no remaining
+ * alternative can come before the one found.
+ *
+ * compile() caches the compiled paths by expression in an LRUCaching (java property JSON_PATH_CACHE_SIZE,
+ * 1000), a hot path can also keep its JsonPath in a static final field. A JsonPath is immutable and can be
+ * shared by threads.
+ *
+ * firstOfEach() runs over the elements of a large JSONArray in parallel with fork-join (java property
+ * JSON_PATH_PARALLEL_THRESHOLD, arrays of 1024 elements or more), the results keep the order of the array.
+ *
+ * sample usage:
+ *     JsonPath name = JsonPath.compile("{name, person.name, user.name}");
+ *     JSONObject value = name.first(json, JSONObject.class);
+ *     List<String> names = JsonPath.compile("assetName").firstOfEach(list, String.class);
+ */
+public final class JsonPath {
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("JSON_PATH_PARALLEL_THRESHOLD", 1024);
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class CacheHolder {
+        static final LRUCaching<String, JsonPath> COMPILED = LRUCaching.<String, JsonPath>newBuilder()
+                .maximumSize(Integer.getInteger("JSON_PATH_CACHE_SIZE", 1000))
+                .build();
+    }
+
+    private final String expression;
+    private final Node root = new Node(null);
+    private final int alternatives;
+
+    /**
+     * a step of the paths, its children are sorted by the first alternative under them
+     */
+    private static final class Node {
+        final String key;       // null for *
+        final int index;        // key as an array index, -1 when it is not a number
+        Node[] children = NO_CHILDREN;
+        int alternative = Integer.MAX_VALUE;   // the path that ends here
+        int first = Integer.MAX_VALUE;         // the first alternative ending here or below
+
+        Node(String key) {
+            this.key = key;
+            int i = -1;
+            if (key != null && !key.isEmpty() && key.length() < 10 && key.chars().allMatch(Character::isDigit)) {
+                i = Integer.parseInt(key);
+            }
+            this.index = i;
+        }
+
+        Node child(String key) {
+            for (Node child : children) {
+                if (key == null ? child.key == null : key.equals(child.key)) {
+                    return child;
+                }
+            }
+            Node child = new Node(key);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+
+        void sort() {
+            for (Node child : children) {
+                child.sort();
+                first = Math.min(first, child.first);
+            }
+            first = Math.min(first, alternative);
+            Arrays.sort(children, (a, b) -> Integer.compare(a.first, b.first));
+        }
+    }
+
+    /**
+     * the first match found, and the alternative it belongs to
+     */
+    private static final class Match {
+        int alternative = Integer.MAX_VALUE;
+        Object value;
+    }
+
+    private JsonPath(String expression) {
+        this.expression = expression;
+        String paths = expression.trim();
+        if (paths.startsWith("{")) {
+            if (!paths.endsWith("}")) {
+                throw new IllegalArgumentException("Missing '}' in JSON path " + expression);
+            }
+            paths = paths.substring(1, paths.length() - 1);
+        }
+        String[] split = paths.split(",", -1);
+        for (int alternative = 0; alternative < split.length; alternative++) {
+            Node node = root;
+            for (String segment : split[alternative].split("\\.", -1)) {
+                segment = segment.trim();
+                if (segment.isEmpty()) {
+                    throw new IllegalArgumentException("Empty step in JSON path " + expression);
+                }
+                node = node.child(segment.equals("*") ? null : segment);
+            }
+            node.alternative = Math.min(node.alternative, alternative);
+        }
+        alternatives = split.length;
+        root.sort();
+    }
+
+    /**
+     * the compiled expression, from the cache when it was compiled before
+     *
+     * @throws IllegalArgumentException     when the expression has an empty path or step
+     */
+    public static JsonPath compile(String expression) {
+        return CacheHolder.COMPILED.get(expression, JsonPath::new);
+    }
+
+    /**
+     * stats of the cache of compiled expressions
+     */
+    public static JSONObject getCacheStats() {
+        return CacheHolder.COMPILED.getStats();
+    }
+
+    /**
+     * the value of the first alternative that matches, null when none matches.
+     * a wildcard matches the keys of an object in the order of JSONObject.keySet().
+     */
+    public Object first(Object json) {
+        return first(json, Object.class);
+    }
+
+    /**
+     * the value of the first alternative that matches with a value of the type, null when none matches
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T first(Object json, Class<T> type) {
+        Match match = new Match();
+        first(json, root, type, match);
+        return (T) match.value;
+    }
+
+    private static void first(Object value, Node node, Class<?> type, Match match) {
+        if (node.alternative < match.alternative && type.isInstance(value)) {
+            match.alternative = node.alternative;
+            match.value = value;
+        }
+        for (Node child : node.children) {
+            if (child.first >= match.alternative) {
+                // sorted, no later child can do better
+                return;
+            }
+            if (child.key != null) {
+                Object next = step(value, child);
+                if (next != null) {
+                    first(next, child, type, match);
+                }
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                for (String key : object.keySet()) {
+                    first(object.opt(key), child, type, match);
+                    if (child.first >= match.alternative) {
+                        break;
+                    }
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length() && child.first < match.alternative; i++) {
+                    first(array.opt(i), child, type, match);
+                }
+            }
+        }
+    }
+
+    /**
+     * every value that matches, those of the first alternative first, then those of the next one
+     */
+    public List<Object> all(Object json) {
+        List<Object>[] found = newListArray(alternatives);
+        all(json, root, found);
+        List<Object> values = new ArrayList<Object>();
+        for (List<Object> list : found) {
+            if (list != null) {
+                values.addAll(list);
+            }
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object>[] newListArray(int length) {
+        return (List<Object>[]) new List<?>[length];
+    }
+
+    private static void all(Object value, Node node, List<Object>[] found) {
+        if (node.alternative != Integer.MAX_VALUE) {
+            if (found[node.alternative] == null) {
+                found[node.alternative] = new ArrayList<Object>();
+            }
+            found[node.alternative].add(value);
+        }
+        for (Node child : node.children) {
+            if (child.key != null) {
+                Object next = step(value, child);
+                if (next != null) {
+                    all(next, child, found);
+                }
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                for (String key : object.keySet()) {
+                    all(object.opt(key), child, found);
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length(); i++) {
+                    all(array.opt(i), child, found);
+                }
+            }
+        }
+    }
+
+    private static Object step(Object value, Node node) {
+        if (value instanceof JSONObject) {
+            return ((JSONObject) value).opt(node.key);
+        }
+        if (value instanceof JSONArray && node.index >= 0) {
+            return ((JSONArray) value).opt(node.index);
+        }
+        return null;
+    }
+
+    /**
+     * first() of each element of the array, null for an element without a match, in the order of the array.
+     * large arrays are split over the threads of the common fork-join pool.
+     */
+    public List<Object> firstOfEach(JSONArray array) {
+        return firstOfEach(array, Object.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> List<T> firstOfEach(JSONArray array, Class<T> type) {
+        Object[] results = new Object[array.length()];
+        if (results.length < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = first(array.opt(i), type);
+            }
+        } else {
+            // a few slices per thread, so that a thread finishing early steals from the others
+            int slice = Math.max(64, results.length / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            ForkJoinPool.commonPool().invoke(new Slices(array, type, results, 0, results.length, slice));
+        }
+        return (List<T>) Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * first() of the elements [from, to), each result is written at the index of its element
+     */
+    private final class Slices extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final JSONArray array;
+        private final Class<?> type;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int slice;
+
+        Slices(JSONArray array, Class<?> type, Object[] results, int from, int to, int slice) {
+            this.array = array;
+            this.type = type;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.slice = slice;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= slice) {
+                for (int i = from; i < to; i++) {
+                    results[i] = first(array.opt(i), type);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Slices(array, type, results, from, middle, slice),
+                        new Slices(array, type, results, middle, to, slice));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -1,54 +1,872 @@
 /**
- * LRU caching class, using apache commons LRUMap
+ * LRU caching class
  * compute hits ratio, and reset stats when hits count is too large/overflow
  * save last reset time
+ *
+ * Each cache is an instance, configured with a builder:
+ *     LRUCaching<String, String> cache = LRUCaching.<String, String>newBuilder()
+ *             .maximumWeight(64 * 1024 * 1024)
+ *             .weigher((k, v) -> k.length() + v.length())
+ *             .expireAfterWrite(10, TimeUnit.MINUTES)
+ *             .build();
+ *
+ * With a weigher, an entry can not weigh more than maximumEntryWeight (an 8th of maximumWeight by default),
+ * and there are never so many segments that a segment can not hold such an entry. A heavier entry is not
+ * stored: it is counted in the "oversized" stat and passed to the removal listener with SIZE at once.
+ *
+ * The cache is split into lock-striped segments, each segment keeps its own LRU list guarded by its own lock,
+ * so threads working on different keys do not serialize on one global lock.
+ * Eviction is LRU within a segment, which approximates LRU over the whole cache.
+ * Set concurrencyLevel(1) (or java property LRU_CACHE_SEGMENTS=1) to get the exact (single lock) LRU behavior.
+ *
+ * evictionPolicy(EvictionPolicy.TINY_LFU) turns on the W-TinyLFU admission policy, a new entry only pushes
+ * an old one out of the cache when it is estimated to be accessed more often, so a scan over cold keys
+ * does not flush the hot entries.
+ *
+ * get(key, loader), getAsync(key, asyncLoader) and getAll(keys, batchLoader) load missing values,
+ * with at most one load in flight per key. refreshAfterWrite reloads old entries in the background
+ * before they expire.
+ *
+ * recordAnalytics() adds sampled hot keys, eviction ages, hits ratio time windows and, without a weigher,
+ * a what-if capacity estimate to getStats(), see CacheAnalytics.
+ *
+ * CacheInvalidationBus keeps the caches of several nodes coherent, a put() or remove() on one node
+ * removes the key from the other nodes.
+ *
+ * Expired entries are dropped when they are read, and by an amortized cleanup pass that walks only
+ * the oldest entries of a segment, so there is no scan of the whole cache on access.
  */
-import org.apache.commons.collections4.map.LRUMap;
 import org.json.JSONObject;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-public class LRUCaching {
-    private static LRUMap<String, String> cache = new LRUMap<String, String>(1000);
-    private static long hits = 1;
-    private static long misses = 1;
-    private static long overflow = Long.MAX_VALUE - 100;  // give some buffer before overflow
+public class LRUCaching<K, V> {
+    private static final int DEFAULT_CAPACITY = 1000;
+    // keep at least this many entries per segment, so that per-segment LRU stays close to global LRU
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENTS = 64;
+    // run the amortized cleanup pass once every CLEANUP_INTERVAL reads of a segment
+    private static final int CLEANUP_INTERVAL = 64;
+    // TinyLFU: the admission window takes 1% of the weight, the protected list up to 80% of the main region
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * how entries are chosen for eviction
+     */
+    public enum EvictionPolicy {
+        /** least recently used */
+        LRU,
+        /** W-TinyLFU, a small LRU admission window, a frequency sketch, and a segmented LRU main region */
+        TINY_LFU
+    }
+
+    /**
+     * compute the weight of an entry, e.g. its approximate size in bytes.
+     */
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    /**
+     * why an entry left the cache
+     */
+    public enum RemovalCause {
+        /** removed by remove() */
+        EXPLICIT,
+        /** value replaced by put() */
+        REPLACED,
+        /** expireAfterWrite or expireAfterAccess */
+        EXPIRED,
+        /** evicted to stay within maximumSize / maximumWeight */
+        SIZE
+    }
+
+    /**
+     * notified when an entry is removed, replaced, expired or evicted.
+     * runs on the thread that caused the removal while it holds the segment lock, so it must be quick
+     * and must not call back into the cache.
+     */
+    public interface RemovalListener<K, V> {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long maximumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long maximumEntryWeight;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final EvictionPolicy evictionPolicy;
+    private final RemovalListener<? super K, ? super V> removalListener;
+    private final long refreshAfterWriteNanos;
+    private final Executor refreshExecutor;
+    private final CacheAnalytics analytics;
+    // loads in flight, callers of the same key wait on the same future
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    // striped counters, so that get() does not contend on a shared field
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder loadSuccess = new LongAdder();
+    private final LongAdder loadFailure = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private long overflow = Long.MAX_VALUE - 100;  // give some buffer before overflow
     // record lastResetTime for stats reset
-    private static GregorianCalendar  lastResetTime = new GregorianCalendar();
+    private volatile GregorianCalendar  lastResetTime = new GregorianCalendar();
+
+    private static class DefaultCacheHolder {
+        static final LRUCaching<String, String> DEFAULT_CACHE = LRUCaching.<String, String>newBuilder().build();
+    }
+
+    /**
+     * the shared String cache with the default capacity of 1000 entries
+     */
+    public static LRUCaching<String, String> getInstance() {
+        return DefaultCacheHolder.DEFAULT_CACHE;
+    }
+
+    public static <K, V> Builder<K, V> newBuilder() {
+        return new Builder<K, V>();
+    }
+
+    /**
+     * builder for LRUCaching, maximumSize and maximumWeight are mutually exclusive.
+     */
+    public static class Builder<K, V> {
+        private long maximumSize = -1;
+        private long maximumWeight = -1;
+        private Weigher<? super K, ? super V> weigher = null;
+        private long maximumEntryWeight = -1;
+        private long expireAfterWriteNanos = 0;
+        private long expireAfterAccessNanos = 0;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+        private RemovalListener<? super K, ? super V> removalListener = null;
+        private long refreshAfterWriteNanos = 0;
+        private Executor refreshExecutor = ForkJoinPool.commonPool();
+        private boolean recordAnalytics = false;
+        private int concurrencyLevel = Integer.getInteger("LRU_CACHE_SEGMENTS", Runtime.getRuntime().availableProcessors());
+
+        /**
+         * maximum number of entries, default is 1000
+         */
+        public Builder<K, V> maximumSize(long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * maximum total weight of all entries, requires a weigher
+         */
+        public Builder<K, V> maximumWeight(long maximumWeight) {
+            if (maximumWeight < 0) {
+                throw new IllegalArgumentException("maximumWeight must not be negative: " + maximumWeight);
+            }
+            this.maximumWeight = maximumWeight;
+            return this;
+        }
+
+        public Builder<K, V> weigher(Weigher<? super K, ? super V> weigher) {
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * heaviest entry the cache stores, requires a weigher, default is maximumWeight / 8.
+         * it bounds the number of segments: each segment gets at least this weight.
+         */
+        public Builder<K, V> maximumEntryWeight(long maximumEntryWeight) {
+            if (maximumEntryWeight < 1) {
+                throw new IllegalArgumentException("maximumEntryWeight must be positive: " + maximumEntryWeight);
+            }
+            this.maximumEntryWeight = maximumEntryWeight;
+            return this;
+        }
+
+        /**
+         * entries expire after this duration since they were created or last replaced
+         */
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * entries expire after this duration since they were last read or written
+         */
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * eviction policy, default is LRU
+         */
+        public Builder<K, V> evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * get(key, loader) reloads an entry in the background when it is older than this duration,
+         * set it shorter than expireAfterWrite so hot entries never expire
+         */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+            this.refreshAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * executor for background refreshes, default is the common ForkJoinPool
+         */
+        public Builder<K, V> refreshExecutor(Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        /**
+         * sample reads and evictions for getStats(), see CacheAnalytics
+         */
+        public Builder<K, V> recordAnalytics() {
+            this.recordAnalytics = true;
+            return this;
+        }
+
+        public Builder<K, V> removalListener(RemovalListener<? super K, ? super V> removalListener) {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        /**
+         * number of lock-striped segments, rounded up to a power of 2
+         */
+        public Builder<K, V> concurrencyLevel(int concurrencyLevel) {
+            if (concurrencyLevel < 1) {
+                throw new IllegalArgumentException("concurrencyLevel must be positive: " + concurrencyLevel);
+            }
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public LRUCaching<K, V> build() {
+            if (maximumSize >= 0 && maximumWeight >= 0) {
+                throw new IllegalStateException("maximumSize and maximumWeight can not both be set");
+            }
+            if ((maximumWeight >= 0) != (weigher != null)) {
+                throw new IllegalStateException("maximumWeight and weigher must be set together");
+            }
+            if (maximumEntryWeight >= 0 && weigher == null) {
+                throw new IllegalStateException("maximumEntryWeight requires a weigher");
+            }
+            return new LRUCaching<K, V>(this);
+        }
+    }
+
+    /**
+     * cache entry, linked in one of its segment's LRU (access order) lists, and in write order list when expireAfterWrite is on.
+     */
+    static final class Node<K, V> {
+        static final byte WINDOW = 0;
+        static final byte PROBATION = 1;
+        static final byte PROTECTED = 2;
+
+        final K key;
+        V value;
+        int weight;
+        byte queue;
+        boolean refreshing;
+        long refreshWriteTime;      // writeTime when the refresh was claimed, a later put() makes the reload stale
+        long writeTime;
+        long accessTime;
+        Node<K, V> prev;
+        Node<K, V> next;
+        Node<K, V> writePrev;
+        Node<K, V> writeNext;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+
+    private LRUCaching(Builder<K, V> builder) {
+        if (builder.weigher != null) {
+            this.maximumWeight = builder.maximumWeight;
+            this.weigher = builder.weigher;
+            this.maximumEntryWeight = Math.max(1, builder.maximumEntryWeight >= 0
+                    ? Math.min(builder.maximumEntryWeight, maximumWeight) : maximumWeight / 8);
+        } else {
+            this.maximumWeight = builder.maximumSize >= 0 ? builder.maximumSize : DEFAULT_CAPACITY;
+            this.weigher = null;
+            this.maximumEntryWeight = 1;
+        }
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.evictionPolicy = builder.evictionPolicy;
+        this.removalListener = builder.removalListener;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        this.refreshExecutor = builder.refreshExecutor;
+        this.analytics = builder.recordAnalytics ? new CacheAnalytics(maximumWeight, weigher != null) : null;
+
+        int count = getSegmentCount(builder.concurrencyLevel);
+        segments = newSegmentArray(count);
+        // spread the capacity over the segments, the first segments take the remainder
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maximumWeight / count + (i < maximumWeight % count ? 1 : 0));
+        }
+        segmentMask = count - 1;
+        hits.increment();
+        misses.increment();
+    }
+
+    /**
+     * number of segments, always a power of 2.
+     * without a weigher, each segment keeps at least MIN_SEGMENT_CAPACITY entries.
+     * with a weigher, each segment can hold an entry of maximumEntryWeight.
+     */
+    private int getSegmentCount(int concurrencyLevel) {
+        int wanted = Math.min(concurrencyLevel, MAX_SEGMENTS);
+        if (weigher == null) {
+            wanted = (int) Math.min(wanted, maximumWeight / MIN_SEGMENT_CAPACITY);
+        } else {
+            wanted = (int) Math.min(wanted, maximumWeight / maximumEntryWeight);
+        }
+        // rounded down, rounding up would break the bounds above
+        return Integer.highestOneBit(Math.max(1, wanted));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Segment[] newSegmentArray(int count) {
+        return (Segment[]) java.lang.reflect.Array.newInstance(Segment.class, count);
+    }
+
+    /**
+     * find the segment for a key, spreading the hash bits so that similar keys land in different segments.
+     */
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("negative weight for key: " + key);
+        }
+        return weight;
+    }
 
     /**
      * put a key-value pair into cache
      * @param key
      * @param value
      */
-    public static synchronized void put(String key, String value) {
-        cache.put(key, value);
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("LRUCaching does not accept null keys or values");
+        }
+        int weight = weigh(key, value);
+        if (weight > maximumEntryWeight) {
+            // the old value is stale now
+            segmentFor(key).remove(key);
+            rejectOversized(key, value);
+            return;
+        }
+        segmentFor(key).put(key, value, weight, System.nanoTime());
     }
 
     /**
-     * get value from cache, if not found, return null
+     * an entry heavier than maximumEntryWeight is not stored, the removal listener sees it evicted at once
      */
-    public static synchronized String get(String key) {
-        checkHitsMissesOverflow();
-        if (cache.containsKey(key)) {
-            hits++;
-            return cache.get(key);
+    private void rejectOversized(K key, V value) {
+        oversized.increment();
+        if (removalListener != null) {
+            removalListener.onRemoval(key, value, RemovalCause.SIZE);
+        }
+    }
+
+    /**
+     * heaviest entry the cache stores, 1 without a weigher
+     */
+    public long getMaximumEntryWeight() {
+        return maximumEntryWeight;
+    }
+
+    /**
+     * get value from cache, if not found or expired, return null
+     */
+    public V get(K key) {
+        long now = System.nanoTime();
+        V value = segmentFor(key).get(key, now);
+        if (value != null) {
+            hits.increment();
         } else {
-            misses++;
-            return null;
+            misses.increment();
+        }
+        if (analytics != null) {
+            analytics.recordAccess(key, value != null, now);
+        }
+        return value;
+    }
+
+    /**
+     * get value from cache, or load it on a miss.
+     * at most one load per key runs at a time, other callers of the same key wait for that load.
+     * with refreshAfterWrite, a hit on an old entry returns the current value and reloads it in the background.
+     *
+     * @param loader   computes the value, a null value is not cached
+     * @return  the cached or loaded value, or null when the loader returned null
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value != null) {
+            Node<K, V> claimed = refreshAfterWriteNanos > 0 ? segmentFor(key).claimRefresh(key, System.nanoTime()) : null;
+            if (claimed != null) {
+                refresh(key, claimed, loader);
+            }
+            return value;
+        }
+        CompletableFuture<V> future = new Load<V>(Thread.currentThread());
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            checkNotRecursive(key, inFlight);
+            coalescedLoads.increment();
+            return join(inFlight);
+        }
+        long start = System.nanoTime();
+        try {
+            try {
+                value = loader.apply(key);
+            } catch (RuntimeException | Error e) {
+                recordLoad(start, false);
+                throw e;
+            }
+            recordLoad(start, value != null);
+            if (value != null) {
+                put(key, value);
+            }
+        } catch (RuntimeException | Error e) {
+            // also a put() that failed, e.g. on a negative weight, the callers waiting for the load must not hang
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+            future.complete(value);
+        }
+        return value;
+    }
+
+    /**
+     * a load in flight, owner is the thread running a synchronous loader, null for getAsync()
+     */
+    private static final class Load<V> extends CompletableFuture<V> {
+        final Thread owner;
+
+        Load(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * a loader that reads its own key would wait for itself forever
+     */
+    private static void checkNotRecursive(Object key, CompletableFuture<?> inFlight) {
+        if (inFlight instanceof Load && ((Load<?>) inFlight).owner == Thread.currentThread()) {
+            throw new IllegalStateException("Recursive load of key: " + key);
+        }
+    }
+
+    /**
+     * asynchronous version of get(key, loader), a hit returns a completed future.
+     * at most one load per key runs at a time, other callers of the same key get the same result.
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends CompletableFuture<? extends V>> asyncLoader) {
+        V value = get(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            coalescedLoads.increment();
+            return inFlight.copy();
+        }
+        long start = System.nanoTime();
+        CompletableFuture<? extends V> load;
+        try {
+            load = asyncLoader.apply(key);
+            if (load == null) {
+                load = CompletableFuture.failedFuture(new NullPointerException("asyncLoader returned no future for " + key));
+            }
+        } catch (RuntimeException | Error e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((loaded, e) -> {
+            try {
+                recordLoad(start, e == null && loaded != null);
+                if (e == null && loaded != null) {
+                    put(key, loaded);
+                }
+            } catch (RuntimeException | Error putFailure) {
+                future.completeExceptionally(e != null ? e : putFailure);
+            } finally {
+                loading.remove(key, future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(loaded);
+                }
+            }
+        });
+        return future.copy();
+    }
+
+    /**
+     * get the values of many keys, the keys missing from the cache are loaded with one call of batchLoader.
+     * keys already being loaded by other callers are not loaded again.
+     *
+     * @param batchLoader   loads the values of a set of keys, keys without a value can be left out of the result
+     * @return  the keys with a value, in the order of keys
+     */
+    public Map<K, V> getAll(Iterable<? extends K> keys,
+                            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> batchLoader) {
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        Map<K, CompletableFuture<V>> owned = new LinkedHashMap<K, CompletableFuture<V>>();
+        Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<K, CompletableFuture<V>>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            } else if (!owned.containsKey(key) && !waiting.containsKey(key)) {
+                CompletableFuture<V> future = new Load<V>(Thread.currentThread());
+                CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+                if (inFlight != null) {
+                    checkNotRecursive(key, inFlight);
+                    coalescedLoads.increment();
+                    waiting.put(key, inFlight);
+                } else {
+                    owned.put(key, future);
+                }
+            }
+        }
+        if (!owned.isEmpty()) {
+            long start = System.nanoTime();
+            Map<? extends K, ? extends V> loaded;
+            try {
+                loaded = batchLoader.apply(Collections.unmodifiableSet(owned.keySet()));
+            } catch (RuntimeException | Error e) {
+                recordLoad(start, false);
+                for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                    loading.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().completeExceptionally(e);
+                }
+                throw e;
+            }
+            recordLoad(start, loaded != null);
+            try {
+                for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                    V value = loaded == null ? null : loaded.get(entry.getKey());
+                    if (value != null) {
+                        put(entry.getKey(), value);
+                        result.put(entry.getKey(), value);
+                    }
+                    loading.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().complete(value);
+                }
+            } catch (RuntimeException | Error e) {
+                // the keys not put yet fail, a completed future ignores it
+                for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                    loading.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().completeExceptionally(e);
+                }
+                throw e;
+            }
+        }
+        for (Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()) {
+            V value = join(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * reload an entry in the background, the old value stays readable until the new one is put.
+     * the reloaded value is dropped when the entry was removed or written while it loaded.
+     */
+    private void refresh(K key, Node<K, V> claimed, Function<? super K, ? extends V> loader) {
+        refreshes.increment();
+        Segment segment = segmentFor(key);
+        try {
+            refreshExecutor.execute(() -> {
+                long start = System.nanoTime();
+                V value;
+                try {
+                    value = loader.apply(key);
+                } catch (RuntimeException | Error e) {
+                    // the old value stays, the next read past refreshAfterWrite tries again
+                    recordLoad(start, false);
+                    segment.clearRefresh(claimed);
+                    if (e instanceof Error) {
+                        throw (Error) e;
+                    }
+                    return;
+                }
+                recordLoad(start, value != null);
+                boolean replaced = false;
+                try {
+                    if (value != null) {
+                        int weight = weigh(key, value);
+                        if (weight > maximumEntryWeight) {
+                            rejectOversized(key, value);
+                        } else {
+                            replaced = segment.putRefreshed(key, claimed, value, weight, System.nanoTime());
+                        }
+                    }
+                } finally {
+                    if (!replaced) {
+                        segment.clearRefresh(claimed);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            segment.clearRefresh(claimed);
+        }
+    }
+
+    private void recordLoad(long start, boolean success) {
+        totalLoadTime.add(System.nanoTime() - start);
+        if (success) {
+            loadSuccess.increment();
+        } else {
+            loadFailure.increment();
+        }
+    }
+
+    /**
+     * wait for a load of another caller, and rethrow its failure
+     */
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * put a key-value pair into cache, unless the key already has a live value
+     * @return  true when the value was put
+     */
+    public boolean putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("LRUCaching does not accept null keys or values");
+        }
+        int weight = weigh(key, value);
+        if (weight > maximumEntryWeight) {
+            rejectOversized(key, value);
+            return false;
         }
+        return segmentFor(key).putIfAbsent(key, value, weight, System.nanoTime());
     }
 
-    public static synchronized void remove(String key) {
-        cache.remove(key);
+    /**
+     * putIfAbsent() of an entry written writeAgeNanos ago, it expires and refreshes as the original one would.
+     * the write order is not kept, call sortWriteOrder() once done.
+     */
+    boolean putIfAbsent(K key, V value, long writeAgeNanos) {
+        int weight = weigh(key, value);
+        if (weight > maximumEntryWeight) {
+            rejectOversized(key, value);
+            return false;
+        }
+        long now = System.nanoTime();
+        return segmentFor(key).putIfAbsent(key, value, weight, now - writeAgeNanos, now);
+    }
+
+    /**
+     * put the write order lists back in order of write time, for the amortized expireAfterWrite cleanup
+     */
+    void sortWriteOrder() {
+        if (expireAfterWriteNanos <= 0) {
+            return;
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.sortWriteOrder();
+            }
+        }
+    }
+
+    public void remove(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * remove all entries, segment by segment
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * visit all entries, segment by segment, least recently used first within a segment.
+     * entries are copied out of a segment under its lock, the action runs without holding any lock.
+     */
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        forEachEntry((key, value, writeAgeNanos) -> action.accept(key, value));
+    }
+
+    /**
+     * an entry and the time since its value was written, for CacheSnapshot
+     */
+    interface EntryVisitor<K, V> {
+        void visit(K key, V value, long writeAgeNanos);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachEntry(EntryVisitor<? super K, ? super V> visitor) {
+        for (Segment segment : segments) {
+            Object[] keys;
+            Object[] values;
+            long[] ages;
+            synchronized (segment) {
+                long now = System.nanoTime();
+                keys = new Object[segment.map.size()];
+                values = new Object[keys.length];
+                ages = new long[keys.length];
+                int i = 0;
+                // coldest list first: probation, then protected, then the window (the only list with LRU)
+                for (Node<K, V> sentinel : Arrays.asList(segment.probationHead, segment.protectedHead, segment.windowHead)) {
+                    for (Node<K, V> node = sentinel.next; node != sentinel; node = node.next) {
+                        keys[i] = node.key;
+                        values[i] = node.value;
+                        ages[i] = now - node.writeTime;
+                        i++;
+                    }
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                visitor.visit((K) keys[i], (V) values[i], ages[i]);
+            }
+        }
+    }
+
+    /**
+     * drop expired entries from every segment now, instead of waiting for the amortized cleanup.
+     */
+    public void cleanUp() {
+        long now = System.nanoTime();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.expireEntries(now, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * number of entries in the cache, summed over all segments
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * total weight of the entries in the cache, equals size() when there is no weigher
+     */
+    public long weightedSize() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.totalWeight;
+            }
+        }
+        return weight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getLastResetTimeMillis() {
+        return lastResetTime.getTimeInMillis();
+    }
+
+    long getExpireAfterWriteNanos() {
+        return expireAfterWriteNanos;
+    }
+
+    /**
+     * add hits and misses saved by a snapshot, and take over its last reset time
+     */
+    synchronized void restoreStats(long savedHits, long savedMisses, long savedLastResetTimeMillis) {
+        hits.add(savedHits);
+        misses.add(savedMisses);
+        GregorianCalendar resetTime = new GregorianCalendar();
+        resetTime.setTimeInMillis(savedLastResetTimeMillis);
+        lastResetTime = resetTime;
     }
 
     /**
      * Check hits and misses overflow, reset stats if needed, and save reset time.
+     * Called when stats are read, instead of on every get().
      */
-    private static void checkHitsMissesOverflow() {
-        long total = hits + misses;
+    private void checkHitsMissesOverflow() {
+        long total = hits.sum() + misses.sum();
         if (total >= overflow) {
             resetStats();
         }
@@ -57,58 +875,620 @@ public class LRUCaching {
     /**
      * Reset stats, and save reset time.
      */
-    private static void resetStats() {
+    private synchronized void resetStats() {
         lastResetTime = new java.util.GregorianCalendar();
-        hits = 1;
-        misses = 1;
+        hits.reset();
+        hits.increment();
+        misses.reset();
+        misses.increment();
     }
 
     /**
      * output hits ratios and adjust hits misses counts.
      */
-    public static synchronized double getHitsRatio() {
-        double ratio = (double)hits / (double)(hits + misses);
+    public double getHitsRatio() {
+        checkHitsMissesOverflow();
+        long h = hits.sum();
+        long m = misses.sum();
+        double ratio = (double)h / (double)(h + m);
         return ratio;
     }
 
     /**
      * return a JSON object for hits ratio, hits, misses, and last reset time.
      */
-    public static synchronized  JSONObject getStats() {
+    public JSONObject getStats() {
+        checkHitsMissesOverflow();
+        long h = hits.sum();
+        long m = misses.sum();
         JSONObject stats = new JSONObject();
-        stats.put("hits", hits);
-        stats.put("misses", misses);
-        double hitsRatio = getHitsRatio();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        double hitsRatio = (double)h / (double)(h + m);
         // get percentage formatted string for hitsRatio, down to 4 decimal points
         String ratioString  = new DecimalFormat("#.0000%").format(hitsRatio);
         stats.put("hitsRatio", ratioString);
+        stats.put("size", size());
+        stats.put("weightedSize", weightedSize());
+        stats.put("maximumWeight", maximumWeight);
+        stats.put("evictions", evictions.sum());
+        if (weigher != null) {
+            stats.put("maximumEntryWeight", maximumEntryWeight);
+            stats.put("oversized", oversized.sum());
+        }
+        stats.put("expirations", expirations.sum());
+        long loads = loadSuccess.sum() + loadFailure.sum();
+        stats.put("loadSuccess", loadSuccess.sum());
+        stats.put("loadFailure", loadFailure.sum());
+        stats.put("totalLoadTimeMs", totalLoadTime.sum() / 1000000);
+        stats.put("averageLoadPenaltyMs", loads == 0 ? 0.0 : totalLoadTime.sum() / 1000000.0 / loads);
+        stats.put("coalescedLoads", coalescedLoads.sum());
+        stats.put("refreshes", refreshes.sum());
+        stats.put("evictionPolicy", evictionPolicy.name());
+        stats.put("segments", segments.length);
+        if (analytics != null) {
+            stats.put("analytics", analytics.toJSON());
+        }
         // lastResetTime in local time zone
         stats.put("lastResetTime: ", lastResetTime.getTime().toString());
 
         return stats;
     }
 
+    /**
+     * one lock-striped part of the cache: a hash map for lookup, plus intrusive doubly linked lists in LRU order.
+     * the head of a list is its least recently used entry. all methods run under the segment lock.
+     *
+     * With EvictionPolicy.LRU all entries are in the window list.
+     * With EvictionPolicy.TINY_LFU the window list is a small LRU in front of a segmented main region
+     * (probation and protected lists), and the frequency sketch decides who stays when the window spills over.
+     */
+    private final class Segment {
+        final HashMap<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+        final long maxWeight;
+        final long windowMaxWeight;
+        final long protectedMaxWeight;
+        final FrequencySketch sketch;
+        long totalWeight = 0;
+        long windowWeight = 0;
+        long mainWeight = 0;
+        long protectedWeight = 0;
+        int readCount = 0;
+        // sentinels of the access order lists, and of the write order list
+        final Node<K, V> windowHead = newSentinel();
+        final Node<K, V> probationHead = newSentinel();
+        final Node<K, V> protectedHead = newSentinel();
+        final Node<K, V> writeHead = newSentinel();
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+                this.windowMaxWeight = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+                this.protectedMaxWeight = (maxWeight - windowMaxWeight) * PROTECTED_PERCENT / 100;
+                this.sketch = new FrequencySketch(weigher == null ? maxWeight : 256);
+            } else {
+                this.windowMaxWeight = maxWeight;
+                this.protectedMaxWeight = 0;
+                this.sketch = null;
+            }
+        }
+
+        Node<K, V> newSentinel() {
+            Node<K, V> sentinel = new Node<K, V>(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            sentinel.writePrev = sentinel;
+            sentinel.writeNext = sentinel;
+            return sentinel;
+        }
+
+        synchronized V get(Object key, long now) {
+            if (++readCount >= CLEANUP_INTERVAL) {
+                readCount = 0;
+                expireEntries(now, CLEANUP_INTERVAL);
+            }
+            if (sketch != null) {
+                // misses count too, a key that keeps coming back earns its admission
+                sketch.increment(key);
+            }
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (isExpired(node, now)) {
+                expire(node);
+                return null;
+            }
+            node.accessTime = now;
+            onAccess(node);
+            return node.value;
+        }
+
+        synchronized void put(K key, V value, int weight, long now) {
+            put(key, value, weight, now, now);
+        }
+
+        synchronized void put(K key, V value, int weight, long writeTime, long now) {
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                node = new Node<K, V>(key);
+                map.put(key, node);
+                node.queue = Node.WINDOW;
+                linkTail(windowHead, node);
+                if (sketch != null) {
+                    sketch.increment(key);
+                    sketch.ensureCapacity(map.size());
+                }
+            } else {
+                onAccess(node);
+                addQueueWeight(node, -node.weight);
+                totalWeight -= node.weight;
+                if (expireAfterWriteNanos > 0) {
+                    unlinkWrite(node);
+                }
+                if (removalListener != null && node.value != value) {
+                    removalListener.onRemoval(key, node.value, RemovalCause.REPLACED);
+                }
+            }
+            node.value = value;
+            node.weight = weight;
+            node.writeTime = writeTime;
+            node.accessTime = now;
+            totalWeight += weight;
+            addQueueWeight(node, weight);
+            if (expireAfterWriteNanos > 0) {
+                linkWriteTail(node);
+            }
+            expireEntries(now, CLEANUP_INTERVAL);
+            evictEntries(now);
+        }
+
+        synchronized boolean putIfAbsent(K key, V value, int weight, long now) {
+            return putIfAbsent(key, value, weight, now, now);
+        }
+
+        synchronized boolean putIfAbsent(K key, V value, int weight, long writeTime, long now) {
+            Node<K, V> node = map.get(key);
+            if (node != null && !isExpired(node, now)) {
+                return false;
+            }
+            put(key, value, weight, writeTime, now);
+            return true;
+        }
+
+        synchronized void sortWriteOrder() {
+            List<Node<K, V>> nodes = new ArrayList<Node<K, V>>(map.size());
+            for (Node<K, V> node = writeHead.writeNext; node != writeHead; node = node.writeNext) {
+                nodes.add(node);
+            }
+            nodes.sort((a, b) -> Long.compare(a.writeTime - b.writeTime, 0));
+            writeHead.writeNext = writeHead;
+            writeHead.writePrev = writeHead;
+            for (Node<K, V> node : nodes) {
+                linkWriteTail(node);
+            }
+        }
+
+        synchronized void remove(Object key) {
+            Node<K, V> node = map.get(key);
+            if (node != null) {
+                removeNode(node);
+                notifyRemoval(node, RemovalCause.EXPLICIT);
+            }
+        }
+
+        synchronized void clear() {
+            // a copy, removeNode() changes the map
+            for (Node<K, V> node : new ArrayList<Node<K, V>>(map.values())) {
+                removeNode(node);
+                notifyRemoval(node, RemovalCause.EXPLICIT);
+            }
+        }
+
+        /**
+         * the entry when it is due for a refresh and no refresh of it is running yet, else null
+         */
+        synchronized Node<K, V> claimRefresh(Object key, long now) {
+            Node<K, V> node = map.get(key);
+            if (node == null || node.refreshing || now - node.writeTime < refreshAfterWriteNanos) {
+                return null;
+            }
+            node.refreshing = true;
+            node.refreshWriteTime = node.writeTime;
+            return node;
+        }
+
+        /**
+         * put the reloaded value, unless the entry was removed or written since claimRefresh()
+         */
+        synchronized boolean putRefreshed(K key, Node<K, V> claimed, V value, int weight, long now) {
+            if (map.get(key) != claimed || claimed.writeTime != claimed.refreshWriteTime) {
+                return false;
+            }
+            put(key, value, weight, now);
+            claimed.refreshing = false;
+            return true;
+        }
+
+        synchronized void clearRefresh(Node<K, V> claimed) {
+            claimed.refreshing = false;
+        }
+
+        boolean isExpired(Node<K, V> node, long now) {
+            return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                    || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+        }
+
+        /**
+         * move an accessed entry to the tail of its list, a probation entry is promoted to the protected list.
+         */
+        void onAccess(Node<K, V> node) {
+            if (node.queue == Node.WINDOW) {
+                moveToTail(windowHead, node);
+            } else if (node.queue == Node.PROTECTED) {
+                moveToTail(protectedHead, node);
+            } else {
+                unlink(node);
+                node.queue = Node.PROTECTED;
+                linkTail(protectedHead, node);
+                protectedWeight += node.weight;
+                // demote the least recently used protected entries back to probation
+                while (protectedWeight > protectedMaxWeight && protectedHead.next != node) {
+                    Node<K, V> demoted = protectedHead.next;
+                    unlink(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = Node.PROBATION;
+                    linkTail(probationHead, demoted);
+                }
+            }
+        }
+
+        void addQueueWeight(Node<K, V> node, long weight) {
+            if (node.queue == Node.WINDOW) {
+                windowWeight += weight;
+            } else {
+                mainWeight += weight;
+                if (node.queue == Node.PROTECTED) {
+                    protectedWeight += weight;
+                }
+            }
+        }
+
+        /**
+         * amortized cleanup, drop up to budget expired entries.
+         * the oldest entries sit at the head of the access and write order lists, so the walk stops at the first live one.
+         */
+        void expireEntries(long now, int budget) {
+            if (expireAfterAccessNanos > 0) {
+                budget = expireAccessOrder(windowHead, now, budget);
+                budget = expireAccessOrder(probationHead, now, budget);
+                budget = expireAccessOrder(protectedHead, now, budget);
+            }
+            if (expireAfterWriteNanos > 0) {
+                while (budget > 0 && writeHead.writeNext != writeHead
+                        && now - writeHead.writeNext.writeTime >= expireAfterWriteNanos) {
+                    expire(writeHead.writeNext);
+                    budget--;
+                }
+            }
+        }
+
+        int expireAccessOrder(Node<K, V> sentinel, long now, int budget) {
+            while (budget > 0 && sentinel.next != sentinel && now - sentinel.next.accessTime >= expireAfterAccessNanos) {
+                expire(sentinel.next);
+                budget--;
+            }
+            return budget;
+        }
+
+        /**
+         * evict entries until the segment is within its weight.
+         * LRU evicts from the head of the window list, TinyLFU runs the admission between window spill-overs and main.
+         */
+        void evictEntries(long now) {
+            if (sketch != null) {
+                while (windowWeight > windowMaxWeight) {
+                    Node<K, V> candidate = windowHead.next;
+                    unlink(candidate);
+                    windowWeight -= candidate.weight;
+                    admit(candidate, now);
+                }
+            }
+            while (totalWeight > maxWeight) {
+                Node<K, V> victim = headOf(probationHead, protectedHead, windowHead);
+                if (victim == null) {
+                    break;
+                }
+                evict(victim, now);
+            }
+        }
+
+        /**
+         * move a candidate from the window to the main region, as long as it is accessed more often than
+         * the entries it pushes out, otherwise the candidate itself is evicted.
+         */
+        void admit(Node<K, V> candidate, long now) {
+            long mainMaxWeight = maxWeight - windowMaxWeight;
+            int candidateFrequency = sketch.frequency(candidate.key);
+            while (mainWeight + candidate.weight > mainMaxWeight) {
+                Node<K, V> victim = headOf(probationHead, protectedHead, null);
+                if (victim == null || candidateFrequency <= sketch.frequency(victim.key)) {
+                    map.remove(candidate.key);
+                    if (expireAfterWriteNanos > 0) {
+                        unlinkWrite(candidate);
+                    }
+                    totalWeight -= candidate.weight;
+                    evictions.increment();
+                    if (analytics != null) {
+                        analytics.recordEviction(now - candidate.writeTime);
+                    }
+                    notifyRemoval(candidate, RemovalCause.SIZE);
+                    return;
+                }
+                evict(victim, now);
+            }
+            candidate.queue = Node.PROBATION;
+            linkTail(probationHead, candidate);
+            mainWeight += candidate.weight;
+        }
+
+        Node<K, V> headOf(Node<K, V> first, Node<K, V> second, Node<K, V> third) {
+            if (first.next != first) {
+                return first.next;
+            }
+            if (second.next != second) {
+                return second.next;
+            }
+            if (third != null && third.next != third) {
+                return third.next;
+            }
+            return null;
+        }
+
+        void evict(Node<K, V> node, long now) {
+            removeNode(node);
+            evictions.increment();
+            if (analytics != null) {
+                analytics.recordEviction(now - node.writeTime);
+            }
+            notifyRemoval(node, RemovalCause.SIZE);
+        }
+
+        void expire(Node<K, V> node) {
+            removeNode(node);
+            expirations.increment();
+            notifyRemoval(node, RemovalCause.EXPIRED);
+        }
+
+        void notifyRemoval(Node<K, V> node, RemovalCause cause) {
+            if (removalListener != null) {
+                removalListener.onRemoval(node.key, node.value, cause);
+            }
+        }
+
+        void removeNode(Node<K, V> node) {
+            map.remove(node.key);
+            unlink(node);
+            if (expireAfterWriteNanos > 0) {
+                unlinkWrite(node);
+            }
+            totalWeight -= node.weight;
+            addQueueWeight(node, -node.weight);
+        }
+
+        void linkTail(Node<K, V> sentinel, Node<K, V> node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+        }
+
+        void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToTail(Node<K, V> sentinel, Node<K, V> node) {
+            if (sentinel.prev != node) {
+                unlink(node);
+                linkTail(sentinel, node);
+            }
+        }
+
+        void linkWriteTail(Node<K, V> node) {
+            node.writePrev = writeHead.writePrev;
+            node.writeNext = writeHead;
+            writeHead.writePrev.writeNext = node;
+            writeHead.writePrev = node;
+        }
+
+        void unlinkWrite(Node<K, V> node) {
+            node.writePrev.writeNext = node.writeNext;
+            node.writeNext.writePrev = node.writePrev;
+            node.writePrev = null;
+            node.writeNext = null;
+        }
+    }
+
+    /**
+     * uniform random keys between 0 and (numKeys + 100), same as the access loop in main
+     */
+    static int[] uniformTrace(int numKeys, int numAccess, long seed) {
+        java.util.Random random = new java.util.Random(seed);
+        int[] trace = new int[numAccess];
+        for (int i = 0; i < numAccess; i++) {
+            trace[i] = random.nextInt(numKeys + 100);
+        }
+        return trace;
+    }
+
+    /**
+     * Zipf distributed keys between 0 and numKeys, key 0 is the most popular
+     */
+    static int[] zipfTrace(int numKeys, int numAccess, double skew, long seed) {
+        double[] cdf = new double[numKeys];
+        double sum = 0;
+        for (int i = 0; i < numKeys; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        java.util.Random random = new java.util.Random(seed);
+        int[] trace = new int[numAccess];
+        for (int i = 0; i < numAccess; i++) {
+            int index = java.util.Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[i] = index >= 0 ? index : Math.min(-index - 1, numKeys - 1);
+        }
+        return trace;
+    }
+
+    /**
+     * Zipf traffic, where every 5th block of 1000 accesses is a batch job scanning keys that are never read again
+     */
+    static int[] scanTrace(int numKeys, int numAccess, long seed) {
+        int[] trace = zipfTrace(numKeys, numAccess, 0.99, seed);
+        int scanKey = numKeys;
+        for (int i = 0; i < numAccess; i++) {
+            if ((i / 1000) % 5 == 4) {
+                trace[i] = scanKey++;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * replay a trace with cache-aside access (get, and put on a miss), return the hits ratio
+     */
+    static double replay(EvictionPolicy policy, int[] trace) {
+        LRUCaching<String, String> cache = LRUCaching.<String, String>newBuilder()
+                .maximumSize(DEFAULT_CAPACITY)
+                .evictionPolicy(policy)
+                .build();
+        for (int key : trace) {
+            String k = String.valueOf(key);
+            if (cache.get(k) == null) {
+                cache.put(k, k);
+            }
+        }
+        return cache.getHitsRatio();
+    }
+
+    /**
+     * print the hits ratio of LRU and TinyLFU on uniform, Zipf and scan-heavy traces
+     */
+    static void comparePolicies(int numKeys, int numAccess) {
+        DecimalFormat pct = new DecimalFormat("#.0000%");
+        String[] names = {"uniform", "zipf", "scan"};
+        int[][] traces = {uniformTrace(numKeys, numAccess, 1), zipfTrace(numKeys, numAccess, 0.99, 2), scanTrace(numKeys, numAccess, 3)};
+        System.out.println("Policy comparison, capacity " + DEFAULT_CAPACITY + ", " + numKeys + " keys, " + numAccess + " accesses:");
+        for (int i = 0; i < traces.length; i++) {
+            System.out.println("    " + names[i] + ": LRU " + pct.format(replay(EvictionPolicy.LRU, traces[i]))
+                    + ", TINY_LFU " + pct.format(replay(EvictionPolicy.TINY_LFU, traces[i])));
+        }
+    }
+
     /**
      * MAIN to test LRUCaching class, with command line arguments for the number of keys put into the cache and the number of retrievals.
      *
-     * @param args argv[0] is the number of keys to put into the cache, argv[1] is the number of retrievals.
+     * @param args argv[0] is the number of keys to put into the cache, argv[1] is the number of retrievals,
+     *             optional argv[2] is the number of threads doing the retrievals (default 1).
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         String arg1 = args[0];
         String arg2 = args[1];
         int numKeys = Integer.parseInt(arg1);
         int numAccess = Integer.parseInt(arg2);
+        int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        LRUCaching<String, String> cache = LRUCaching.getInstance();
         // seed the cache with numKeys keys
         for (int i = 0; i < numKeys; i++) {
-            LRUCaching.put(String.valueOf(i), String.valueOf(i));
+            cache.put(String.valueOf(i), String.valueOf(i));
         }
         // access the cache numAccess times
-        System.out.println("Init hits stats: " + LRUCaching.getStats().toString(2));
-        for (int i = 0; i < numAccess; i++) {
-            // generate a random number between 0 and (numkeys + 100) to test some misses
-            int randKey = (int)(Math.random() * (numKeys + 100));
-            LRUCaching.get(String.valueOf(randKey));
+        System.out.println("Init hits stats: " + cache.getStats().toString(2));
+        Runnable r = () -> {
+            for (int i = 0; i < numAccess; i++) {
+                // generate a random number between 0 and (numkeys + 100) to test some misses
+                // ThreadLocalRandom, Math.random() shares one generator between all threads
+                int randKey = ThreadLocalRandom.current().nextInt(numKeys + 100);
+                cache.get(String.valueOf(randKey));
+            }
+        };
+        long start = System.nanoTime();
+        Thread[] ts = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            ts[i] = new Thread(r);
+            ts[i].start();
+        }
+        for (int i = 0; i < numThreads; i++) {
+            ts[i].join();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Ending hits stats: " + cache.getStats().toString(2));
+        System.out.println(numThreads + " threads, " + ((long)numAccess * numThreads * 1000000000L / Math.max(1, elapsed)) + " gets/sec");
+
+        // weight bounded cache with expiry: values from 10 bytes to 100 KB, bounded to 1 MB in total
+        LRUCaching<String, String> weighted = LRUCaching.<String, String>newBuilder()
+                .maximumWeight(1024 * 1024)
+                .weigher((k, v) -> k.length() + v.length())
+                .expireAfterWrite(200, TimeUnit.MILLISECONDS)
+                .build();
+        for (int i = 0; i < numKeys; i++) {
+            weighted.put(String.valueOf(i), "x".repeat(10 + ThreadLocalRandom.current().nextInt(100 * 1024)));
+        }
+        System.out.println("Weighted cache stats: " + weighted.getStats().toString(2));
+        Thread.sleep(300);
+        weighted.cleanUp();
+        System.out.println("Weighted cache stats after expiry: " + weighted.getStats().toString(2));
+
+        comparePolicies(numKeys, numAccess);
+
+        // analytics on a Zipf trace, and its cost on get()
+        int[] zipf = zipfTrace(numKeys, numAccess, 0.99, 4);
+        String[] zipfKeys = new String[zipf.length];
+        for (int i = 0; i < zipf.length; i++) {
+            zipfKeys[i] = String.valueOf(zipf[i]);
+        }
+        long[] nanos = new long[2];
+        LRUCaching<String, String> analyzed = null;
+        for (int round = 0; round < 4; round++) {    // the first rounds warm up the JIT
+            for (int mode = 0; mode < 2; mode++) {
+                Builder<String, String> builder = LRUCaching.<String, String>newBuilder();
+                LRUCaching<String, String> c = (mode == 1 ? builder.recordAnalytics() : builder).build();
+                long begin = System.nanoTime();
+                for (String k : zipfKeys) {
+                    if (c.get(k) == null) {
+                        c.put(k, k);
+                    }
+                }
+                nanos[mode] = System.nanoTime() - begin;
+                if (mode == 1) {
+                    analyzed = c;
+                }
+            }
+        }
+        System.out.println("Analytics stats: " + analyzed.getStats().getJSONObject("analytics").toString(2));
+        System.out.println("Analytics overhead: " + new DecimalFormat("#.00%").format((double) (nanos[1] - nanos[0]) / nanos[0]));
+
+        // 20 threads miss the same key together, only one of them calls the slow loader
+        LRUCaching<String, String> loadingCache = LRUCaching.<String, String>newBuilder().build();
+        Runnable slowGet = () -> loadingCache.get("hot", k -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "value of " + k;
+        });
+        Thread[] loaders = new Thread[20];
+        for (int i = 0; i < loaders.length; i++) {
+            loaders[i] = new Thread(slowGet);
+            loaders[i].start();
+        }
+        for (Thread t : loaders) {
+            t.join();
         }
-        System.out.println("Ending hits stats: " + LRUCaching.getStats().toString(2));
+        System.out.println("Loading cache stats: " + loadingCache.getStats().toString(2));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Open-loop load generator: requests start on a fixed schedule, a constant rate or steps of rates, whether
+ * or not the earlier ones were answered. A closed loop of threads sends the next request only after a
+ * response, so a slow server slows down the load and its queueing never shows up in the latencies.
+ *
+ * The latency of a request is measured from its scheduled start (response time), which includes the time
+ * it waited for a worker or a pooled connection, and from its actual start (service time). The difference
+ * between the two is the queueing a closed loop would hide (coordinated omission).
+ *
+ * Each step reports the achieved rate, the percentiles of both latencies (log-linear histograms, see
+ * CacheAnalytics), and the errors: pool timeouts, connect timeouts, read timeouts, other failures,
+ * non 2xx responses, and requests not started because maxOutstanding requests were already waiting.
+ * A rejected request is in the response time percentiles with the time from its scheduled start to the end
+ * of its step, a lower bound, those percentiles are then marked "lowerBound".
+ *
+ * sample usage:
+ *     java LoadGenerator 200,400,800 10                  steps against a local MTLSEchoServer
+ *     java LoadGenerator 500 30 https://host/path        with the keystore properties of HttpMTLSClient
+ */
+public class LoadGenerator {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "p9999"};
+    // a step also waits this long for its last requests to complete
+    private static final long DRAIN_MILLIS = 30000;
+
+    private final CloseableHttpClient client;
+    private final Supplier<HttpUriRequest> requests;
+    private final int maxOutstanding;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * requests per second for a number of seconds
+     */
+    public static final class Step {
+        final double rate;
+        final long seconds;
+        final AtomicLongArray responseMicros = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+        final AtomicLongArray serviceMicros = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+        final LongAccumulator maxResponseMicros = new LongAccumulator(Math::max, 0);
+        final LongAccumulator maxServiceMicros = new LongAccumulator(Math::max, 0);
+        final LongAdder scheduled = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder ok = new LongAdder();
+        final LongAdder non2xx = new LongAdder();
+        final LongAdder poolTimeouts = new LongAdder();
+        final LongAdder connectTimeouts = new LongAdder();
+        final LongAdder readTimeouts = new LongAdder();
+        final LongAdder otherErrors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAccumulator lastCompletion = new LongAccumulator(Math::max, 0);
+        long startNanos;
+
+        public Step(double rate, long seconds) {
+            if (rate <= 0 || seconds <= 0) {
+                throw new IllegalArgumentException("rate and seconds must be positive: " + rate + ", " + seconds);
+            }
+            this.rate = rate;
+            this.seconds = seconds;
+        }
+    }
+
+    /**
+     * @param requests          makes each request, called on the scheduling thread
+     * @param workers           threads running the blocking requests, the most requests in flight
+     * @param maxOutstanding    requests in flight or waiting for a worker, more are counted as rejected
+     */
+    public LoadGenerator(CloseableHttpClient client, Supplier<HttpUriRequest> requests, int workers, int maxOutstanding) {
+        this.client = client;
+        this.requests = requests;
+        this.maxOutstanding = maxOutstanding;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "load-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * run the steps one after the other and wait for their requests to complete
+     *
+     * @return a report per step, see report()
+     */
+    public JSONArray run(List<Step> steps) throws InterruptedException {
+        JSONArray reports = new JSONArray();
+        for (Step step : steps) {
+            runStep(step);
+            reports.put(report(step));
+        }
+        return reports;
+    }
+
+    private void runStep(Step step) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / step.rate);
+        long count = (long) (step.rate * step.seconds);
+        // scheduled starts of the rejected requests
+        long[] rejected = new long[16];
+        int rejectedCount = 0;
+        step.startNanos = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            // the schedule does not depend on the responses, a late scheduler sends at once with the planned start
+            long intended = step.startNanos + i * intervalNanos;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            step.scheduled.increment();
+            boolean started = false;
+            if (outstanding.incrementAndGet() <= maxOutstanding) {
+                HttpUriRequest request = requests.get();
+                try {
+                    workers.execute(() -> execute(step, request, intended));
+                    started = true;
+                } catch (RejectedExecutionException e) {
+                    // counted below
+                }
+            }
+            if (!started) {
+                outstanding.decrementAndGet();
+                step.rejected.increment();
+                if (rejectedCount == rejected.length) {
+                    rejected = Arrays.copyOf(rejected, rejectedCount * 2);
+                }
+                rejected[rejectedCount++] = intended;
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // a rejected request got no response by the end of the step, leaving it out would hide the overload
+        long end = System.nanoTime();
+        for (int i = 0; i < rejectedCount; i++) {
+            record(step.responseMicros, step.maxResponseMicros, (end - rejected[i]) / 1000);
+        }
+    }
+
+    private void execute(Step step, HttpUriRequest request, long intended) {
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 200 && status < 300) {
+                step.ok.increment();
+            } else {
+                step.non2xx.increment();
+            }
+        } catch (ConnectionPoolTimeoutException e) {
+            // a subclass of ConnectTimeoutException, check it first
+            step.poolTimeouts.increment();
+        } catch (ConnectTimeoutException e) {
+            step.connectTimeouts.increment();
+        } catch (SocketTimeoutException e) {
+            step.readTimeouts.increment();
+        } catch (Exception e) {
+            step.otherErrors.increment();
+        } finally {
+            long end = System.nanoTime();
+            record(step.responseMicros, step.maxResponseMicros, (end - intended) / 1000);
+            record(step.serviceMicros, step.maxServiceMicros, (end - start) / 1000);
+            step.completed.increment();
+            step.lastCompletion.accumulate(end);
+            outstanding.decrementAndGet();
+        }
+    }
+
+    private static void record(AtomicLongArray histogram, LongAccumulator max, long micros) {
+        histogram.incrementAndGet(CacheAnalytics.bucketOf(micros));
+        max.accumulate(micros);
+    }
+
+    /**
+     * target and achieved rate, request and error counts, and percentiles in micros of the response time
+     * (from the scheduled start) and of the service time (from the actual start)
+     */
+    public static JSONObject report(Step step) {
+        JSONObject report = new JSONObject();
+        report.put("targetRate", step.rate);
+        report.put("seconds", step.seconds);
+        long completed = step.completed.sum();
+        long elapsed = Math.max(step.lastCompletion.get(), step.startNanos + TimeUnit.SECONDS.toNanos(step.seconds))
+                - step.startNanos;
+        report.put("achievedRate", Math.round(step.ok.sum() * 1e10 / elapsed) / 10.0);
+        report.put("scheduled", step.scheduled.sum());
+        report.put("completed", completed);
+        report.put("ok", step.ok.sum());
+        JSONObject errors = new JSONObject();
+        errors.put("poolTimeouts", step.poolTimeouts.sum());
+        errors.put("connectTimeouts", step.connectTimeouts.sum());
+        errors.put("readTimeouts", step.readTimeouts.sum());
+        errors.put("otherErrors", step.otherErrors.sum());
+        errors.put("non2xx", step.non2xx.sum());
+        errors.put("rejected", step.rejected.sum());
+        report.put("errors", errors);
+        JSONObject responseTimes = percentiles(step.responseMicros, step.maxResponseMicros);
+        if (step.rejected.sum() > 0) {
+            responseTimes.put("lowerBound", true);
+        }
+        report.put("responseTimeMicros", responseTimes);
+        report.put("serviceTimeMicros", percentiles(step.serviceMicros, step.maxServiceMicros));
+        return report;
+    }
+
+    private static JSONObject percentiles(AtomicLongArray histogram, LongAccumulator max) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        JSONObject json = new JSONObject();
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            json.put(PERCENTILE_NAMES[p], CacheAnalytics.percentile(counts, PERCENTILES[p]));
+        }
+        json.put("max", max.get());
+        return json;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * args: rates (comma separated, requests per second), seconds per rate, url (optional).
+     * Without a url it starts a MTLSEchoServer with generated keystores on a free port and sets the keystore
+     * properties of HttpMTLSClient, so it runs offline.
+     *
+     * java properties: LOAD_WORKERS (200), LOAD_MAX_OUTSTANDING (10000), and those of HttpMTLSClient,
+     * e.g. POOL_MAX_CONN_PER_ROUTE, POOL_ADAPTIVE, HTTP_METRICS
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: LoadGenerator rate[,rate...] secondsPerRate [url]");
+            System.exit(2);
+        }
+        List<Step> steps = new ArrayList<Step>();
+        for (String rate : args[0].split(",")) {
+            steps.add(new Step(Double.parseDouble(rate), Long.parseLong(args[1])));
+        }
+        MTLSEchoServer server = null;
+        String url;
+        if (args.length > 2) {
+            url = args[2];
+        } else {
+            // HttpMTLSClient reads its keystore properties when it is loaded, set them before
+            File directory = Files.createTempDirectory("mtls-echo").toFile();
+            MTLSEchoServer.generateKeyStores(directory, MTLSEchoServer.DEFAULT_PASSWORD);
+            server = new MTLSEchoServer(0, directory, MTLSEchoServer.DEFAULT_PASSWORD).start();
+            System.setProperty("CLIENT_KEYSTORE_PATH", new File(directory, "client.p12").getPath());
+            System.setProperty("CLIENT_KEYSTORE_PASSWORD", MTLSEchoServer.DEFAULT_PASSWORD);
+            System.setProperty("SERVER_TRUSTSTORE_PATH", new File(directory, "trust.p12").getPath());
+            System.setProperty("SERVER_TRUSTSTORE_PASSWORD", MTLSEchoServer.DEFAULT_PASSWORD);
+            url = server.getUrl();
+        }
+        HttpMTLSClient client = HttpMTLSClient.getInstance();
+        LoadGenerator generator = new LoadGenerator(client.getHttpClient(), () -> new HttpGet(url),
+                Integer.getInteger("LOAD_WORKERS", 200), Integer.getInteger("LOAD_MAX_OUTSTANDING", 10000));
+        HttpMTLSClient.log("Load of " + url + ": " + args[0] + " requests/s, " + args[1] + " s each");
+        JSONArray reports = generator.run(steps);
+        for (int i = 0; i < reports.length(); i++) {
+            HttpMTLSClient.log("Step " + (i + 1) + ": " + reports.getJSONObject(i).toString(2));
+        }
+        HttpMTLSClient.log("Client stats: " + client.getStats().toString(2));
+        generator.shutdown();
+        if (server != null) {
+            server.stop();
+        }
+        AsyncLogger.getInstance().flush();
+    }
+}
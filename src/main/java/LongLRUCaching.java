@@ -0,0 +1,362 @@
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.GregorianCalendar;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache for long keys, for numeric ids that would otherwise be turned into Strings with String.valueOf().
+ *
+ * There is no object per entry: each lock-striped segment keeps its entries in parallel arrays
+ * (keys, values, and the prev/next indexes of an intrusive LRU list), plus an open-addressing hash table
+ * of entry indexes with linear probing. get() and put() of an existing key do not allocate.
+ *
+ * Same stats surface as LRUCaching.getStats().
+ */
+public class LongLRUCaching<V> {
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENTS = 64;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+    private final long maximumSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long overflow = Long.MAX_VALUE - 100;  // give some buffer before overflow
+    // record lastResetTime for stats reset
+    private volatile GregorianCalendar  lastResetTime = new GregorianCalendar();
+
+    /**
+     * @param maximumSize       maximum number of entries
+     * @param concurrencyLevel  number of lock-striped segments, rounded down to a power of 2
+     */
+    public LongLRUCaching(int maximumSize, int concurrencyLevel) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        int wanted = Math.max(1, Math.min(Math.min(concurrencyLevel, MAX_SEGMENTS), maximumSize / MIN_SEGMENT_CAPACITY));
+        // rounded down, rounding up could leave segments below MIN_SEGMENT_CAPACITY
+        int count = Integer.highestOneBit(wanted);
+        this.maximumSize = maximumSize;
+        segments = newSegmentArray(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<V>(Math.max(1, maximumSize / count + (i < maximumSize % count ? 1 : 0)));
+        }
+        // the segment is picked with the high bits of the hash, the bucket with the low bits
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        hits.increment();
+        misses.increment();
+    }
+
+    public LongLRUCaching(int maximumSize) {
+        this(maximumSize, Integer.getInteger("LRU_CACHE_SEGMENTS", Runtime.getRuntime().availableProcessors()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegmentArray(int count) {
+        return (Segment<V>[]) new Segment<?>[count];
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    public void put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("LongLRUCaching does not accept null values");
+        }
+        int hash = hash(key);
+        if (segmentFor(hash).put(key, hash, value)) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * get value from cache, if not found, return null
+     */
+    public V get(long key) {
+        int hash = hash(key);
+        V value = segmentFor(hash).get(key, hash);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    public void remove(long key) {
+        int hash = hash(key);
+        segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check hits and misses overflow, reset stats if needed, and save reset time.
+     */
+    private void checkHitsMissesOverflow() {
+        long total = hits.sum() + misses.sum();
+        if (total >= overflow) {
+            resetStats();
+        }
+    }
+
+    /**
+     * Reset stats, and save reset time.
+     */
+    private synchronized void resetStats() {
+        lastResetTime = new java.util.GregorianCalendar();
+        hits.reset();
+        hits.increment();
+        misses.reset();
+        misses.increment();
+    }
+
+    public double getHitsRatio() {
+        checkHitsMissesOverflow();
+        long h = hits.sum();
+        long m = misses.sum();
+        return (double)h / (double)(h + m);
+    }
+
+    /**
+     * return a JSON object for hits ratio, hits, misses, and last reset time.
+     */
+    public JSONObject getStats() {
+        checkHitsMissesOverflow();
+        long h = hits.sum();
+        long m = misses.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        double hitsRatio = (double)h / (double)(h + m);
+        // get percentage formatted string for hitsRatio, down to 4 decimal points
+        String ratioString  = new DecimalFormat("#.0000%").format(hitsRatio);
+        stats.put("hitsRatio", ratioString);
+        stats.put("size", size());
+        stats.put("maximumSize", maximumSize);
+        stats.put("evictions", evictions.sum());
+        stats.put("segments", segments.length);
+        // lastResetTime in local time zone
+        stats.put("lastResetTime: ", lastResetTime.getTime().toString());
+        return stats;
+    }
+
+    /**
+     * one lock-striped part of the cache.
+     * entry index 0 is the sentinel of the LRU list, next[0] is the least recently used entry.
+     * free entries are chained through next[]. table[] holds entry indexes, 0 is an empty bucket.
+     */
+    private static final class Segment<V> {
+        final int capacity;
+        final long[] keys;
+        final Object[] values;
+        final int[] prev;
+        final int[] next;
+        final int[] table;
+        final int tableMask;
+        int size = 0;
+        int freeHead;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            keys = new long[capacity + 1];
+            values = new Object[capacity + 1];
+            prev = new int[capacity + 1];
+            next = new int[capacity + 1];
+            // load factor of at most 0.5 keeps the probe sequences short
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            table = new int[tableSize];
+            tableMask = tableSize - 1;
+            for (int i = 1; i < capacity; i++) {
+                next[i] = i + 1;
+            }
+            next[capacity] = 0;
+            freeHead = 1;
+            next[0] = 0;
+            prev[0] = 0;
+        }
+
+        /**
+         * bucket of the key, or -1 when the key is not in the table
+         */
+        int find(long key, int hash) {
+            int bucket = hash & tableMask;
+            while (true) {
+                int e = table[bucket];
+                if (e == 0) {
+                    return -1;
+                }
+                if (keys[e] == key) {
+                    return bucket;
+                }
+                bucket = (bucket + 1) & tableMask;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, int hash) {
+            int bucket = find(key, hash);
+            if (bucket < 0) {
+                return null;
+            }
+            int e = table[bucket];
+            moveToTail(e);
+            return (V) values[e];
+        }
+
+        /**
+         * @return  true when the least recently used entry was evicted to make room
+         */
+        synchronized boolean put(long key, int hash, V value) {
+            int bucket = find(key, hash);
+            if (bucket >= 0) {
+                int e = table[bucket];
+                values[e] = value;
+                moveToTail(e);
+                return false;
+            }
+            boolean evicted = false;
+            if (size == capacity) {
+                int eldest = next[0];
+                removeEntry(eldest, find(keys[eldest], LongLRUCaching.hash(keys[eldest])));
+                evicted = true;
+            }
+            int e = freeHead;
+            freeHead = next[e];
+            keys[e] = key;
+            values[e] = value;
+            linkTail(e);
+            bucket = hash & tableMask;
+            while (table[bucket] != 0) {
+                bucket = (bucket + 1) & tableMask;
+            }
+            table[bucket] = e;
+            size++;
+            return evicted;
+        }
+
+        synchronized void remove(long key, int hash) {
+            int bucket = find(key, hash);
+            if (bucket >= 0) {
+                removeEntry(table[bucket], bucket);
+            }
+        }
+
+        void removeEntry(int e, int bucket) {
+            unlink(e);
+            values[e] = null;
+            next[e] = freeHead;
+            freeHead = e;
+            size--;
+            deleteBucket(bucket);
+        }
+
+        /**
+         * backward shift deletion, so linear probing needs no tombstones
+         */
+        void deleteBucket(int hole) {
+            table[hole] = 0;
+            int bucket = hole;
+            while (true) {
+                bucket = (bucket + 1) & tableMask;
+                int e = table[bucket];
+                if (e == 0) {
+                    return;
+                }
+                int home = LongLRUCaching.hash(keys[e]) & tableMask;
+                // move the entry into the hole, unless its home bucket lies cyclically in (hole, bucket]
+                boolean between = hole <= bucket ? (home > hole && home <= bucket) : (home > hole || home <= bucket);
+                if (!between) {
+                    table[hole] = e;
+                    table[bucket] = 0;
+                    hole = bucket;
+                }
+            }
+        }
+
+        void linkTail(int e) {
+            int tail = prev[0];
+            prev[e] = tail;
+            next[e] = 0;
+            next[tail] = e;
+            prev[0] = e;
+        }
+
+        void unlink(int e) {
+            next[prev[e]] = next[e];
+            prev[next[e]] = prev[e];
+        }
+
+        void moveToTail(int e) {
+            if (prev[0] != e) {
+                unlink(e);
+                linkTail(e);
+            }
+        }
+    }
+
+    /**
+     * MAIN to compare LongLRUCaching with LRUCaching on numeric keys, throughput and allocated bytes per get.
+     *
+     * @param args argv[0] is the number of keys, argv[1] is the number of retrievals.
+     */
+    public static void main(String[] args) {
+        int numKeys = Integer.parseInt(args[0]);
+        int numAccess = Integer.parseInt(args[1]);
+        long[] trace = new long[numAccess];
+        for (int i = 0; i < numAccess; i++) {
+            // same key range as LRUCaching.main, a few keys are never put
+            trace[i] = ThreadLocalRandom.current().nextInt(numKeys + 100);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        LRUCaching<String, String> stringCache = LRUCaching.<String, String>newBuilder().maximumSize(numKeys).build();
+        LongLRUCaching<String> longCache = new LongLRUCaching<String>(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            stringCache.put(String.valueOf(i), "v");
+            longCache.put(i, "v");
+        }
+        for (int round = 0; round < 3; round++) {   // the first rounds warm up the JIT
+            long allocated = threads.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            for (long key : trace) {
+                stringCache.get(String.valueOf(key));
+            }
+            long stringNanos = System.nanoTime() - start;
+            long stringBytes = threads.getThreadAllocatedBytes(tid) - allocated;
+
+            allocated = threads.getThreadAllocatedBytes(tid);
+            start = System.nanoTime();
+            for (long key : trace) {
+                longCache.get(key);
+            }
+            long longNanos = System.nanoTime() - start;
+            long longBytes = threads.getThreadAllocatedBytes(tid) - allocated;
+
+            System.out.println("round " + round + ": LRUCaching<String> " + (numAccess * 1000000000L / Math.max(1, stringNanos))
+                    + " gets/sec, " + (stringBytes / numAccess) + " bytes/get; LongLRUCaching "
+                    + (numAccess * 1000000000L / Math.max(1, longNanos)) + " gets/sec, " + (longBytes / numAccess) + " bytes/get");
+        }
+        System.out.println("LongLRUCaching stats: " + longCache.getStats().toString(2));
+    }
+}
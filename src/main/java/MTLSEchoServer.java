@@ -0,0 +1,203 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTPS server that requires a client certificate, to run HttpMTLSClient and LoadGenerator without
+ * a remote server.
+ *
+ *     POST         answers the request body
+ *     GET          answers ?bytes=n bytes, 64 by default
+ *     ?delayMs=n   waits n ms before answering, as a slow server
+ *
+ * generateKeyStores() makes the keystores with keytool, so it works offline:
+ *     server.p12         key of CN=localhost
+ *     client.p12         key of the client, CLIENT_KEYSTORE_PATH of HttpMTLSClient
+ *     trust.p12          the server certificate, SERVER_TRUSTSTORE_PATH of HttpMTLSClient
+ *     client-trust.p12   the client certificate, the server trusts it
+ *
+ * sample usage:
+ *     java MTLSEchoServer 8443 /tmp/mtls      keystores are generated in /tmp/mtls when missing
+ */
+public class MTLSEchoServer {
+    public static final String DEFAULT_PASSWORD = "changeit";
+    private static final int DEFAULT_BYTES = 64;
+    private static final int THREADS = Integer.getInteger("ECHO_SERVER_THREADS", 64);
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param port          0 for any free port, see getPort()
+     * @param directory     with server.p12 and client-trust.p12
+     */
+    public MTLSEchoServer(int port, File directory, String password) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory(new File(directory, "server.p12"), password).getKeyManagers(),
+                trustManagerFactory(new File(directory, "client-trust.p12"), password).getTrustManagers(), null);
+        // without TCP_NODELAY a response waits for the delayed ACK of the client, 40 ms on Linux
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.setHttpsConfigurator(new HttpsConfigurator(context) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setNeedClientAuth(true);
+            }
+        });
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "mtls-echo");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public MTLSEchoServer start() {
+        server.start();
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getUrl() {
+        return "https://localhost:" + getPort() + "/";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = in.readAllBytes();
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            long delayMs = queryParameter(query, "delayMs", 0);
+            if (delayMs > 0) {
+                Thread.sleep(delayMs);
+            }
+            byte[] body;
+            if ("POST".equals(exchange.getRequestMethod()) || "PUT".equals(exchange.getRequestMethod())) {
+                body = request;
+            } else {
+                body = new byte[(int) queryParameter(query, "bytes", DEFAULT_BYTES)];
+                Arrays.fill(body, (byte) 'x');
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            exchange.getResponseHeaders().add("Content-Type", contentType != null ? contentType : "text/plain");
+            exchange.getResponseHeaders().add("Connection", "keep-alive");
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        }
+    }
+
+    private static long queryParameter(String query, String name, long defaultValue) {
+        if (query == null) {
+            return defaultValue;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                try {
+                    return Long.parseLong(pair.substring(eq + 1));
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * make the server and client keystores and truststores in the directory with keytool, EC keys valid 30 days
+     */
+    public static void generateKeyStores(File directory, String password) throws IOException, InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        keytool("-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                "-storetype", "pkcs12", "-keystore", new File(directory, "server.p12").getPath(), "-storepass", password);
+        keytool("-genkeypair", "-alias", "client", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=mtls-echo-client",
+                "-storetype", "pkcs12", "-keystore", new File(directory, "client.p12").getPath(), "-storepass", password);
+        for (String[] pair : new String[][]{{"server", "trust.p12"}, {"client", "client-trust.p12"}}) {
+            File cert = new File(directory, pair[0] + ".crt");
+            keytool("-exportcert", "-alias", pair[0], "-rfc", "-file", cert.getPath(),
+                    "-keystore", new File(directory, pair[0] + ".p12").getPath(), "-storepass", password);
+            keytool("-importcert", "-noprompt", "-alias", pair[0], "-file", cert.getPath(),
+                    "-storetype", "pkcs12", "-keystore", new File(directory, pair[1]).getPath(), "-storepass", password);
+        }
+    }
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool " + String.join(" ", args) + " failed: " + output);
+        }
+    }
+
+    private static KeyManagerFactory keyManagerFactory(File file, String password) throws Exception {
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(load(file, password), password.toCharArray());
+        return factory;
+    }
+
+    private static TrustManagerFactory trustManagerFactory(File file, String password) throws Exception {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(load(file, password));
+        return factory;
+    }
+
+    private static KeyStore load(File file, String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("pkcs12");
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, password.toCharArray());
+        }
+        return keyStore;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8443;
+        File directory = new File(args.length > 1 ? args[1] : "mtls-keystores");
+        if (!new File(directory, "server.p12").exists()) {
+            generateKeyStores(directory, DEFAULT_PASSWORD);
+        }
+        MTLSEchoServer server = new MTLSEchoServer(port, directory, DEFAULT_PASSWORD).start();
+        System.out.println("Listening on " + server.getUrl() + ", client keystore " + new File(directory, "client.p12")
+                + ", truststore " + new File(directory, "trust.p12") + ", password " + DEFAULT_PASSWORD);
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,166 @@
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONObject;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSL socket factory of the pool that counts and times the TLS handshakes of new pooled connections,
+ * and whose SSLContext can be swapped while the pool is in use (certificate rotation).
+ *
+ * A handshake is "resumed" when the session was created before the handshake started, i.e. it came out of
+ * the client session cache of the SSLContext (session id or session ticket), otherwise it is "full":
+ * certificate exchange, client certificate signature, and key exchange.
+ *
+ * setSSLContext() only changes the connections opened after it, isCurrent() tells the old connections apart.
+ *
+ * A HandshakeListener gets each handshake on the thread that made it, see RequestPhaseMetrics.
+ */
+public class MeasuredSSLConnectionSocketFactory implements LayeredConnectionSocketFactory {
+    private final String[] supportedProtocols;
+    private final String[] supportedCipherSuites;
+    private final HostnameVerifier hostnameVerifier;
+    private volatile SSLContext sslContext;
+    private volatile SSLConnectionSocketFactory delegate;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder fullHandshakeNanos = new LongAdder();
+    private final LongAccumulator maxFullHandshakeNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakeNanos = new LongAdder();
+    private final LongAccumulator maxResumedHandshakeNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder contextSwaps = new LongAdder();
+    private volatile HandshakeListener handshakeListener = null;
+
+    /**
+     * called on the connecting thread after each successful handshake
+     */
+    public interface HandshakeListener {
+        void handshakeCompleted(long nanos, boolean resumed);
+    }
+
+    public MeasuredSSLConnectionSocketFactory(SSLContext sslContext, String[] supportedProtocols,
+                                              String[] supportedCipherSuites, HostnameVerifier hostnameVerifier) {
+        this.supportedProtocols = supportedProtocols;
+        this.supportedCipherSuites = supportedCipherSuites;
+        this.hostnameVerifier = hostnameVerifier;
+        this.sslContext = sslContext;
+        this.delegate = new TimedFactory(sslContext);
+    }
+
+    /**
+     * use this context for the connections opened from now on
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.delegate = new TimedFactory(sslContext);
+        this.sslContext = sslContext;
+        contextSwaps.increment();
+    }
+
+    public void setHandshakeListener(HandshakeListener handshakeListener) {
+        this.handshakeListener = handshakeListener;
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * true when the session was negotiated with the current SSLContext
+     */
+    public boolean isCurrent(SSLSession session) {
+        return session.getSessionContext() == sslContext.getClientSessionContext();
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return delegate.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                                InetSocketAddress localAddress, HttpContext context) throws IOException {
+        return delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+        return delegate.createLayeredSocket(socket, target, port, context);
+    }
+
+    /**
+     * one factory per SSLContext, connectSocket() of the pool calls its createLayeredSocket() for the handshake
+     */
+    private final class TimedFactory extends SSLConnectionSocketFactory {
+        TimedFactory(SSLContext sslContext) {
+            super(sslContext, supportedProtocols, supportedCipherSuites, hostnameVerifier);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            Socket layered;
+            try {
+                layered = super.createLayeredSocket(socket, target, port, context);
+            } catch (IOException | RuntimeException e) {
+                failedHandshakes.increment();
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            SSLSession session = ((SSLSocket) layered).getSession();
+            boolean resumed = session.getCreationTime() < startMillis;
+            if (resumed) {
+                resumedHandshakes.increment();
+                resumedHandshakeNanos.add(elapsed);
+                maxResumedHandshakeNanos.accumulate(elapsed);
+            } else {
+                fullHandshakes.increment();
+                fullHandshakeNanos.add(elapsed);
+                maxFullHandshakeNanos.accumulate(elapsed);
+            }
+            HandshakeListener listener = handshakeListener;
+            if (listener != null) {
+                listener.handshakeCompleted(elapsed, resumed);
+            }
+            return layered;
+        }
+    }
+
+    public long getFullHandshakeCount() {
+        return fullHandshakes.sum();
+    }
+
+    public long getResumedHandshakeCount() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * handshake counts, average and max durations in ms
+     */
+    public JSONObject getStats() {
+        long full = fullHandshakes.sum();
+        long resumed = resumedHandshakes.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("fullHandshakes", full);
+        stats.put("fullHandshakeAvgMs", full == 0 ? 0.0 : fullHandshakeNanos.sum() / 1e6 / full);
+        stats.put("fullHandshakeMaxMs", maxFullHandshakeNanos.get() / 1e6);
+        stats.put("resumedHandshakes", resumed);
+        stats.put("resumedHandshakeAvgMs", resumed == 0 ? 0.0 : resumedHandshakeNanos.sum() / 1e6 / resumed);
+        stats.put("resumedHandshakeMaxMs", maxResumedHandshakeNanos.get() / 1e6);
+        stats.put("failedHandshakes", failedHandshakes.sum());
+        stats.put("sslContextSwaps", contextSwaps.sum());
+        return stats;
+    }
+}
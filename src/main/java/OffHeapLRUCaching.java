@@ -0,0 +1,217 @@
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache with values stored off the java heap, as UTF-8 bytes in an OffHeapStore.
+ *
+ * The heap only holds the index: an LRUCaching from key to a chunk handle (a Long), weighted by the chunk size,
+ * so the cache is bounded by off-heap bytes. When the index evicts, expires, replaces or removes an entry,
+ * its chunk goes back to the store, and empty slabs are released.
+ * Values are decoded on get(), nothing is kept on the heap between reads.
+ *
+ * sample usage:
+ *     OffHeapLRUCaching<String> cache = OffHeapLRUCaching.<String>newBuilder()
+ *             .maximumOffHeapBytes(1024L * 1024 * 1024)
+ *             .build();
+ */
+public class OffHeapLRUCaching<K> {
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private final OffHeapStore store;
+    private final LRUCaching<K, Long> index;
+    private final LongAdder rejected = new LongAdder();
+
+    public static <K> Builder<K> newBuilder() {
+        return new Builder<K>();
+    }
+
+    public static class Builder<K> {
+        private long maximumOffHeapBytes = 64L * 1024 * 1024;
+        private int slabSize = DEFAULT_SLAB_SIZE;
+        private Path mappedDirectory = null;
+        private LRUCaching.EvictionPolicy evictionPolicy = LRUCaching.EvictionPolicy.LRU;
+        private long expireAfterWriteNanos = 0;
+        private long expireAfterAccessNanos = 0;
+
+        /**
+         * upper bound of the slab memory, default is 64 MB
+         */
+        public Builder<K> maximumOffHeapBytes(long maximumOffHeapBytes) {
+            this.maximumOffHeapBytes = maximumOffHeapBytes;
+            return this;
+        }
+
+        /**
+         * slab size, a power of 2 up to 4 MB, default is 1 MB. values larger than a slab are not cached.
+         */
+        public Builder<K> slabSize(int slabSize) {
+            this.slabSize = slabSize;
+            return this;
+        }
+
+        /**
+         * keep slabs in memory-mapped files in this directory, instead of direct buffers
+         */
+        public Builder<K> mappedDirectory(Path mappedDirectory) {
+            this.mappedDirectory = mappedDirectory;
+            return this;
+        }
+
+        public Builder<K> evictionPolicy(LRUCaching.EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        public Builder<K> expireAfterWrite(long duration, TimeUnit unit) {
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder<K> expireAfterAccess(long duration, TimeUnit unit) {
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public OffHeapLRUCaching<K> build() {
+            return new OffHeapLRUCaching<K>(this);
+        }
+    }
+
+    private OffHeapLRUCaching(Builder<K> builder) {
+        store = new OffHeapStore(builder.maximumOffHeapBytes, builder.slabSize, builder.mappedDirectory);
+        // keep one slab per size class in reserve, for the partially used slabs
+        long reserve = (long) store.getSizeClassCount() * store.getSlabSize();
+        long indexWeight = Math.max(store.getSlabSize(), builder.maximumOffHeapBytes - reserve);
+        LRUCaching.Builder<K, Long> indexBuilder = LRUCaching.<K, Long>newBuilder()
+                .maximumWeight(indexWeight)
+                .weigher((key, handle) -> store.chunkSize(handle))
+                // a chunk is at most a slab, every segment of the index must be able to hold one
+                .maximumEntryWeight(store.getSlabSize())
+                .evictionPolicy(builder.evictionPolicy)
+                .removalListener((key, handle, cause) -> store.free(handle));
+        if (builder.expireAfterWriteNanos > 0) {
+            indexBuilder.expireAfterWrite(builder.expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+        }
+        if (builder.expireAfterAccessNanos > 0) {
+            indexBuilder.expireAfterAccess(builder.expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+        }
+        index = indexBuilder.build();
+    }
+
+    /**
+     * put a key-value pair into cache, the value is stored as UTF-8 bytes
+     */
+    public void put(K key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putBytes(key, bytes);
+    }
+
+    public void putBytes(K key, byte[] bytes) {
+        long handle = store.allocate(bytes, bytes.length);
+        if (handle == OffHeapStore.NO_HANDLE) {
+            // too large, or no free slab: drop the old value, it is stale now
+            rejected.increment();
+            index.remove(key);
+            return;
+        }
+        index.put(key, handle);
+    }
+
+    /**
+     * get value from cache, decoded from UTF-8, if not found, return null
+     */
+    public String get(K key) {
+        byte[] bytes = getBytes(key);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * get a copy of the value bytes, if not found, return null
+     */
+    public byte[] getBytes(K key) {
+        Long handle = index.get(key);
+        if (handle == null) {
+            return null;
+        }
+        int length = store.length(handle);
+        if (length < 0) {
+            return null;   // evicted since the index lookup
+        }
+        byte[] bytes = new byte[length];
+        if (store.read(handle, bytes, 0) != length) {
+            return null;
+        }
+        return bytes;
+    }
+
+    public void remove(K key) {
+        index.remove(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public double getHitsRatio() {
+        return index.getHitsRatio();
+    }
+
+    /**
+     * stats of the index, plus the off-heap memory use
+     */
+    public JSONObject getStats() {
+        JSONObject stats = index.getStats();
+        stats.put("offHeapAllocatedBytes", store.getAllocatedBytes());
+        stats.put("offHeapLiveBytes", store.getLiveBytes());
+        stats.put("offHeapMaximumBytes", store.getMaximumBytes());
+        stats.put("offHeapSlabs", store.getSlabCount());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    /**
+     * MAIN to compare heap use of LRUCaching and OffHeapLRUCaching, holding the same JSON strings.
+     *
+     * @param args argv[0] is the number of entries, optional argv[1] is a directory for memory-mapped slabs.
+     */
+    public static void main(String[] args) {
+        int numKeys = Integer.parseInt(args[0]);
+        Path mapped = args.length > 1 ? Paths.get(args[1]) : null;
+        String sample = LRUCaching.getInstance().getStats().toString();
+
+        long before = usedHeap();
+        LRUCaching<String, String> onHeap = LRUCaching.<String, String>newBuilder().maximumSize(numKeys).build();
+        for (int i = 0; i < numKeys; i++) {
+            onHeap.put(String.valueOf(i), i + sample);
+        }
+        long onHeapBytes = usedHeap() - before;
+        System.out.println("LRUCaching heap bytes: " + onHeapBytes + ", size: " + onHeap.size());
+        onHeap = null;
+
+        before = usedHeap();
+        OffHeapLRUCaching<String> offHeap = OffHeapLRUCaching.<String>newBuilder()
+                .maximumOffHeapBytes((long) numKeys * 1024)
+                .mappedDirectory(mapped)
+                .build();
+        for (int i = 0; i < numKeys; i++) {
+            offHeap.put(String.valueOf(i), i + sample);
+        }
+        long offHeapBytes = usedHeap() - before;
+        System.out.println("OffHeapLRUCaching heap bytes: " + offHeapBytes + ", size: " + offHeap.size());
+        System.out.println("value of key 7: " + offHeap.get("7"));
+        System.out.println("OffHeapLRUCaching stats: " + offHeap.getStats().toString(2));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slab allocator for byte values outside of the java heap, used by OffHeapLRUCaching.
+ *
+ * Memory is taken in slabs (direct ByteBuffers, or memory-mapped files when a directory is given),
+ * each slab is cut into equal chunks of one size class (powers of 2, from 64 bytes up to the slab size).
+ * A slab whose chunks are all free is released, so memory goes back when the cache shrinks.
+ *
+ * A chunk starts with an 8 bytes header: a stamp and the value length.
+ * allocate() returns a long handle made of the slab id, the chunk index and the stamp.
+ * Reads do not lock: they check the stamp before and after copying, so a chunk that was freed
+ * (and maybe reused) while it was read is reported as missing instead of returning wrong bytes.
+ */
+public class OffHeapStore {
+    static final int HEADER_SIZE = 8;
+    static final int MIN_CHUNK_SIZE = 64;
+    static final int MAX_SLAB_SIZE = 4 * 1024 * 1024;   // chunk index must fit in 16 bits
+    static final int MAX_SLABS = 1 << 16;
+    public static final long NO_HANDLE = -1L;
+
+    private final int slabSize;
+    private final long maximumBytes;
+    private final Path mappedDirectory;
+    private final AtomicReferenceArray<Slab> slabs = new AtomicReferenceArray<Slab>(MAX_SLABS);
+    private final SizeClass[] sizeClasses;
+    private final AtomicInteger stamps = new AtomicInteger();
+
+    // guarded by this
+    private final ArrayDeque<Integer> freeSlabIds = new ArrayDeque<Integer>();
+    private int nextSlabId = 0;
+    private long allocatedBytes = 0;
+    private long liveBytes = 0;
+
+    private static final class Slab {
+        final int id;
+        final ByteBuffer buffer;
+        final SizeClass sizeClass;
+        final int[] freeChunks;
+        int freeCount;
+
+        Slab(int id, ByteBuffer buffer, SizeClass sizeClass, int chunks) {
+            this.id = id;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.freeChunks = new int[chunks];
+            // hand out low chunk indexes first
+            for (int i = 0; i < chunks; i++) {
+                freeChunks[i] = chunks - 1 - i;
+            }
+            this.freeCount = chunks;
+        }
+    }
+
+    private static final class SizeClass {
+        final int chunkSize;
+        // slabs of this class with at least one free chunk
+        final ArrayDeque<Slab> partial = new ArrayDeque<Slab>();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * @param maximumBytes      upper bound of the slab memory
+     * @param slabSize          size of one slab, power of 2 between 64 bytes and 4 MB
+     * @param mappedDirectory   directory for memory-mapped slab files, or null for direct buffers
+     */
+    public OffHeapStore(long maximumBytes, int slabSize, Path mappedDirectory) {
+        if (slabSize < MIN_CHUNK_SIZE || slabSize > MAX_SLAB_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("slabSize must be a power of 2 between " + MIN_CHUNK_SIZE
+                    + " and " + MAX_SLAB_SIZE + ": " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.maximumBytes = maximumBytes;
+        this.mappedDirectory = mappedDirectory;
+        int classes = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        sizeClasses = new SizeClass[classes];
+        for (int i = 0; i < classes; i++) {
+            sizeClasses[i] = new SizeClass(MIN_CHUNK_SIZE << i);
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public int getSizeClassCount() {
+        return sizeClasses.length;
+    }
+
+    /**
+     * the chunk size used for a value of this length, or -1 when it does not fit in a slab
+     */
+    public int chunkSizeFor(int length) {
+        int total = length + HEADER_SIZE;
+        if (total > slabSize) {
+            return -1;
+        }
+        return Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(total - 1) << 1);
+    }
+
+    private SizeClass sizeClassFor(int chunkSize) {
+        return sizeClasses[Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE)];
+    }
+
+    /**
+     * copy bytes into a free chunk
+     * @return  the handle of the chunk, or NO_HANDLE when the value is too large or the memory limit is reached
+     */
+    public long allocate(byte[] bytes, int length) {
+        int chunkSize = chunkSizeFor(length);
+        if (chunkSize < 0) {
+            return NO_HANDLE;
+        }
+        SizeClass sizeClass = sizeClassFor(chunkSize);
+        Slab slab;
+        int chunk;
+        synchronized (sizeClass) {
+            slab = sizeClass.partial.peekFirst();
+            if (slab == null) {
+                slab = newSlab(sizeClass);
+                if (slab == null) {
+                    return NO_HANDLE;
+                }
+                sizeClass.partial.addFirst(slab);
+            }
+            chunk = slab.freeChunks[--slab.freeCount];
+            if (slab.freeCount == 0) {
+                sizeClass.partial.pollFirst();
+            }
+        }
+        int stamp = nextStamp();
+        int offset = chunk * chunkSize;
+        // publish the new stamp before the data, so a reader of the previous owner sees the change
+        slab.buffer.putInt(offset, stamp);
+        VarHandle.storeStoreFence();
+        slab.buffer.putInt(offset + 4, length);
+        slab.buffer.put(offset + HEADER_SIZE, bytes, 0, length);
+        VarHandle.releaseFence();
+        synchronized (this) {
+            liveBytes += chunkSize;
+        }
+        return ((long) slab.id << 48) | ((long) chunk << 32) | (stamp & 0xffffffffL);
+    }
+
+    /**
+     * stamp 0 marks a free chunk, skip it when the counter wraps around
+     */
+    private int nextStamp() {
+        int stamp;
+        do {
+            stamp = stamps.incrementAndGet();
+        } while (stamp == 0);
+        return stamp;
+    }
+
+    /**
+     * return a chunk, release its slab when the slab is empty and its size class has another partial slab
+     */
+    public void free(long handle) {
+        Slab slab = slabs.get(slabIdOf(handle));
+        if (slab == null) {
+            return;
+        }
+        SizeClass sizeClass = slab.sizeClass;
+        int offset = chunkOf(handle) * sizeClass.chunkSize;
+        boolean release = false;
+        synchronized (sizeClass) {
+            if (offset + HEADER_SIZE > slab.buffer.capacity() || slab.buffer.getInt(offset) != stampOf(handle)) {
+                return;   // already freed
+            }
+            slab.buffer.putInt(offset, 0);
+            slab.freeChunks[slab.freeCount++] = chunkOf(handle);
+            if (slab.freeCount == 1) {
+                sizeClass.partial.addLast(slab);
+            }
+            if (slab.freeCount == slab.freeChunks.length && sizeClass.partial.size() > 1) {
+                sizeClass.partial.remove(slab);
+                release = true;
+            }
+        }
+        synchronized (this) {
+            liveBytes -= sizeClass.chunkSize;
+            if (release) {
+                slabs.set(slab.id, null);
+                freeSlabIds.push(slab.id);
+                allocatedBytes -= slabSize;
+            }
+        }
+    }
+
+    /**
+     * chunk size of a live handle, or 0 when its slab was released
+     */
+    public int chunkSize(long handle) {
+        Slab slab = slabs.get(slabIdOf(handle));
+        return slab == null ? 0 : slab.sizeClass.chunkSize;
+    }
+
+    /**
+     * length of the value, or -1 when the chunk was freed
+     */
+    public int length(long handle) {
+        Slab slab = slabs.get(slabIdOf(handle));
+        if (slab == null) {
+            return -1;
+        }
+        int offset = chunkOf(handle) * slab.sizeClass.chunkSize;
+        if (offset + HEADER_SIZE > slab.buffer.capacity()) {
+            return -1;
+        }
+        int length = slab.buffer.getInt(offset + 4);
+        VarHandle.acquireFence();
+        if (slab.buffer.getInt(offset) != stampOf(handle) || length < 0 || length > slab.sizeClass.chunkSize - HEADER_SIZE) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * copy the value into dst, from dstOffset
+     * @return  the value length, or -1 when the chunk was freed, or reused, during the copy
+     */
+    public int read(long handle, byte[] dst, int dstOffset) {
+        Slab slab = slabs.get(slabIdOf(handle));
+        if (slab == null) {
+            return -1;
+        }
+        int stamp = stampOf(handle);
+        int offset = chunkOf(handle) * slab.sizeClass.chunkSize;
+        if (offset + HEADER_SIZE > slab.buffer.capacity() || slab.buffer.getInt(offset) != stamp) {
+            return -1;
+        }
+        VarHandle.acquireFence();
+        int length = slab.buffer.getInt(offset + 4);
+        if (length < 0 || length > slab.sizeClass.chunkSize - HEADER_SIZE || dstOffset + length > dst.length) {
+            return -1;
+        }
+        slab.buffer.get(offset + HEADER_SIZE, dst, dstOffset, length);
+        VarHandle.loadLoadFence();
+        if (slab.buffer.getInt(offset) != stamp) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * allocate a slab for the size class, or return null when the memory limit is reached.
+     * called with the size class lock held.
+     */
+    private Slab newSlab(SizeClass sizeClass) {
+        int id;
+        synchronized (this) {
+            if (allocatedBytes + slabSize > maximumBytes) {
+                return null;
+            }
+            if (!freeSlabIds.isEmpty()) {
+                id = freeSlabIds.pop();
+            } else if (nextSlabId < MAX_SLABS) {
+                id = nextSlabId++;
+            } else {
+                return null;
+            }
+            allocatedBytes += slabSize;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = allocateBuffer();
+        } catch (IOException | OutOfMemoryError e) {
+            synchronized (this) {
+                freeSlabIds.push(id);
+                allocatedBytes -= slabSize;
+            }
+            return null;
+        }
+        Slab slab = new Slab(id, buffer, sizeClass, slabSize / sizeClass.chunkSize);
+        slabs.set(id, slab);
+        return slab;
+    }
+
+    /**
+     * a direct buffer, or a mapped temporary file that is deleted when the mapping is gone.
+     * the memory is given back when the buffer is garbage collected.
+     */
+    private ByteBuffer allocateBuffer() throws IOException {
+        if (mappedDirectory == null) {
+            return ByteBuffer.allocateDirect(slabSize);
+        }
+        Path file = Files.createTempFile(mappedDirectory, "slab", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+        }
+    }
+
+    /**
+     * bytes of slab memory taken from the OS
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * bytes of chunks holding values
+     */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    public synchronized int getSlabCount() {
+        return (int) (allocatedBytes / slabSize);
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    private static int slabIdOf(long handle) {
+        return (int) (handle >>> 48);
+    }
+
+    private static int chunkOf(long handle) {
+        return (int) ((handle >>> 32) & 0xffff);
+    }
+
+    private static int stampOf(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,336 @@
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesce small JSON POSTs into batched requests.
+ *
+ * submit() adds a JSON payload to the pending batch and returns a future of its own result. A batch is sent
+ * when it reaches maxItems or maxBytes, or lingerMicros after its first item. The batch is one POST of
+ * a JSON array of the items, the server answers with a JSON array of the same length whose element i
+ * completes the future of item i. A failed request, a non 2xx status or a malformed answer fails the futures
+ * of all items of the batch.
+ *
+ * At most maxInFlight batches are in flight, so they do not pile up waiting for pooled connections,
+ * and under load the waiting items make larger batches.
+ *
+ * Latency of an item is from submit() to the completion of its future, it includes the linger time.
+ *
+ * sample usage:
+ *     RequestBatcher batcher = HttpMTLSClient.getInstance().newRequestBatcher("https://host/api/batch");
+ *     CompletableFuture<String> result = batcher.submit("{\"name\":\"John\"}");
+ */
+public class RequestBatcher {
+    private final CloseableHttpClient client;
+    private final String url;
+    private final Header[] headers;
+    private final int maxItems;
+    private final int maxBytes;
+    private final long lingerMicros;
+    private final ExecutorService sender;
+    private final ScheduledExecutorService flusher;
+    // batches waiting for one of the maxInFlight requests
+    private final ConcurrentLinkedQueue<Batch> ready = new ConcurrentLinkedQueue<Batch>();
+    private final Semaphore inFlight;
+
+    // guarded by this
+    private Batch pending = null;
+    private boolean closed = false;
+
+    private final LongAdder submittedItems = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder sentItems = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder failedItems = new LongAdder();
+    private final LongAdder sentByCount = new LongAdder();
+    private final LongAdder sentByBytes = new LongAdder();
+    private final LongAdder sentByLinger = new LongAdder();
+    private final AtomicLongArray batchSizes = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+    private final AtomicLongArray itemLatencyMicros = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+    private final LongAccumulator maxItemLatencyMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * items of one batched request, the body is built as the items come
+     */
+    private static final class Batch {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        final List<Long> submitNanos = new ArrayList<Long>();
+
+        Batch() {
+            body.write('[');
+        }
+    }
+
+    /**
+     * @param client        the blocking client
+     * @param url           the batch endpoint, it takes a JSON array and answers a JSON array
+     * @param headers       headers of each batched request, e.g. authorization
+     * @param maxItems      items in a batch
+     * @param maxBytes      bytes of the JSON array of a batch, a larger single item is sent alone
+     * @param linger        the longest time an item waits for more items
+     * @param maxInFlight   batched requests in flight, at most the connections of the route.
+     *                      while they are all busy, new items make the pending batch larger.
+     * @param sender        sends the batches, see BulkRequestExecutor.newDefaultExecutor()
+     */
+    public RequestBatcher(CloseableHttpClient client, String url, Header[] headers, int maxItems, int maxBytes,
+                          long linger, TimeUnit unit, int maxInFlight, ExecutorService sender) {
+        if (maxItems < 1 || maxBytes < 2) {
+            throw new IllegalArgumentException("maxItems must be positive and maxBytes at least 2: " + maxItems + ", " + maxBytes);
+        }
+        this.client = client;
+        this.url = url;
+        this.headers = headers.clone();
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.lingerMicros = unit.toMicros(linger);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.sender = sender;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "request-batcher-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * add a JSON payload to the pending batch
+     *
+     * @return the JSON text of the matching element of the batch response
+     */
+    public CompletableFuture<String> submit(String json) {
+        byte[] item = json.getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        submittedItems.increment();
+        Batch full = null;
+        Batch ready = null;
+        LongAdder reason = null;
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("RequestBatcher of " + url + " is closed"));
+                return future;
+            }
+            // the array brackets and a comma
+            if (pending != null && pending.body.size() + item.length + 2 > maxBytes) {
+                full = pending;
+                pending = null;
+            }
+            if (pending == null) {
+                Batch batch = new Batch();
+                pending = batch;
+                if (lingerMicros > 0) {
+                    flusher.schedule(() -> flush(batch), lingerMicros, TimeUnit.MICROSECONDS);
+                }
+            } else {
+                pending.body.write(',');
+            }
+            pending.body.write(item, 0, item.length);
+            pending.futures.add(future);
+            pending.submitNanos.add(System.nanoTime());
+            if (pending.futures.size() >= maxItems) {
+                reason = sentByCount;
+            } else if (pending.body.size() + 1 >= maxBytes) {
+                reason = sentByBytes;
+            } else if (lingerMicros <= 0) {
+                reason = sentByLinger;
+            }
+            if (reason != null) {
+                ready = pending;
+                pending = null;
+            }
+        }
+        if (full != null) {
+            sentByBytes.increment();
+            send(full);
+        }
+        if (ready != null) {
+            reason.increment();
+            send(ready);
+        }
+        return future;
+    }
+
+    /**
+     * send the pending items now
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * linger expired, send the batch unless it was already sent for being full
+     */
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                return;
+            }
+            pending = null;
+        }
+        sentByLinger.increment();
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        ready.add(batch);
+        dispatch();
+    }
+
+    /**
+     * start ready batches while fewer than maxInFlight are in flight, a finished batch starts the next one
+     */
+    private void dispatch() {
+        while (!ready.isEmpty() && inFlight.tryAcquire()) {
+            Batch batch = ready.poll();
+            if (batch == null) {
+                inFlight.release();
+                continue;
+            }
+            try {
+                sender.execute(() -> {
+                    try {
+                        post(batch);
+                    } finally {
+                        inFlight.release();
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                fail(batch, e);
+            }
+        }
+    }
+
+    private void post(Batch batch) {
+        batch.body.write(']');
+        byte[] body = batch.body.toByteArray();
+        HttpPost post = new HttpPost(url);
+        post.setHeaders(headers);
+        post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        sentBatches.increment();
+        sentItems.add(batch.futures.size());
+        sentBytes.add(body.length);
+        batchSizes.incrementAndGet(CacheAnalytics.bucketOf(batch.futures.size()));
+        JSONArray results;
+        try (CloseableHttpResponse response = client.execute(post)) {
+            int status = response.getStatusLine().getStatusCode();
+            String text = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (status < 200 || status >= 300) {
+                throw new IOException("Batch of " + batch.futures.size() + " items to " + url + " failed: " + response.getStatusLine());
+            }
+            results = new JSONArray(text);
+            if (results.length() != batch.futures.size()) {
+                throw new IOException("Batch of " + batch.futures.size() + " items to " + url + " got "
+                        + results.length() + " results");
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.futures.size(); i++) {
+            record(now - batch.submitNanos.get(i));
+            batch.futures.get(i).complete(JSONObject.valueToString(results.get(i)));
+        }
+    }
+
+    private void fail(Batch batch, Exception e) {
+        failedBatches.increment();
+        failedItems.add(batch.futures.size());
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.futures.size(); i++) {
+            record(now - batch.submitNanos.get(i));
+            batch.futures.get(i).completeExceptionally(e);
+        }
+    }
+
+    private void record(long nanos) {
+        long micros = nanos / 1000;
+        itemLatencyMicros.incrementAndGet(CacheAnalytics.bucketOf(micros));
+        maxItemLatencyMicros.accumulate(micros);
+    }
+
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * item and batch counts, items per batch, why batches were sent, and item latency in micros
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long batches = sentBatches.sum();
+        stats.put("url", url);
+        stats.put("submittedItems", submittedItems.sum());
+        stats.put("sentBatches", batches);
+        stats.put("sentBytes", sentBytes.sum());
+        stats.put("failedBatches", failedBatches.sum());
+        stats.put("failedItems", failedItems.sum());
+        stats.put("queuedBatches", ready.size());
+        JSONObject sentBy = new JSONObject();
+        sentBy.put("count", sentByCount.sum());
+        sentBy.put("bytes", sentByBytes.sum());
+        sentBy.put("linger", sentByLinger.sum());
+        stats.put("sentBy", sentBy);
+        long[] sizes = snapshot(batchSizes);
+        JSONObject batchSize = new JSONObject();
+        batchSize.put("p50", CacheAnalytics.percentile(sizes, 0.5));
+        batchSize.put("p99", CacheAnalytics.percentile(sizes, 0.99));
+        batchSize.put("avg", batches == 0 ? 0.0 : (double) sentItems.sum() / batches);
+        stats.put("batchSize", batchSize);
+        long[] latencies = snapshot(itemLatencyMicros);
+        JSONObject latency = new JSONObject();
+        latency.put("p50", CacheAnalytics.percentile(latencies, 0.5));
+        latency.put("p99", CacheAnalytics.percentile(latencies, 0.99));
+        latency.put("max", maxItemLatencyMicros.get());
+        stats.put("itemLatencyMicros", latency);
+        return stats;
+    }
+
+    /**
+     * send what is pending and stop the flusher, later submits fail
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        flusher.shutdown();
+    }
+}
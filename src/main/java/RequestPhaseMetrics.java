@@ -0,0 +1,300 @@
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per route latency histograms of the phases of a request of the blocking client:
+ *     lease       waiting for a pooled connection
+ *     connect     TCP connect of a new connection
+ *     handshake   TLS handshake of a new connection
+ *     server      sending the request until the response head is read, i.e. server time plus network
+ *     body        reading the response body, until the connection goes back to the pool
+ *     total       from asking for a connection to releasing it
+ * with the connection reuse rate and the keep-alive decisions of the client.
+ *
+ * It is a connection manager that delegates to the pool, like AdaptivePoolController, plus a request
+ * executor for the server phase and a handshake listener of MeasuredSSLConnectionSocketFactory.
+ * The phases of a request run on the thread that executes it, they are marked in a timer of the thread
+ * that is reused, and recorded in log-linear histograms (see CacheAnalytics) of preallocated counters,
+ * so recording allocates nothing. A body read to the end on another thread is not recorded.
+ *
+ * Without metrics (HTTP_METRICS=false, the default) none of it is installed.
+ *
+ * sample usage:
+ *     RequestPhaseMetrics metrics = new RequestPhaseMetrics(cm);
+ *     socketFactory.setHandshakeListener(metrics);
+ *     HttpClients.custom().setConnectionManager(metrics).setRequestExecutor(metrics.newRequestExecutor())...
+ */
+public class RequestPhaseMetrics implements HttpClientConnectionManager, MeasuredSSLConnectionSocketFactory.HandshakeListener {
+    public enum Phase { LEASE, CONNECT, HANDSHAKE, SERVER, BODY, TOTAL }
+
+    public enum KeepAliveDecision {
+        KEEP_ALIVE_TIMEOUT,     // the server sent Keep-Alive: timeout=n
+        KEEP_ALIVE_DEFAULT,     // Connection: keep-alive without a timeout
+        NO_KEEP_ALIVE,
+        REUSE,
+        NO_REUSE,
+        RETIRED                 // opened with an SSL context that was reloaded since
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final KeepAliveDecision[] DECISIONS = KeepAliveDecision.values();
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    // states of the timer of a thread
+    private static final int IDLE = 0;
+    private static final int LEASING = 1;
+    private static final int CONNECTED = 2;
+    private static final int READING = 3;
+
+    private final HttpClientConnectionManager delegate;
+    private final Map<HttpRoute, RouteMetrics> routes = new ConcurrentHashMap<HttpRoute, RouteMetrics>();
+    private final ThreadLocal<Timer> timers = ThreadLocal.withInitial(Timer::new);
+
+    /**
+     * the request being executed by a thread
+     */
+    private static final class Timer {
+        int state = IDLE;
+        RouteMetrics route;
+        HttpClientConnection conn;
+        long requested;
+        long responded;
+        long handshakeNanos;
+    }
+
+    private static final class RouteMetrics {
+        final AtomicLongArray[] histograms = new AtomicLongArray[PHASES.length];
+        final LongAdder[] sums = new LongAdder[PHASES.length];
+        final LongAccumulator[] maxes = new LongAccumulator[PHASES.length];
+        final LongAdder[] decisions = new LongAdder[DECISIONS.length];
+        final LongAdder reused = new LongAdder();
+        final LongAdder opened = new LongAdder();
+        final LongAdder connectFailures = new LongAdder();
+        final LongAdder failures = new LongAdder();
+
+        RouteMetrics() {
+            for (int i = 0; i < PHASES.length; i++) {
+                histograms[i] = new AtomicLongArray(CacheAnalytics.HISTOGRAM_BUCKETS);
+                sums[i] = new LongAdder();
+                maxes[i] = new LongAccumulator(Math::max, 0);
+            }
+            for (int i = 0; i < DECISIONS.length; i++) {
+                decisions[i] = new LongAdder();
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int i = phase.ordinal();
+            histograms[i].incrementAndGet(CacheAnalytics.bucketOf(micros));
+            sums[i].add(micros);
+            maxes[i].accumulate(micros);
+        }
+    }
+
+    public RequestPhaseMetrics(HttpClientConnectionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    private RouteMetrics metricsOf(HttpRoute route) {
+        RouteMetrics metrics = routes.get(route);
+        return metrics != null ? metrics : routes.computeIfAbsent(route, r -> new RouteMetrics());
+    }
+
+    /**
+     * request executor of the client that times the server phase
+     */
+    public HttpRequestExecutor newRequestExecutor() {
+        return new HttpRequestExecutor() {
+            @Override
+            public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                    throws IOException, HttpException {
+                Timer timer = timers.get();
+                if (timer.state == IDLE) {
+                    return super.execute(request, conn, context);
+                }
+                long start = System.nanoTime();
+                if (timer.state == LEASING) {
+                    timer.route.record(Phase.LEASE, start - timer.requested);
+                    timer.route.reused.increment();
+                } else if (timer.state == CONNECTED) {
+                    timer.route.opened.increment();
+                }
+                HttpResponse response;
+                try {
+                    response = super.execute(request, conn, context);
+                } catch (IOException | HttpException | RuntimeException e) {
+                    timer.route.failures.increment();
+                    timer.state = IDLE;
+                    timer.conn = null;
+                    throw e;
+                }
+                timer.responded = System.nanoTime();
+                timer.route.record(Phase.SERVER, timer.responded - start);
+                timer.conn = conn;
+                timer.state = READING;
+                return response;
+            }
+        };
+    }
+
+    /**
+     * count a decision of the keep-alive or the connection reuse strategy of the request of this thread
+     */
+    public void record(KeepAliveDecision decision) {
+        Timer timer = timers.get();
+        if (timer.state != IDLE) {
+            timer.route.decisions[decision.ordinal()].increment();
+        }
+    }
+
+    @Override
+    public void handshakeCompleted(long nanos, boolean resumed) {
+        timers.get().handshakeNanos = nanos;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        Timer timer = timers.get();
+        timer.route = metricsOf(route);
+        timer.conn = null;
+        timer.handshakeNanos = 0;
+        timer.state = LEASING;
+        timer.requested = System.nanoTime();
+        return delegate.requestConnection(route, state);
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        Timer timer = timers.get();
+        if (timer.state == READING && timer.conn == conn) {
+            long now = System.nanoTime();
+            timer.route.record(Phase.BODY, now - timer.responded);
+            timer.route.record(Phase.TOTAL, now - timer.requested);
+        }
+        timer.state = IDLE;
+        timer.conn = null;
+        delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    /**
+     * ends the lease of a new connection, the socket factory reports the handshake part of the connect
+     */
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        Timer timer = timers.get();
+        long start = System.nanoTime();
+        boolean timed = timer.state == LEASING;
+        if (timed) {
+            timer.route.record(Phase.LEASE, start - timer.requested);
+            timer.handshakeNanos = 0;
+        }
+        try {
+            delegate.connect(conn, route, connectTimeout, context);
+        } catch (IOException | RuntimeException e) {
+            if (timed) {
+                timer.route.connectFailures.increment();
+                timer.state = IDLE;
+            }
+            throw e;
+        }
+        if (timed) {
+            long elapsed = System.nanoTime() - start;
+            if (timer.handshakeNanos > 0) {
+                timer.route.record(Phase.HANDSHAKE, timer.handshakeNanos);
+            }
+            timer.route.record(Phase.CONNECT, elapsed - timer.handshakeNanos);
+            timer.state = CONNECTED;
+        }
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        delegate.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        delegate.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * per route: connection reuse, failures, keep-alive decisions, and count, mean, percentiles
+     * and max in micros of each phase
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        JSONObject perRoute = new JSONObject();
+        for (Map.Entry<HttpRoute, RouteMetrics> e : routes.entrySet()) {
+            RouteMetrics m = e.getValue();
+            JSONObject route = new JSONObject();
+            long reused = m.reused.sum();
+            long opened = m.opened.sum();
+            route.put("reusedConnections", reused);
+            route.put("newConnections", opened);
+            route.put("reuseRatio", reused + opened == 0 ? 0.0 : (double) reused / (reused + opened));
+            route.put("failures", m.failures.sum());
+            route.put("connectFailures", m.connectFailures.sum());
+            JSONObject decisions = new JSONObject();
+            for (KeepAliveDecision decision : DECISIONS) {
+                decisions.put(decision.name().toLowerCase(Locale.ROOT), m.decisions[decision.ordinal()].sum());
+            }
+            route.put("keepAlive", decisions);
+            JSONObject phases = new JSONObject();
+            for (Phase phase : PHASES) {
+                int i = phase.ordinal();
+                long[] counts = new long[CacheAnalytics.HISTOGRAM_BUCKETS];
+                long count = 0;
+                for (int b = 0; b < counts.length; b++) {
+                    counts[b] = m.histograms[i].get(b);
+                    count += counts[b];
+                }
+                JSONObject histogram = new JSONObject();
+                histogram.put("count", count);
+                histogram.put("mean", count == 0 ? 0 : m.sums[i].sum() / count);
+                for (int p = 0; p < PERCENTILES.length; p++) {
+                    histogram.put(PERCENTILE_NAMES[p], CacheAnalytics.percentile(counts, PERCENTILES[p]));
+                }
+                histogram.put("max", m.maxes[i].get());
+                phases.put(phase.name().toLowerCase(Locale.ROOT), histogram);
+            }
+            route.put("phasesMicros", phases);
+            perRoute.put(e.getKey().toString(), route);
+        }
+        stats.put("routes", perRoute);
+        return stats;
+    }
+}
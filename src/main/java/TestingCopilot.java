@@ -1,6 +1,8 @@
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -84,48 +86,17 @@ public class TestingCopilot {
         return totalPrice;
     }
 
+    private static final JsonPath NAME = JsonPath.compile("{name, person.name, user.name, customer.name, profile.name, account.name}");
+
     /**
      * a method to get name object from any JSONObject, and name could be embedded in a nested JSONObject.
+     * the first of name, person.name, user.name, customer.name, profile.name and account.name that is a JSONObject.
      *
      * @param json      a JSONObject
-     * @return  JSONObject
+     * @return  JSONObject, or null
      */
     public static JSONObject getName(JSONObject json) {
-        JSONObject name = null;
-        if (json.has("name")) {
-            name = json.getJSONObject("name");
-        } else if (json.has("person")) {
-            JSONObject person = json.getJSONObject("person");
-            if (person.has("name")) {
-                name = person.getJSONObject("name");
-            }
-        } else if (json.has("user")) {
-            JSONObject user = json.getJSONObject("user");
-            if (user.has("name")) {
-                name = user.getJSONObject("name");
-            }
-        } else if (json.has("customer")) {
-            JSONObject customer = json.getJSONObject("customer");
-            if (customer.has("name")) {
-                name = customer.getJSONObject("name");
-            }
-        } else if (json.has("profile")) {
-            JSONObject profile = json.getJSONObject("profile");
-            if (profile.has("name")) {
-                name = profile.getJSONObject("name");
-            }
-        } else if (json.has("account")) {
-            JSONObject account = json.getJSONObject("account");
-            if (account.has("name")) {
-                name = account.getJSONObject("name");
-            }
-        } else if (json.has("person")) {
-            JSONObject person = json.getJSONObject("person");
-            if (person.has("name")) {
-                name = person.getJSONObject("name");
-            }
-        }
-        return name;
+        return NAME.first(json, JSONObject.class);
     }
 
 
@@ -168,8 +139,9 @@ public class TestingCopilot {
      */
     public static void extractJSONFields(JSONObject json, String newline, StringBuffer sb, String... keys) {
         for (String key : keys) {
-            if (json.has(key)) {
-                sb.append(key + "=").append(json.get(key)).append(", ").append(newline);
+            Object value = json.opt(key);
+            if (value != null) {
+                sb.append(key).append('=').append(value).append(", ").append(newline);
             }
         }
         for (String key : json.keySet()) {
@@ -190,4 +162,15 @@ public class TestingCopilot {
         }
     }
 
+    /**
+     * extractJSONFields() reading the JSON text as it comes, without building a JSONObject, see JsonFieldExtractor
+     * @param json
+     * @param newline
+     * @param sb
+     * @param keys
+     */
+    public static void extractJSONFields(Reader json, String newline, StringBuilder sb, String... keys) throws IOException {
+        new JsonFieldExtractor(keys).extract(json, newline, sb);
+    }
+
 }